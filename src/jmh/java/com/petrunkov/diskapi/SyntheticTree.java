@@ -0,0 +1,58 @@
+package com.petrunkov.diskapi;
+
+import com.petrunkov.diskapi.dto.SystemItemImport;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Синтетическое дерево для бенчмарков: у каждой папки width потомков, на глубине depth - файлы.
+ * Обход в ширину, генерация останавливается на nodes элементах, корень - ROOT_ID
+ * **/
+public final class SyntheticTree {
+
+	public static final String ROOT_ID = "root";
+
+	private SyntheticTree() {
+	}
+
+	public static List<SystemItemImport> generate(int width, int depth, int nodes) {
+		List<SystemItemImport> items = new ArrayList<>(nodes);
+		items.add(folder(ROOT_ID, null));
+		Deque<String> folders = new ArrayDeque<>();
+		Deque<Integer> levels = new ArrayDeque<>();
+		folders.add(ROOT_ID);
+		levels.add(0);
+		while (!folders.isEmpty() && items.size() < nodes) {
+			String parentId = folders.poll();
+			int level = levels.poll() + 1;
+			for (int i = 0; i < width && items.size() < nodes; i++) {
+				String id = parentId + "/" + i;
+				if (level == depth) {
+					items.add(SystemItemImport.builder()
+							.id(id)
+							.parentId(parentId)
+							.type("FILE")
+							.url("/file/" + id)
+							.size((long) (i + 1))
+							.build());
+				} else {
+					items.add(folder(id, parentId));
+					folders.add(id);
+					levels.add(level);
+				}
+			}
+		}
+		return items;
+	}
+
+	private static SystemItemImport folder(String id, String parentId) {
+		return SystemItemImport.builder()
+				.id(id)
+				.parentId(parentId)
+				.type("FOLDER")
+				.build();
+	}
+}
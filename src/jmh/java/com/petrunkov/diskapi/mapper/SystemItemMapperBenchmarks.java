@@ -0,0 +1,121 @@
+package com.petrunkov.diskapi.mapper;
+
+import com.petrunkov.diskapi.SyntheticTree;
+import com.petrunkov.diskapi.dto.SystemItemImport;
+import com.petrunkov.diskapi.model.SystemItem;
+import com.petrunkov.diskapi.model.SystemItemArchived;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Каждый метод SystemItemMapper на всех элементах синтетического дерева
+ * **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SystemItemMapperBenchmarks {
+
+	@Param({"10", "100"})
+	int width;
+	@Param({"3", "6"})
+	int depth;
+	@Param({"10000"})
+	int nodes;
+
+	private final Instant date = Instant.parse("2022-05-28T18:12:01Z");
+	private List<SystemItemImport> imports;
+	private List<SystemItem> items;
+	private List<SystemItemArchived> archived;
+	private int[] childCounts;
+
+	@Setup
+	public void setUp() {
+		imports = SyntheticTree.generate(width, depth, nodes);
+		items = imports.stream()
+				.map(item -> SystemItemMapper.mapFromSystemItemImport(item, date))
+				.collect(Collectors.toList());
+		archived = items.stream().map(SystemItemMapper::mapToArchive).collect(Collectors.toList());
+		Map<String, Integer> children = new HashMap<>();
+		for (SystemItem item : items) {
+			if (item.getParentId() != null) {
+				children.merge(item.getParentId(), 1, Integer::sum);
+			}
+		}
+		childCounts = items.stream().mapToInt(item -> children.getOrDefault(item.getId(), 0)).toArray();
+	}
+
+	@Benchmark
+	public void mapFromSystemItemImport(Blackhole blackhole) {
+		for (SystemItemImport item : imports) {
+			blackhole.consume(SystemItemMapper.mapFromSystemItemImport(item, date));
+		}
+	}
+
+	@Benchmark
+	public void mapToDto(Blackhole blackhole) {
+		for (SystemItem item : items) {
+			blackhole.consume(SystemItemMapper.mapToDto(item));
+		}
+	}
+
+	/**
+	 * Вариант TreeAssembler: список детей папки сразу нужной ёмкости
+	 * **/
+	@Benchmark
+	public void mapToDtoWithChildCount(Blackhole blackhole) {
+		for (int i = 0; i < items.size(); i++) {
+			blackhole.consume(SystemItemMapper.mapToDto(items.get(i), childCounts[i]));
+		}
+	}
+
+	/**
+	 * ETag ответа /nodes без параметров представления
+	 * **/
+	@Benchmark
+	public void mapToETag(Blackhole blackhole) {
+		for (int i = 0; i < items.size(); i++) {
+			blackhole.consume(SystemItemMapper.mapToETag(i, null, null, null));
+		}
+	}
+
+	/**
+	 * ETag страницы /nodes с depth, childrenLimit и курсором по id элемента
+	 * **/
+	@Benchmark
+	public void mapToETagWithPage(Blackhole blackhole) {
+		for (int i = 0; i < items.size(); i++) {
+			blackhole.consume(SystemItemMapper.mapToETag(i, depth, 100, items.get(i).getId()));
+		}
+	}
+
+	@Benchmark
+	public void mapToHistoryUnit(Blackhole blackhole) {
+		for (SystemItem item : items) {
+			blackhole.consume(SystemItemMapper.mapToHistoryUnit(item));
+		}
+	}
+
+	@Benchmark
+	public void mapToArchive(Blackhole blackhole) {
+		for (SystemItem item : items) {
+			blackhole.consume(SystemItemMapper.mapToArchive(item));
+		}
+	}
+
+	@Benchmark
+	public void mapToHistoryUnitFromArchive(Blackhole blackhole) {
+		for (SystemItemArchived item : archived) {
+			blackhole.consume(SystemItemMapper.mapToHistoryUnitFromArchive(item));
+		}
+	}
+}
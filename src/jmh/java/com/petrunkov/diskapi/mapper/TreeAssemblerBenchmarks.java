@@ -0,0 +1,100 @@
+package com.petrunkov.diskapi.mapper;
+
+import com.petrunkov.diskapi.SyntheticTree;
+import com.petrunkov.diskapi.dto.SystemItemDto;
+import com.petrunkov.diskapi.model.SystemItem;
+import com.petrunkov.diskapi.model.SystemItemType;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Сборка дерева getItemInfo: прежняя группировка в Map со списками и обход через LinkedList
+ * против TreeAssembler последовательно и параллельно. Аллокации на операцию - из профилировщика gc
+ * **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TreeAssemblerBenchmarks {
+
+	@Param({"10", "100"})
+	int width;
+	@Param({"6"})
+	int depth;
+	@Param({"10000", "50000", "1000000"})
+	int nodes;
+
+	private List<SystemItem> items;
+
+	@Setup
+	public void setUp() {
+		Instant date = Instant.parse("2022-05-28T18:12:01Z");
+		items = SyntheticTree.generate(width, depth, nodes).stream()
+				.map(item -> SystemItemMapper.mapFromSystemItemImport(item, date))
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * Группировка и обход прежнего getItemInfo, см. legacyBuildTree
+	 * **/
+	@Benchmark
+	public SystemItemDto legacy() {
+		Map<String, List<SystemItem>> map = new HashMap<>();
+		SystemItem root = null;
+		for (SystemItem item : items) {
+			if (item.getId().equals(SyntheticTree.ROOT_ID)) {
+				root = item;
+			} else {
+				map.computeIfAbsent(item.getParentId(), k -> new ArrayList<>()).add(item);
+			}
+		}
+		return legacyBuildTree(root, map);
+	}
+
+	@Benchmark
+	public SystemItemDto assemble() {
+		return TreeAssembler.assemble(items, SyntheticTree.ROOT_ID, false);
+	}
+
+	@Benchmark
+	public SystemItemDto assembleParallel() {
+		return TreeAssembler.assemble(items, SyntheticTree.ROOT_ID, true);
+	}
+
+	/**
+	 * Замороженная копия удалённого StorageServiceImpl.buildTree, оставлена только для сравнения
+	 * с TreeAssembler и вместе с сервисом не меняется
+	 * **/
+	private static SystemItemDto legacyBuildTree(SystemItem root, Map<String, List<SystemItem>> map) {
+		LinkedList<SystemItem> queue = new LinkedList<>(map.getOrDefault(root.getId(), List.of()));
+		Map<String, SystemItemDto> dtoMap = new HashMap<>();
+		SystemItemDto dtoRoot = SystemItemMapper.mapToDto(root);
+		SystemItemDto dtoCur = dtoRoot;
+
+		while (!queue.isEmpty()) {
+			while (queue.peek() != null && queue.peek().getParentId().equals(dtoCur.getId())) {
+				SystemItem cur = queue.poll();
+				SystemItemDto newDto = SystemItemMapper.mapToDto(cur);
+				dtoMap.put(newDto.getId(), newDto);
+				dtoCur.getChildren().add(newDto);
+				if (cur.getType() == SystemItemType.FOLDER) {
+					queue.addAll(map.getOrDefault(cur.getId(), List.of()));
+				}
+			}
+			if (queue.peek() != null) {
+				dtoCur = dtoMap.get(queue.peek().getParentId());
+			}
+		}
+		return dtoRoot;
+	}
+}
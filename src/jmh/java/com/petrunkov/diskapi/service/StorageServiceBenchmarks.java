@@ -0,0 +1,61 @@
+package com.petrunkov.diskapi.service;
+
+import com.petrunkov.diskapi.SyntheticTree;
+import com.petrunkov.diskapi.dto.SystemItemImport;
+import com.petrunkov.diskapi.dto.SystemItemImportRequest;
+import com.petrunkov.diskapi.mapper.SystemItemMapper;
+import com.petrunkov.diskapi.model.SystemItem;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Процессорные участки StorageServiceImpl без базы: группировка поддерева по родителям
+ * и проверка запроса validateSchema. Сборка дерева - в TreeAssemblerBenchmarks
+ * **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageServiceBenchmarks {
+
+	@Param({"10", "100"})
+	int width;
+	@Param({"3", "6"})
+	int depth;
+	@Param({"10000", "100000"})
+	int nodes;
+
+	private SystemItemImportRequest request;
+	private List<SystemItem> items;
+
+	@Setup
+	public void setUp() {
+		Instant date = Instant.parse("2022-05-28T18:12:01Z");
+		List<SystemItemImport> imports = SyntheticTree.generate(width, depth, nodes);
+		request = new SystemItemImportRequest(imports, date.toString());
+		items = imports.stream()
+				.map(item -> SystemItemMapper.mapFromSystemItemImport(item, date))
+				.collect(Collectors.toList());
+	}
+
+	@Benchmark
+	public Map<String, List<SystemItem>> groupByParent() {
+		Map<String, List<SystemItem>> map = new HashMap<>();
+		StorageServiceImpl.groupByParent(items, SyntheticTree.ROOT_ID, map);
+		return map;
+	}
+
+	@Benchmark
+	public SystemItemImportRequest validateSchema() {
+		StorageServiceImpl.validateSchema(request);
+		return request;
+	}
+}
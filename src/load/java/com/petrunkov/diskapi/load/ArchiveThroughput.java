@@ -0,0 +1,103 @@
+package com.petrunkov.diskapi.load;
+
+import com.petrunkov.diskapi.model.SystemItemArchived;
+import com.petrunkov.diskapi.model.SystemItemType;
+import com.petrunkov.diskapi.repository.ArchiveRepository;
+import com.petrunkov.diskapi.repository.ArchiveWriter;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Скорость записи истории в t_archive, строк в секунду: ArchiveWriter с пачками через unnest
+ * против прежнего archive.saveAll. Строки пишутся транзакциями по load.archive.transaction-rows,
+ * как их пишет импорт. Перед замером каждый способ прогревается, строки прогона удаляются по root_id
+ * **/
+public class ArchiveThroughput {
+
+	private static final String ROOT_ID = "archive-throughput";
+	private static final Instant DATE = Instant.parse("2022-05-28T18:12:01Z");
+
+	private final LoadConfig config;
+	private final ArchiveWriter archiveWriter;
+	private final ArchiveRepository archiveRepository;
+	private final JdbcTemplate jdbcTemplate;
+	private final TransactionTemplate transaction;
+
+	ArchiveThroughput(LoadConfig config, ConfigurableApplicationContext context) {
+		this.config = config;
+		this.archiveWriter = context.getBean(ArchiveWriter.class);
+		this.archiveRepository = context.getBean(ArchiveRepository.class);
+		this.jdbcTemplate = context.getBean(JdbcTemplate.class);
+		this.transaction = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+	}
+
+	public static void main(String[] args) {
+		LoadConfig config = new LoadConfig();
+		try (ConfigurableApplicationContext context = LoadHarness.startApplication(config)) {
+			new ArchiveThroughput(config, context).run();
+		}
+	}
+
+	void run() {
+		System.out.printf("archive: rows=%d transaction-rows=%d target=%d rows/s%n",
+				config.archiveRows, config.archiveTransactionRows, config.archiveTarget);
+		double unnest = measure("unnest", archiveWriter::addAll);
+		double saveAll = measure("saveAll", archiveRepository::saveAll);
+		System.out.printf("unnest/saveAll: %.1fx%n", unnest / saveAll);
+		System.out.printf("unnest %s target %d rows/s%n", unnest >= config.archiveTarget ? "meets" : "is below",
+				config.archiveTarget);
+	}
+
+	/**
+	 * Прогрев на десятой части строк, затем замер. Возвращает строк в секунду
+	 * **/
+	private double measure(String name, Consumer<List<SystemItemArchived>> writer) {
+		write(Math.max(config.archiveTransactionRows, config.archiveRows / 10), writer);
+		clear();
+		long start = System.nanoTime();
+		write(config.archiveRows, writer);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		clear();
+		double rate = config.archiveRows / seconds;
+		System.out.printf("%-8s %d rows in %.2f s: %.0f rows/s%n", name, config.archiveRows, seconds, rate);
+		return rate;
+	}
+
+	private void write(int rows, Consumer<List<SystemItemArchived>> writer) {
+		for (int from = 0; from < rows; from += config.archiveTransactionRows) {
+			List<SystemItemArchived> chunk = rows(from, Math.min(rows, from + config.archiveTransactionRows));
+			transaction.executeWithoutResult(status -> writer.accept(chunk));
+		}
+	}
+
+	/**
+	 * Версии тысячи файлов с разными датами: буфер ArchiveWriter не сливает строки
+	 * **/
+	private static List<SystemItemArchived> rows(int from, int to) {
+		List<SystemItemArchived> rows = new ArrayList<>(to - from);
+		for (int i = from; i < to; i++) {
+			String id = ROOT_ID + "-" + (i % 1000);
+			rows.add(SystemItemArchived.builder()
+					.id(id)
+					.url("/" + id)
+					.date(DATE.plusSeconds(i))
+					.parentId(ROOT_ID)
+					.type(SystemItemType.FILE)
+					.size((long) i)
+					.rootId(ROOT_ID)
+					.build());
+		}
+		return rows;
+	}
+
+	private void clear() {
+		jdbcTemplate.update("DELETE FROM t_archive WHERE root_id = ?", ROOT_ID);
+	}
+}
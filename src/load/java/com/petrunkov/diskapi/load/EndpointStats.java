@@ -0,0 +1,100 @@
+package com.petrunkov.diskapi.load;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Статистика одной операции. Задержки копятся в логарифмической гистограмме с шагом 2%
+ * от 1 мкс до ~100 с, поэтому запись не аллоцирует и не блокирует потоки
+ * **/
+class EndpointStats {
+
+	private static final double BUCKET_RATIO = 1.02;
+	private static final int BUCKETS = 1000;
+
+	private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+	private final LongAdder clientErrors = new LongAdder();
+	private final LongAdder serverErrors = new LongAdder();
+	private final LongAdder ioErrors = new LongAdder();
+	private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+	// Прирост счётчиков сервиса за замер, NaN - операция не пишет или метрика недоступна
+	private double transactionRetries = Double.NaN;
+	private double transactionAborts = Double.NaN;
+
+	void record(long micros, int status) {
+		histogram.incrementAndGet(bucket(micros));
+		maxMicros.accumulate(micros);
+		if (status < 400) {
+			return;
+		}
+		if (status < 500) {
+			clientErrors.increment();
+		} else {
+			serverErrors.increment();
+		}
+	}
+
+	void recordIoError() {
+		ioErrors.increment();
+	}
+
+	void recordTransactions(double retries, double aborts) {
+		transactionRetries = retries;
+		transactionAborts = aborts;
+	}
+
+	long count() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += histogram.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Верхняя граница корзины, в которую попадает квантиль, в миллисекундах
+	 * **/
+	double percentileMillis(double percentile) {
+		long count = count();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile / 100 * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += histogram.get(i);
+			if (seen >= rank) {
+				return Math.pow(BUCKET_RATIO, i + 1) / 1000;
+			}
+		}
+		return maxMicros.get() / 1000.0;
+	}
+
+	String format(String endpoint, double seconds) {
+		long count = count();
+		return String.format("%-24s %9d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f %8d %8d %8d %8s %8s",
+				endpoint, count, count / seconds,
+				percentileMillis(50), percentileMillis(90), percentileMillis(99), percentileMillis(99.9),
+				maxMicros.get() / 1000.0,
+				clientErrors.sum(), serverErrors.sum(), ioErrors.sum(),
+				formatCount(transactionRetries), formatCount(transactionAborts));
+	}
+
+	static String header() {
+		return String.format("%-24s %9s %10s %9s %9s %9s %9s %9s %8s %8s %8s %8s %8s",
+				"endpoint", "requests", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms",
+				"4xx", "5xx", "io", "retries", "aborts");
+	}
+
+	private static String formatCount(double value) {
+		return Double.isNaN(value) ? "-" : String.format("%.0f", value);
+	}
+
+	private static int bucket(long micros) {
+		if (micros <= 1) {
+			return 0;
+		}
+		return Math.min(BUCKETS - 1, (int) (Math.log(micros) / Math.log(BUCKET_RATIO)));
+	}
+}
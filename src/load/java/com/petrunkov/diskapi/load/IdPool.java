@@ -0,0 +1,54 @@
+package com.petrunkov.diskapi.load;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Множество id с выбором случайного элемента и удалением за O(1)
+ * **/
+class IdPool {
+
+	private final List<String> ids = new ArrayList<>();
+	private final Map<String, Integer> positions = new HashMap<>();
+
+	synchronized void add(String id) {
+		if (positions.putIfAbsent(id, ids.size()) == null) {
+			ids.add(id);
+		}
+	}
+
+	synchronized String random(Random random) {
+		return ids.isEmpty() ? null : ids.get(random.nextInt(ids.size()));
+	}
+
+	/**
+	 * Случайный id, удалённый из множества, чтобы его не выбрал другой поток
+	 * **/
+	synchronized String take(Random random) {
+		if (ids.isEmpty()) {
+			return null;
+		}
+		String id = ids.get(random.nextInt(ids.size()));
+		remove(id);
+		return id;
+	}
+
+	synchronized void remove(String id) {
+		Integer position = positions.remove(id);
+		if (position == null) {
+			return;
+		}
+		String last = ids.remove(ids.size() - 1);
+		if (position < ids.size()) {
+			ids.set(position, last);
+			positions.put(last, position);
+		}
+	}
+
+	synchronized int size() {
+		return ids.size();
+	}
+}
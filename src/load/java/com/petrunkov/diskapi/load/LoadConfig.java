@@ -0,0 +1,60 @@
+package com.petrunkov.diskapi.load;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Параметры прогона из системных свойств load.*. Значения по умолчанию дают короткий смешанный прогон
+ * **/
+class LoadConfig {
+
+	// Адрес запущенного сервиса. Пусто - приложение запускается в этом же процессе
+	final String baseUrl = property("load.base-url", "");
+	final String datasourceUrl = property("load.datasource.url", "jdbc:postgresql://localhost:5432/disk-api");
+	final String datasourceUsername = property("load.datasource.username", "root");
+	final String datasourcePassword = property("load.datasource.password", "password");
+	// Дополнительные свойства приложения, например --disk-api.hierarchy.engine=closure
+	final String appArgs = property("load.app-args", "");
+
+	final int threads = Integer.parseInt(property("load.threads", "16"));
+	final Duration warmup = Duration.parse(property("load.warmup", "PT10S"));
+	final Duration duration = Duration.parse(property("load.duration", "PT60S"));
+	final long seed = Long.parseLong(property("load.seed", "42"));
+
+	// wide - папка с width файлами, deep - цепочка из depth папок, balanced - width потомков до глубины depth
+	final String shape = property("load.shape", "balanced");
+	final int roots = Integer.parseInt(property("load.roots", "20"));
+	final int width = Integer.parseInt(property("load.width", "5"));
+	final int depth = Integer.parseInt(property("load.depth", "4"));
+	// Доля импортов, переносящих существующий элемент в другую папку того же дерева
+	final double reparentRatio = Double.parseDouble(property("load.reparent-ratio", "0.2"));
+	// Веса операций
+	final Map<Operation, Integer> mix = parseMix(property("load.mix", "imports=40,nodes=40,updates=5,history=10,delete=5"));
+
+	// Замер ArchiveThroughput: число строк, строк в транзакции и ожидаемая скорость unnest, строк в секунду
+	final int archiveRows = Integer.parseInt(property("load.archive.rows", "500000"));
+	final int archiveTransactionRows = Integer.parseInt(property("load.archive.transaction-rows", "10000"));
+	final long archiveTarget = Long.parseLong(property("load.archive.target", "100000"));
+
+	private static String property(String name, String defaultValue) {
+		return System.getProperty(name, defaultValue);
+	}
+
+	private static Map<Operation, Integer> parseMix(String mix) {
+		Map<Operation, Integer> weights = new LinkedHashMap<>();
+		for (String entry : mix.split(",")) {
+			String[] parts = entry.trim().split("=");
+			weights.put(Operation.valueOf(parts[0].trim().toUpperCase()), Integer.parseInt(parts[1].trim()));
+		}
+		return weights;
+	}
+
+	@Override
+	public String toString() {
+		return "shape=" + shape + " roots=" + roots + " width=" + width + " depth=" + depth +
+				" reparent-ratio=" + reparentRatio + " mix=" + mix + " threads=" + threads +
+				" warmup=" + warmup + " duration=" + duration + " seed=" + seed +
+				(appArgs.isEmpty() ? "" : " app-args=" + appArgs);
+	}
+}
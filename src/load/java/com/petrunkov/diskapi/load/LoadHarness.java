@@ -0,0 +1,241 @@
+package com.petrunkov.diskapi.load;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.petrunkov.diskapi.DiskApiApplication;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Нагрузочный прогон сервиса смешанным потоком импортов, чтений, истории и удалений.
+ * Сначала создаёт деревья заданной формы, затем threads потоков шлют запросы в пропорциях load.mix.
+ * Статистика за разогрев отбрасывается, в конце печатаются пропускная способность, квантили
+ * задержек и ошибки по каждой операции. Повторы транзакций после конфликтов и отказы после всех попыток
+ * читаются из actuator сервиса до и после замера по тегу operation и выводятся у своей операции,
+ * ожидания блокировок деревьев - общим итогом
+ * **/
+public class LoadHarness {
+
+	private static final String RETRIES = "diskapi.transactions.retries";
+	private static final String ABORTS = "diskapi.transactions.aborts";
+	private static final String LOCK_WAITS = "diskapi.transactions.lock.waits";
+
+	private final LoadConfig config;
+	private final String baseUrl;
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final HttpClient client;
+	private final Workload workload;
+	private final Operation[] operations;
+	private final int[] cumulativeWeights;
+	private volatile Map<Operation, EndpointStats> stats = newStats();
+
+	LoadHarness(LoadConfig config, String baseUrl) {
+		this.config = config;
+		this.baseUrl = baseUrl;
+		this.client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.connectTimeout(Duration.ofSeconds(10))
+				.build();
+		this.workload = new Workload(config, baseUrl, objectMapper);
+		this.operations = config.mix.keySet().toArray(new Operation[0]);
+		this.cumulativeWeights = new int[operations.length];
+		int total = 0;
+		for (int i = 0; i < operations.length; i++) {
+			total += config.mix.get(operations[i]);
+			cumulativeWeights[i] = total;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadConfig config = new LoadConfig();
+		ConfigurableApplicationContext context = null;
+		String baseUrl = config.baseUrl;
+		if (baseUrl.isEmpty()) {
+			context = startApplication(config);
+			baseUrl = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+		}
+		try {
+			new LoadHarness(config, baseUrl).run();
+		} finally {
+			if (context != null) {
+				context.close();
+			}
+		}
+	}
+
+	static ConfigurableApplicationContext startApplication(LoadConfig config) {
+		List<String> args = new ArrayList<>(List.of(
+				"--server.port=0",
+				"--spring.datasource.url=" + config.datasourceUrl,
+				"--spring.datasource.username=" + config.datasourceUsername,
+				"--spring.datasource.password=" + config.datasourcePassword,
+				// Лог на каждый импорт искажает задержки
+				"--logging.level.com.petrunkov.diskapi=WARN"));
+		if (!config.appArgs.isBlank()) {
+			args.addAll(List.of(config.appArgs.trim().split("\\s+")));
+		}
+		return SpringApplication.run(DiskApiApplication.class, args.toArray(new String[0]));
+	}
+
+	void run() throws Exception {
+		System.out.println("load: " + config);
+		ExecutorService executor = Executors.newFixedThreadPool(config.threads);
+		try {
+			long seedStart = System.nanoTime();
+			seed(executor);
+			System.out.printf("seeded %d trees in %.1f s%n", workload.treeCount(), (System.nanoTime() - seedStart) / 1e9);
+
+			long start = System.nanoTime();
+			long measureStart = start + config.warmup.toNanos();
+			long end = measureStart + config.duration.toNanos();
+			List<Future<?>> workers = new ArrayList<>();
+			for (int i = 0; i < config.threads; i++) {
+				Random random = new Random(config.seed + i);
+				workers.add(executor.submit(() -> work(random, end)));
+			}
+			Thread.sleep(Math.max(0, TimeUnit.NANOSECONDS.toMillis(measureStart - System.nanoTime())));
+			// Замер начинается с чистой статистики
+			stats = newStats();
+			Map<String, Double> countersBefore = readTransactionCounters();
+			for (Future<?> worker : workers) {
+				worker.get();
+			}
+			double seconds = (System.nanoTime() - measureStart) / 1e9;
+			Map<String, Double> countersAfter = readTransactionCounters();
+			Map<Operation, EndpointStats> measured = Map.copyOf(stats);
+			for (Operation operation : Operation.values()) {
+				if (operation.transaction != null) {
+					measured.get(operation).recordTransactions(
+							delta(countersBefore, countersAfter, RETRIES + "|" + operation.transaction),
+							delta(countersBefore, countersAfter, ABORTS + "|" + operation.transaction));
+				}
+			}
+			report(measured, seconds);
+			double lockWaits = delta(countersBefore, countersAfter, LOCK_WAITS);
+			System.out.printf("%s: %s%n", LOCK_WAITS, Double.isNaN(lockWaits) ? "unavailable" : String.format("%.0f", lockWaits));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Деревья создаются параллельно, запросы одного дерева - по порядку
+	 * **/
+	private void seed(ExecutorService executor) throws Exception {
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < workload.treeCount(); i++) {
+			int index = i;
+			futures.add(executor.submit(() -> {
+				for (Workload.Request request : workload.seed(index)) {
+					HttpResponse<String> response = client.send(request.http(), HttpResponse.BodyHandlers.ofString());
+					if (response.statusCode() != 200) {
+						throw new IllegalStateException("Seed import failed: " + response.statusCode() + " " + response.body());
+					}
+					request.onSuccess().run();
+				}
+				return null;
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+	}
+
+	private void work(Random random, long end) {
+		while (System.nanoTime() < end) {
+			Workload.Request request = workload.next(pick(random), random);
+			long started = System.nanoTime();
+			try {
+				HttpResponse<String> response = client.send(request.http(), HttpResponse.BodyHandlers.ofString());
+				long micros = (System.nanoTime() - started) / 1000;
+				stats.get(request.operation()).record(micros, response.statusCode());
+				if (response.statusCode() == 200) {
+					request.onSuccess().run();
+				}
+			} catch (IOException e) {
+				stats.get(request.operation()).recordIoError();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private Operation pick(Random random) {
+		int value = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+		for (int i = 0; i < operations.length; i++) {
+			if (value < cumulativeWeights[i]) {
+				return operations[i];
+			}
+		}
+		return operations[operations.length - 1];
+	}
+
+	private void report(Map<Operation, EndpointStats> stats, double seconds) {
+		System.out.printf("measured %.1f s%n", seconds);
+		System.out.println(EndpointStats.header());
+		for (Operation operation : Operation.values()) {
+			System.out.println(stats.get(operation).format(operation.endpoint, seconds));
+		}
+	}
+
+	private static double delta(Map<String, Double> before, Map<String, Double> after, String key) {
+		return after.get(key) - before.get(key);
+	}
+
+	/**
+	 * Текущие значения счётчиков транзакций сервиса: повторы и отказы по каждой пишущей операции
+	 * под ключом "метрика|операция" и ожидания блокировок. NaN - метрика недоступна
+	 * **/
+	private Map<String, Double> readTransactionCounters() throws IOException, InterruptedException {
+		Map<String, Double> counters = new HashMap<>();
+		for (Operation operation : Operation.values()) {
+			if (operation.transaction == null) {
+				continue;
+			}
+			for (String metric : List.of(RETRIES, ABORTS)) {
+				counters.put(metric + "|" + operation.transaction,
+						readCounter(metric + "?tag=operation:" + operation.transaction));
+			}
+		}
+		counters.put(LOCK_WAITS, readCounter(LOCK_WAITS));
+		return counters;
+	}
+
+	private double readCounter(String query) throws IOException, InterruptedException {
+		HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/actuator/metrics/" + query))
+				.timeout(Duration.ofSeconds(10))
+				.GET()
+				.build();
+		HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+		if (response.statusCode() != 200) {
+			return Double.NaN;
+		}
+		// Счётчик отдаётся одним измерением COUNT, суммой по остальным тегам
+		return objectMapper.readTree(response.body()).path("measurements").path(0).path("value").asDouble(Double.NaN);
+	}
+
+	private static Map<Operation, EndpointStats> newStats() {
+		Map<Operation, EndpointStats> stats = new EnumMap<>(Operation.class);
+		for (Operation operation : Operation.values()) {
+			stats.put(operation, new EndpointStats());
+		}
+		return stats;
+	}
+}
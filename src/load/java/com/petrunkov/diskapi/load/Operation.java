@@ -0,0 +1,21 @@
+package com.petrunkov.diskapi.load;
+
+/**
+ * Нагружаемые операции, по каждой ведётся своя статистика
+ * **/
+enum Operation {
+	IMPORTS("POST /imports", "import"),
+	NODES("GET /nodes/{id}", null),
+	UPDATES("GET /updates", null),
+	HISTORY("GET /node/{id}/history", null),
+	DELETE("DELETE /delete/{id}", "delete");
+
+	final String endpoint;
+	// Тег operation счётчиков повторов и отказов транзакций сервиса, null - операция только читает
+	final String transaction;
+
+	Operation(String endpoint, String transaction) {
+		this.endpoint = endpoint;
+		this.transaction = transaction;
+	}
+}
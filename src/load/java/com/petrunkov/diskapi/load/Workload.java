@@ -0,0 +1,252 @@
+package com.petrunkov.diskapi.load;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.petrunkov.diskapi.dto.SystemItemImport;
+import com.petrunkov.diskapi.dto.SystemItemImportRequest;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Модель деревьев под нагрузкой: какие папки и файлы существуют и где они лежат.
+ * Строит запросы и выбирает их цели так, чтобы почти все запросы были корректны.
+ * Модель меняется только после успешного ответа
+ * **/
+class Workload {
+
+	private static final int IMPORT_CHUNK = 1000;
+	private static final Duration TIMEOUT = Duration.ofSeconds(60);
+
+	/**
+	 * Запрос и изменение модели, которое применяется при успешном ответе
+	 * **/
+	record Request(Operation operation, HttpRequest http, Runnable onSuccess) {
+	}
+
+	private static class Tree {
+		final String rootId;
+		final IdPool folders = new IdPool();
+		final IdPool files = new IdPool();
+		// id -> parentId, под блокировкой дерева
+		final Map<String, String> parents = new HashMap<>();
+
+		Tree(String rootId) {
+			this.rootId = rootId;
+		}
+	}
+
+	private final LoadConfig config;
+	private final String baseUrl;
+	private final ObjectMapper objectMapper;
+	private final String prefix;
+	private final List<Tree> trees = new ArrayList<>();
+	private final Instant start;
+	// Даты импортов строго возрастают, по миллисекунде на запрос
+	private final AtomicLong clock = new AtomicLong();
+	private final AtomicLong sequence = new AtomicLong();
+
+	Workload(LoadConfig config, String baseUrl, ObjectMapper objectMapper) {
+		this.config = config;
+		this.baseUrl = baseUrl;
+		this.objectMapper = objectMapper;
+		this.start = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+		// Свои id в каждом прогоне, чтобы не пересекаться с данными прошлых прогонов
+		this.prefix = "load-" + start.getEpochSecond() + "-";
+		for (int i = 0; i < config.roots; i++) {
+			trees.add(new Tree(prefix + "r" + i));
+		}
+	}
+
+	int treeCount() {
+		return trees.size();
+	}
+
+	/**
+	 * Запросы, создающие дерево index формы config.shape, по IMPORT_CHUNK элементов
+	 * **/
+	List<Request> seed(int index) {
+		Tree tree = trees.get(index);
+		List<SystemItemImport> items = new ArrayList<>();
+		items.add(folder(tree.rootId, null));
+		switch (config.shape) {
+			case "wide" -> {
+				for (int i = 0; i < config.width; i++) {
+					items.add(file(tree.rootId + "-f" + i, tree.rootId, i + 1));
+				}
+			}
+			case "deep" -> {
+				String parentId = tree.rootId;
+				for (int level = 1; level <= config.depth; level++) {
+					String id = tree.rootId + "-d" + level;
+					items.add(folder(id, parentId));
+					items.add(file(id + "-f", id, level));
+					parentId = id;
+				}
+			}
+			case "balanced" -> {
+				List<String> level = List.of(tree.rootId);
+				for (int d = 1; d <= config.depth; d++) {
+					List<String> next = new ArrayList<>();
+					for (String parentId : level) {
+						for (int i = 0; i < config.width; i++) {
+							String id = parentId + "-" + i;
+							items.add(d == config.depth ? file(id, parentId, i + 1) : folder(id, parentId));
+							next.add(id);
+						}
+					}
+					level = next;
+				}
+			}
+			default -> throw new IllegalArgumentException("Unknown shape " + config.shape);
+		}
+		List<Request> requests = new ArrayList<>();
+		for (int i = 0; i < items.size(); i += IMPORT_CHUNK) {
+			List<SystemItemImport> chunk = items.subList(i, Math.min(items.size(), i + IMPORT_CHUNK));
+			requests.add(new Request(Operation.IMPORTS, importRequest(chunk), () -> chunk.forEach(item -> track(tree, item))));
+		}
+		return requests;
+	}
+
+	Request next(Operation operation, Random random) {
+		Tree tree = trees.get(random.nextInt(trees.size()));
+		return switch (operation) {
+			case IMPORTS -> random.nextDouble() < config.reparentRatio ? reparent(tree, random) : addFile(tree, random);
+			case NODES -> get(Operation.NODES, "/nodes/" + encode(tree.folders.random(random)));
+			case UPDATES -> get(Operation.UPDATES, "/updates?date=" + now());
+			case HISTORY -> history(tree, random);
+			case DELETE -> delete(tree, random);
+		};
+	}
+
+	private Request addFile(Tree tree, Random random) {
+		String parentId = tree.folders.random(random);
+		SystemItemImport item = file(prefix + "n" + sequence.incrementAndGet(), parentId, 1 + random.nextInt(1000));
+		return new Request(Operation.IMPORTS, importRequest(List.of(item)), () -> track(tree, item));
+	}
+
+	/**
+	 * Перенести файл или папку в другую папку того же дерева. Папка не переносится в своё поддерево
+	 * **/
+	private Request reparent(Tree tree, Random random) {
+		boolean moveFolder = random.nextBoolean() && tree.folders.size() > 1;
+		String id = moveFolder ? tree.folders.random(random) : tree.files.random(random);
+		String target = tree.folders.random(random);
+		if (id == null || id.equals(tree.rootId) || (moveFolder && isInSubtree(tree, target, id))) {
+			return addFile(tree, random);
+		}
+		SystemItemImport item = moveFolder ? folder(id, target) : file(id, target, 1 + random.nextInt(1000));
+		return new Request(Operation.IMPORTS, importRequest(List.of(item)), () -> track(tree, item));
+	}
+
+	private Request history(Tree tree, Random random) {
+		String id = tree.files.random(random);
+		if (id == null) {
+			return get(Operation.NODES, "/nodes/" + encode(tree.rootId));
+		}
+		return get(Operation.HISTORY, "/node/" + encode(id) + "/history?dateStart=" + start + "&dateEnd=" + now());
+	}
+
+	private Request delete(Tree tree, Random random) {
+		String id = tree.files.take(random);
+		if (id == null) {
+			return get(Operation.NODES, "/nodes/" + encode(tree.rootId));
+		}
+		HttpRequest http = HttpRequest.newBuilder(URI.create(baseUrl + "/delete/" + encode(id) + "?date=" + tick()))
+				.timeout(TIMEOUT)
+				.DELETE()
+				.build();
+		return new Request(Operation.DELETE, http, () -> {
+			synchronized (tree) {
+				tree.parents.remove(id);
+			}
+		});
+	}
+
+	private boolean isInSubtree(Tree tree, String id, String ancestorId) {
+		synchronized (tree) {
+			for (String current = id; current != null; current = tree.parents.get(current)) {
+				if (current.equals(ancestorId)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private void track(Tree tree, SystemItemImport item) {
+		synchronized (tree) {
+			tree.parents.put(item.getId(), item.getParentId());
+		}
+		if ("FOLDER".equals(item.getType())) {
+			tree.folders.add(item.getId());
+		} else {
+			tree.files.add(item.getId());
+		}
+	}
+
+	private HttpRequest importRequest(List<SystemItemImport> items) {
+		String body;
+		try {
+			body = objectMapper.writeValueAsString(new SystemItemImportRequest(new ArrayList<>(items), tick()));
+		} catch (JsonProcessingException e) {
+			throw new IllegalStateException(e);
+		}
+		return HttpRequest.newBuilder(URI.create(baseUrl + "/imports"))
+				.timeout(TIMEOUT)
+				.header("Content-Type", "application/json")
+				.POST(HttpRequest.BodyPublishers.ofString(body))
+				.build();
+	}
+
+	private Request get(Operation operation, String path) {
+		return new Request(operation, HttpRequest.newBuilder(URI.create(baseUrl + path))
+				.timeout(TIMEOUT)
+				.GET()
+				.build(), () -> { });
+	}
+
+	/**
+	 * Дата следующей операции записи
+	 * **/
+	private String tick() {
+		return start.plusMillis(clock.incrementAndGet()).toString();
+	}
+
+	private String now() {
+		return start.plusMillis(clock.get() + 1).toString();
+	}
+
+	private static String encode(String id) {
+		return URLEncoder.encode(id, StandardCharsets.UTF_8);
+	}
+
+	private static SystemItemImport folder(String id, String parentId) {
+		return SystemItemImport.builder()
+				.id(id)
+				.parentId(parentId)
+				.type("FOLDER")
+				.build();
+	}
+
+	private static SystemItemImport file(String id, String parentId, long size) {
+		return SystemItemImport.builder()
+				.id(id)
+				.parentId(parentId)
+				.type("FILE")
+				.url("/" + id)
+				.size(size)
+				.build();
+	}
+}
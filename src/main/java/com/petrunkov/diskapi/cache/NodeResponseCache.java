@@ -0,0 +1,172 @@
+package com.petrunkov.diskapi.cache;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.petrunkov.diskapi.config.DiskApiProperties;
+import com.petrunkov.diskapi.dto.SystemItemDto;
+import com.petrunkov.diskapi.mapper.SystemItemMapper;
+import com.petrunkov.diskapi.model.SystemItem;
+import com.petrunkov.diskapi.service.StorageChangedEvent;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Готовые JSON-ответы GET /nodes/{id} без ограничений глубины и числа детей.
+ * Кэш ограничен суммарным размером ответов, ответы больше max-entry-size не кэшируются.
+ * После коммита импорта или удаления сбрасываются записи сохранённых элементов и их предков:
+ * цепочки предков и все удалённые элементы поддерева уже входят в StorageChangedEvent. Транзакция, изменившая больше
+ * max-pending-ids элементов, id не копит и сбрасывает после коммита весь кэш.
+ * Статистика - метрики cache.gets, cache.evictions и cache.size с тегом cache=nodes
+ * **/
+@Component
+public class NodeResponseCache {
+
+    // Ключ, ETag и заголовки записи Caffeine
+    private static final int ENTRY_OVERHEAD = 64;
+
+    /**
+     * Тело ответа и его ETag
+     * **/
+    public record Entry(byte[] body, String eTag) {
+    }
+
+    private final ObjectMapper objectMapper;
+    private final boolean enabled;
+    private final long maxEntrySize;
+    private final int maxPendingIds;
+    private final Cache<String, Entry> cache;
+    // Растёт перед каждым сбросом; ответ, прочитанный до сброса, не остаётся в кэше
+    private final AtomicLong generation = new AtomicLong();
+
+    public NodeResponseCache(ObjectMapper objectMapper, DiskApiProperties properties, MeterRegistry registry) {
+        this.objectMapper = objectMapper;
+        DiskApiProperties.Cache cacheProperties = properties.getCache();
+        this.enabled = cacheProperties.isEnabled();
+        this.maxEntrySize = cacheProperties.getMaxEntrySize().toBytes();
+        this.maxPendingIds = cacheProperties.getMaxPendingIds();
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(cacheProperties.getMaxWeight().toBytes())
+                .weigher((String id, Entry entry) -> entry.body().length + id.length() + ENTRY_OVERHEAD)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(registry, cache, "nodes");
+        Gauge.builder("diskapi.nodes.cache.weight", cache,
+                        c -> c.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0L)).orElse(0L))
+                .description("Суммарный вес ответов в кэше, байт")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Optional<Entry> find(String id) {
+        return Optional.ofNullable(cache.getIfPresent(id));
+    }
+
+    /**
+     * Построить ответ через loader после промаха find и положить его в кэш. Исключения loader пробрасываются
+     * **/
+    public Entry load(String id, Supplier<SystemItemDto> loader) {
+        long before = generation.get();
+        SystemItemDto dto = loader.get();
+        Entry entry;
+        try {
+            entry = new Entry(objectMapper.writeValueAsBytes(dto), SystemItemMapper.mapToETag(dto.getVersion(), null, null, null));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+        if (entry.body().length <= maxEntrySize) {
+            cache.put(id, entry);
+            // Сброс между чтением и записью в кэш: ответ мог быть прочитан до коммита
+            if (generation.get() != before) {
+                cache.asMap().remove(id, entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Накопить затронутые элементы транзакции и сбросить их записи после коммита
+     * **/
+    @EventListener
+    public void onStorageChanged(StorageChangedEvent event) {
+        if (!enabled) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            Changes changes = new Changes(maxPendingIds);
+            changes.add(event);
+            invalidate(changes);
+            return;
+        }
+        Changes pending = (Changes) TransactionSynchronizationManager.getResource(this);
+        if (pending == null) {
+            Changes changes = new Changes(maxPendingIds);
+            TransactionSynchronizationManager.bindResource(this, changes);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    invalidate(changes);
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(NodeResponseCache.this);
+                }
+            });
+            pending = changes;
+        }
+        pending.add(event);
+    }
+
+    /**
+     * Поколение увеличивается до сброса записей: ответ, записанный в кэш до сброса, им удаляется,
+     * записанный после - удаляется самим читателем
+     * **/
+    private void invalidate(Changes changes) {
+        generation.incrementAndGet();
+        if (changes.overflow) {
+            cache.invalidateAll();
+            return;
+        }
+        cache.invalidateAll(changes.ids);
+    }
+
+    private static class Changes {
+        private final int limit;
+        private final Set<String> ids = new HashSet<>();
+        // id больше limit: сбрасывается весь кэш
+        private boolean overflow;
+
+        Changes(int limit) {
+            this.limit = limit;
+        }
+
+        void add(StorageChangedEvent event) {
+            if (overflow) {
+                return;
+            }
+            event.getSavedItems().stream().map(SystemItem::getId).forEach(ids::add);
+            ids.addAll(event.getDeletedIds());
+            if (ids.size() > limit) {
+                overflow = true;
+                ids.clear();
+            }
+        }
+    }
+}
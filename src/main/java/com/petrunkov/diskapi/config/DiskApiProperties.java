@@ -0,0 +1,120 @@
+package com.petrunkov.diskapi.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.time.Period;
+
+/**
+ * Настройки приложения с префиксом disk-api
+ * **/
+@Data
+@ConfigurationProperties(prefix = "disk-api")
+public class DiskApiProperties {
+
+    private final Hierarchy hierarchy = new Hierarchy();
+    private final Index index = new Index();
+    private final Cache cache = new Cache();
+    private final Nodes nodes = new Nodes();
+    private final Streaming streaming = new Streaming();
+    private final Imports imports = new Imports();
+    private final Concurrency concurrency = new Concurrency();
+    private final Async async = new Async();
+    private final GroupCommit groupCommit = new GroupCommit();
+    private final Archive archive = new Archive();
+    private final Snapshots snapshots = new Snapshots();
+
+    @Data
+    public static class Hierarchy {
+        // path, closure или recursive
+        private String engine = "path";
+    }
+
+    @Data
+    public static class Index {
+        // Обслуживать GET /nodes/{id} из дерева в памяти
+        private boolean enabled = false;
+        // Начальная ёмкость массивов индекса
+        private int initialCapacity = 1024;
+        // Размер выборки при загрузке индекса из базы
+        private int fetchSize = 10_000;
+        // Сколько id изменённых элементов копить за транзакцию, сверх этого индекс после коммита загружается заново
+        private int maxPendingIds = 100_000;
+    }
+
+    @Data
+    public static class Cache {
+        // Отдавать GET /nodes/{id} из кэша готовых JSON-ответов
+        private boolean enabled = false;
+        // Суммарный размер ответов в кэше, сверх него вытесняются редко используемые
+        private DataSize maxWeight = DataSize.ofMegabytes(64);
+        // Ответы больше этого размера не кэшируются
+        private DataSize maxEntrySize = DataSize.ofMegabytes(4);
+        // Сколько id изменённых элементов копить за транзакцию, сверх этого после коммита сбрасывается весь кэш
+        private int maxPendingIds = 10_000;
+    }
+
+    @Data
+    public static class Nodes {
+        // С какого размера поддерева GET /nodes/{id} собирает дерево параллельно
+        private int parallelThreshold = 50_000;
+    }
+
+    @Data
+    public static class Streaming {
+        // Размер выборки курсора при потоковой выдаче дерева
+        private int fetchSize = 1000;
+    }
+
+    @Data
+    public static class Imports {
+        // Число элементов, применяемых за один шаг потокового импорта
+        private int chunkSize = 1000;
+    }
+
+    @Data
+    public static class Concurrency {
+        // serializable или advisory
+        private String mode = "serializable";
+        // Число попыток операции записи при конфликте транзакций
+        private int maxAttempts = 3;
+    }
+
+    @Data
+    public static class Async {
+        // Потоки, выполняющие асинхронные импорты
+        private int threads = 4;
+        // Максимум задач в очереди и в работе, сверх него POST /imports/async отвечает 429
+        private int queueCapacity = 100;
+        // Сколько хранить статус завершённой задачи
+        private Duration retention = Duration.ofHours(1);
+    }
+
+    @Data
+    public static class GroupCommit {
+        // Объединять одновременные POST /imports в одну транзакцию
+        private boolean enabled = false;
+        // Сколько первый запрос группы ждёт остальные
+        private Duration window = Duration.ofMillis(5);
+        // Группа закрывается досрочно, набрав столько элементов
+        private int maxItems = 500;
+    }
+
+    @Data
+    public static class Archive {
+        // Сколько строк истории копить в транзакции до вставки в t_archive
+        private int batchSize = 10_000;
+        // Сколько месячных секций t_archive создавать заранее
+        private int partitionsAhead = 3;
+        // Срок хранения истории, старшие секции удаляются целиком. Не задан - история хранится всегда
+        private Period retention;
+    }
+
+    @Data
+    public static class Snapshots {
+        // Снимать деревья по расписанию disk-api.snapshots.cron для GET /nodes/{id}?at=
+        private boolean enabled = true;
+    }
+}
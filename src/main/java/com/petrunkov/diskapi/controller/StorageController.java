@@ -1,11 +1,17 @@
 package com.petrunkov.diskapi.controller;
 
+import com.petrunkov.diskapi.cache.NodeResponseCache;
+import com.petrunkov.diskapi.dto.ImportJobDto;
 import com.petrunkov.diskapi.dto.SystemItemDto;
 import com.petrunkov.diskapi.dto.SystemItemHistoryResponse;
 import com.petrunkov.diskapi.dto.SystemItemImportRequest;
 import com.petrunkov.diskapi.exception.ErrorBody;
 import com.petrunkov.diskapi.exception.ValidationErrorException;
+import com.petrunkov.diskapi.mapper.SystemItemMapper;
+import com.petrunkov.diskapi.service.ImportGroupCommitter;
+import com.petrunkov.diskapi.service.ImportJobService;
 import com.petrunkov.diskapi.service.StorageServiceImpl;
+import com.petrunkov.diskapi.service.TreeSnapshotService;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.media.Content;
@@ -13,15 +19,29 @@ import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import lombok.AllArgsConstructor;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
+import java.util.Optional;
 
 @RestController
 @AllArgsConstructor
 public class StorageController {
+    private static final String NDJSON = "application/x-ndjson";
+
     private final StorageServiceImpl storageService;
+    private final ImportJobService importJobService;
+    private final ImportGroupCommitter importGroupCommitter;
+    private final TreeSnapshotService treeSnapshotService;
+    private final NodeResponseCache nodeResponseCache;
 
 
     @Operation(summary = "Импорт элементов файловой системы")
@@ -36,17 +56,83 @@ public class StorageController {
     @PostMapping("/imports")
     @ResponseStatus(code = HttpStatus.OK)
     public void importFiles(@RequestBody SystemItemImportRequest request) {
-        storageService.importItem(request);
+        importGroupCommitter.importItem(request);
+    }
+
+    @Operation(summary = "Потоковый импорт элементов файловой системы. " +
+            "Формат тела совпадает с /imports, элементы разбираются и применяются порциями без загрузки списка в память. " +
+            "Тело копируется во временный файл, деревья всех элементов блокируются до применения первой порции, " +
+            "при конфликте импорт повторяется.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Вставка или обновление прошли успешно"),
+            @ApiResponse(responseCode = "400",
+                    description = "Невалидная схема документа или входные данные не верны",
+                    content = @Content(mediaType = "application/json",
+                        schema = @Schema(implementation = ErrorBody.class)))
+    })
+
+    @PostMapping(value = "/imports/stream", consumes = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseStatus(code = HttpStatus.OK)
+    public void importFilesStream(HttpServletRequest request) throws IOException {
+        storageService.importItemStream(request.getInputStream());
+    }
+
+    @Operation(summary = "Поставить импорт элементов в очередь. " +
+            "Импорты в одно дерево выполняются в порядке поступления, результат доступен по /imports/{jobId}.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "202",
+                    description = "Импорт поставлен в очередь",
+                    content = @Content(mediaType = "application/json",
+                            schema = @Schema(implementation = ImportJobDto.class))),
+            @ApiResponse(responseCode = "400",
+                    description = "Невалидная схема документа или входные данные не верны",
+                    content = @Content(mediaType = "application/json",
+                        schema = @Schema(implementation = ErrorBody.class))),
+            @ApiResponse(responseCode = "429",
+                    description = "Очередь импортов заполнена",
+                    content = @Content(mediaType = "application/json",
+                            schema = @Schema(implementation = ErrorBody.class)))
+    })
+
+    @PostMapping("/imports/async")
+    @ResponseStatus(code = HttpStatus.ACCEPTED)
+    public ImportJobDto importFilesAsync(@RequestBody SystemItemImportRequest request) {
+        return importJobService.submit(request);
+    }
+
+    @Operation(summary = "Получить состояние асинхронного импорта")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200",
+                    description = "Состояние импорта",
+                    content = @Content(mediaType = "application/json",
+                            schema = @Schema(implementation = ImportJobDto.class))),
+            @ApiResponse(responseCode = "404",
+                    description = "Импорт не найден",
+                    content = @Content(mediaType = "application/json",
+                            schema = @Schema(implementation = ErrorBody.class)))
+    })
+
+    @GetMapping("/imports/{jobId}")
+    @ResponseStatus(code = HttpStatus.OK)
+    public ImportJobDto getImportJob(@Parameter(description = "Идентификатор импорта") @PathVariable String jobId) {
+        return importJobService.getJob(jobId);
     }
 
 
     @Operation(summary = "Получить информацию об элементе по идентификатору. " +
-            "При получении информации о папке также предоставляется информация о её дочерних элементах.")
+            "При получении информации о папке также предоставляется информация о её дочерних элементах. " +
+            "С параметром at дерево возвращается в состоянии на этот момент. " +
+            "depth ограничивает глубину поддерева, у папок на этой глубине children = null. " +
+            "childrenLimit ограничивает число детей каждой папки, продолжение - /nodes/{id папки} с её childrenCursor. " +
+            "Размер папки всегда полный. " +
+            "Ответ без at содержит ETag, с совпадающим If-None-Match возвращается 304 без чтения поддерева.")
     @ApiResponses(value = {
             @ApiResponse(responseCode = "200",
                     description = "Информация об элементе",
                     content = @Content(mediaType = "application/json",
                             schema = @Schema(implementation = SystemItemDto.class))),
+            @ApiResponse(responseCode = "304",
+                    description = "Поддерево не изменилось с версии из If-None-Match"),
             @ApiResponse(responseCode = "400",
                     description = "Невалидная схема документа или входные данные не верны",
                     content = @Content(mediaType = "application/json",
@@ -58,9 +144,69 @@ public class StorageController {
     })
 
     @GetMapping("/nodes/{id}")
-    @ResponseStatus(code = HttpStatus.OK)
-    public SystemItemDto getNodeInfo(@Parameter(description = "Идентификатор элемента") @PathVariable String id) {
-        return storageService.getItemInfo(id);
+    public ResponseEntity<?> getNodeInfo(@Parameter(description = "Идентификатор элемента") @PathVariable String id,
+                                     @Parameter(description = "Момент, на который нужно состояние дерева")
+                                        @RequestParam(required = false) String at,
+                                     @Parameter(description = "Глубина поддерева, 0 - только сам элемент")
+                                        @RequestParam(required = false) Integer depth,
+                                     @Parameter(description = "Наибольшее число детей у каждой папки, в порядке id")
+                                        @RequestParam(required = false) Integer childrenLimit,
+                                     @Parameter(description = "childrenCursor элемента из предыдущего ответа")
+                                        @RequestParam(required = false) String cursor,
+                                     @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false)
+                                        String ifNoneMatch) {
+        boolean limited = depth != null || childrenLimit != null || cursor != null;
+        if (at != null) {
+            if (limited) {
+                throw new ValidationErrorException();
+            }
+            return ResponseEntity.ok(treeSnapshotService.getItemInfoAt(id, parseDate(at)));
+        }
+        boolean cached = !limited && nodeResponseCache.isEnabled();
+        // Готовый ответ из кэша, его ETag проверяется без обращения к базе
+        Optional<NodeResponseCache.Entry> hit = cached ? nodeResponseCache.find(id) : Optional.empty();
+        if (hit.isPresent()) {
+            return toResponse(hit.get(), ifNoneMatch);
+        }
+        // Версия проверяется по одной строке до чтения поддерева
+        if (ifNoneMatch != null) {
+            String current = storageService.getItemETag(id, depth, childrenLimit, cursor);
+            if (matchesETag(ifNoneMatch, current)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(current).build();
+            }
+        }
+        if (cached) {
+            return toResponse(nodeResponseCache.load(id, () -> storageService.getItemInfo(id)), ifNoneMatch);
+        }
+        SystemItemDto dto = limited
+                ? storageService.getItemInfo(id, depth, childrenLimit, cursor)
+                : storageService.getItemInfo(id);
+        // Тег берётся из отданного корня, а не из проверки выше: изменение между ними
+        // не должно закрепить у клиента старое дерево под новым тегом
+        return ResponseEntity.ok()
+                .eTag(SystemItemMapper.mapToETag(dto.getVersion(), depth, childrenLimit, cursor))
+                .body(dto);
+    }
+
+    @Operation(summary = "Получить информацию об элементе потоком. " +
+            "Формат совпадает с /nodes/{id}, дерево пишется в ответ по мере чтения из базы и не собирается в памяти.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200",
+                    description = "Информация об элементе",
+                    content = @Content(mediaType = "application/json",
+                            schema = @Schema(implementation = SystemItemDto.class))),
+            @ApiResponse(responseCode = "404",
+                    description = "Элемент не найден",
+                    content = @Content(mediaType = "application/json",
+                            schema = @Schema(implementation = ErrorBody.class)))
+    })
+
+    @GetMapping("/nodes/{id}/stream")
+    public void getNodeInfoStream(@Parameter(description = "Идентификатор элемента") @PathVariable String id,
+                                  HttpServletResponse response) throws IOException {
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        storageService.writeItemInfo(id, response.getOutputStream());
     }
 
     @Operation(summary = "Удалить элемент по идентификатору. " +
@@ -106,14 +252,40 @@ public class StorageController {
 
     @GetMapping("/updates")
     @ResponseStatus(code = HttpStatus.OK)
-    public SystemItemHistoryResponse getUpdatesIn24h(@Parameter(description = "Дата и время запроса") @RequestParam String date) {
-        Instant instant;
-        try {
-            instant = Instant.from(DateTimeFormatter.ISO_INSTANT.parse(date));
-        } catch (Exception e) {
-            throw new ValidationErrorException();
+    public SystemItemHistoryResponse getUpdatesIn24h(@Parameter(description = "Дата и время запроса") @RequestParam String date,
+                                                     @Parameter(description = "Размер страницы, без него возвращается весь список")
+                                                        @RequestParam(required = false) Integer limit,
+                                                     @Parameter(description = "nextCursor предыдущей страницы")
+                                                        @RequestParam(required = false) String cursor) {
+        Instant instant = parseDate(date);
+        if (limit == null) {
+            if (cursor != null) {
+                throw new ValidationErrorException();
+            }
+            return storageService.getItemUpdates(instant);
         }
-        return storageService.getItemUpdates(instant);
+        return storageService.getItemUpdates(instant, limit, cursor);
+    }
+
+    @Operation(summary = "Файлы, обновлённые за последние 24 часа, в формате NDJSON в порядке даты обновления. " +
+            "Строки читаются из базы курсором и не собираются в память.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200",
+                    description = "По одному SystemItemHistoryUnit на строку",
+                    content = @Content(mediaType = "application/x-ndjson")),
+            @ApiResponse(responseCode = "400",
+                    description = "Невалидная схема документа или входные данные не верны",
+                    content = @Content(mediaType = "application/json",
+                            schema = @Schema(implementation = ErrorBody.class)))
+    })
+
+    @GetMapping("/updates/stream")
+    public void getUpdatesIn24hStream(@Parameter(description = "Дата и время запроса") @RequestParam String date,
+                                      HttpServletResponse response) throws IOException {
+        Instant instant = parseDate(date);
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(NDJSON);
+        storageService.writeItemUpdates(instant, response.getOutputStream());
     }
 
     @Operation(summary = "Получение истории обновлений по элементу за заданный полуинтервал. История по удаленным элементам недоступна")
@@ -140,16 +312,89 @@ public class StorageController {
                                                     @Parameter(description = "Дата и время начала интервала")
                                                         @RequestParam String dateStart,
                                                     @Parameter(description = "Дата и время конца интервала")
-                                                        @RequestParam String dateEnd) {
-        Instant start;
-        Instant end;
+                                                        @RequestParam String dateEnd,
+                                                    @Parameter(description = "Размер страницы, без него возвращается вся история")
+                                                        @RequestParam(required = false) Integer limit,
+                                                    @Parameter(description = "nextCursor предыдущей страницы")
+                                                        @RequestParam(required = false) String cursor) {
+        Instant start = parseDate(dateStart);
+        Instant end = parseDate(dateEnd);
+        if (limit == null) {
+            if (cursor != null) {
+                throw new ValidationErrorException();
+            }
+            return storageService.getItemHistory(id, start, end);
+        }
+        return storageService.getItemHistory(id, start, end, limit, cursor);
+    }
+
+    @Operation(summary = "История обновлений по элементу за заданный полуинтервал в формате NDJSON. " +
+            "Строки читаются из базы курсором и не собираются в память.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200",
+                    description = "По одному SystemItemHistoryUnit на строку",
+                    content = @Content(mediaType = "application/x-ndjson")),
+            @ApiResponse(responseCode = "400",
+                    description = "Невалидная схема документа или входные данные не верны",
+                    content = @Content(mediaType = "application/json",
+                            schema = @Schema(implementation = ErrorBody.class))),
+            @ApiResponse(responseCode = "404",
+                    description = "Элемент не найден",
+                    content = @Content(mediaType = "application/json",
+                            schema = @Schema(implementation = ErrorBody.class)))
+    })
+
+    @GetMapping("/node/{id}/history/stream")
+    public void getNodeHistoryStream(@Parameter(description = "id элемента для которого будет отображаться история")
+                                         @PathVariable String id,
+                                     @Parameter(description = "Дата и время начала интервала")
+                                         @RequestParam String dateStart,
+                                     @Parameter(description = "Дата и время конца интервала")
+                                         @RequestParam String dateEnd,
+                                     HttpServletResponse response) throws IOException {
+        Instant start = parseDate(dateStart);
+        Instant end = parseDate(dateEnd);
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(NDJSON);
+        storageService.writeItemHistory(id, start, end, response.getOutputStream());
+    }
+
+    private static ResponseEntity<?> toResponse(NodeResponseCache.Entry entry, String ifNoneMatch) {
+        if (ifNoneMatch != null && matchesETag(ifNoneMatch, entry.eTag())) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(entry.eTag()).build();
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .eTag(entry.eTag())
+                .body(entry.body());
+    }
+
+    /**
+     * Слабое сравнение If-None-Match: список тегов через запятую или *
+     * **/
+    private static boolean matchesETag(String ifNoneMatch, String etag) {
+        String current = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*")) {
+                return true;
+            }
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(current)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Instant parseDate(String date) {
         try {
-            start = Instant.from(DateTimeFormatter.ISO_INSTANT.parse(dateStart));
-            end = Instant.from(DateTimeFormatter.ISO_INSTANT.parse(dateEnd));
+            return Instant.from(DateTimeFormatter.ISO_INSTANT.parse(date));
         } catch (Exception e) {
             throw new ValidationErrorException();
         }
-        return storageService.getItemHistory(id, start, end);
     }
 
 }
@@ -0,0 +1,30 @@
+package com.petrunkov.diskapi.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.validation.constraints.NotNull;
+
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+@Schema(name = "ImportJob")
+public class ImportJobDto {
+    @NotNull
+    private String id;
+    // QUEUED, RUNNING, DONE или FAILED
+    @NotNull
+    private String status;
+    @NotNull
+    private String submitted;
+    private String started;
+    private String finished;
+    // Время ожидания в очереди и выполнения в миллисекундах
+    private Long queuedMillis;
+    private Long runMillis;
+    private String message;
+}
@@ -1,5 +1,7 @@
 package com.petrunkov.diskapi.dto;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import io.swagger.v3.oas.annotations.media.Schema;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
@@ -21,4 +23,14 @@ public class SystemItemDto {
     private String type;
     private Long size;
     private List<SystemItemDto> children;
+    /**
+     * Токен продолжения списка детей папки, есть только если при childrenLimit дети выданы не полностью
+     * **/
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String childrenCursor;
+    /**
+     * Версия элемента для ETag, в ответ не сериализуется
+     * **/
+    @JsonIgnore
+    private Long version;
 }
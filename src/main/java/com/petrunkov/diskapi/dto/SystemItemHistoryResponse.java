@@ -1,5 +1,6 @@
 package com.petrunkov.diskapi.dto;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -11,4 +12,13 @@ import java.util.List;
 @NoArgsConstructor
 public class SystemItemHistoryResponse {
     List<SystemItemHistoryUnit> items;
+    /**
+     * Токен следующей страницы, есть только при постраничном запросе с заполненной страницей
+     * **/
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    String nextCursor;
+
+    public SystemItemHistoryResponse(List<SystemItemHistoryUnit> items) {
+        this.items = items;
+    }
 }
@@ -0,0 +1,11 @@
+package com.petrunkov.diskapi.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+public class TooManyRequestsException extends ResponseStatusException {
+
+    public TooManyRequestsException() {
+        super(HttpStatus.TOO_MANY_REQUESTS, "Import queue is full");
+    }
+}
@@ -0,0 +1,643 @@
+package com.petrunkov.diskapi.index;
+
+import com.petrunkov.diskapi.config.DiskApiProperties;
+import com.petrunkov.diskapi.dto.SystemItemDto;
+import com.petrunkov.diskapi.exception.ItemNotFoundException;
+import com.petrunkov.diskapi.model.SystemItem;
+import com.petrunkov.diskapi.model.SystemItemType;
+import com.petrunkov.diskapi.repository.SystemItemRowMapper;
+import com.petrunkov.diskapi.service.StorageChangedEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.PreparedStatement;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Дерево элементов в памяти для чтения GET /nodes/{id} без обращения к базе.
+ * Узлы хранятся в параллельных примитивных массивах и адресуются номером слота,
+ * id отображаются в слоты открытой хэш-таблицей и интернируются: id родителя из загрузки или события
+ * ссылается на ту же строку, что и id узла. Дети узла - двусвязный список через
+ * firstChildren/nextSiblings/prevSiblings. Чтение копирует поля поддерева под блокировкой чтения,
+ * DTO строятся уже без неё.
+ * Изменения применяются после коммита транзакции; запись в индекс удерживает блокировку
+ * от beforeCommit до завершения транзакции, поэтому изменения применяются в порядке коммитов.
+ * До коммита копятся только id изменённых элементов, сами элементы перечитываются после коммита
+ * порциями по RELOAD_BATCH_SIZE. Транзакция, изменившая больше disk-api.index.max-pending-ids элементов,
+ * id не копит, и индекс после её коммита загружается заново. Пока индекс не готов, изменения покрывает загрузка:
+ * она читает базу после захвата блокировки, то есть после их коммита
+ * **/
+@Component
+@Slf4j
+public class TreeIndex {
+
+    private static final int NONE = -1;
+    private static final byte FREE = 0;
+    private static final byte FILE = 1;
+    private static final byte FOLDER = 2;
+    private static final long NO_SIZE = Long.MIN_VALUE;
+
+    private static final String LOAD_QUERY = "SELECT id, url, date, parent_id, type, size, version FROM t_system_items";
+    private static final String RELOAD_QUERY =
+            "SELECT id, url, date, parent_id, type, size, version FROM t_system_items WHERE id = ANY(?)";
+    // Число id в одном запросе перечитывания
+    private static final int RELOAD_BATCH_SIZE = 1000;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate readOnlyTransaction;
+    private final DiskApiProperties.Index properties;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean ready;
+    // Загрузка поставлена в очередь и ещё не захватила блокировку
+    private boolean loadScheduled;
+
+    private String[] ids;
+    private String[] urls;
+    private int[] parents;
+    private int[] firstChildren;
+    private int[] nextSiblings;
+    private int[] prevSiblings;
+    private byte[] types;
+    private long[] sizes;
+    private long[] dates;
+    private long[] versions;
+    // Слоты, занятые хотя бы раз; освобождённые слоты связаны через nextSiblings
+    private int used;
+    private int freeHead;
+    private int count;
+    // Открытая адресация: номер слота + 1, 0 - пустая ячейка
+    private int[] table;
+
+    public TreeIndex(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                     DiskApiProperties properties) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.properties = properties.getIndex();
+        reset(this.properties.getInitialCapacity());
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void initialize() {
+        if (properties.isEnabled()) {
+            load();
+        }
+    }
+
+    /**
+     * Полностью перечитать дерево из базы. Коммиты изменений ждут окончания загрузки
+     * **/
+    public void load() {
+        lock.writeLock().lock();
+        try {
+            ready = false;
+            loadScheduled = false;
+            reset(properties.getInitialCapacity());
+            List<String> parentIds = new ArrayList<>();
+            readOnlyTransaction.executeWithoutResult(status -> jdbcTemplate.query(connection -> {
+                PreparedStatement statement = connection.prepareStatement(LOAD_QUERY);
+                statement.setFetchSize(properties.getFetchSize());
+                return statement;
+            }, (RowCallbackHandler) rs -> {
+                int slot = allocate(rs.getString("id"));
+                urls[slot] = rs.getString("url");
+                dates[slot] = toMicros(rs.getTimestamp("date").toInstant());
+                types[slot] = SystemItemType.valueOf(rs.getString("type")) == SystemItemType.FILE ? FILE : FOLDER;
+                long size = rs.getLong("size");
+                sizes[slot] = rs.wasNull() ? NO_SIZE : size;
+                versions[slot] = rs.getLong("version");
+                String parentId = rs.getString("parent_id");
+                parentIds.add(parentId == null ? null : parentId.intern());
+            }));
+            // Слоты выделены подряд, поэтому номер строки совпадает с номером слота
+            for (int slot = 0; slot < parentIds.size(); slot++) {
+                String parentId = parentIds.get(slot);
+                if (parentId != null) {
+                    int parent = find(parentId);
+                    if (parent == NONE) {
+                        log.warn("Tree index: parent {} of item {} not found", parentId, ids[slot]);
+                    } else {
+                        link(slot, parent);
+                    }
+                }
+            }
+            ready = true;
+            log.info("Tree index loaded: {} items", count);
+        } catch (RuntimeException e) {
+            log.error("Tree index loading failed, reads fall back to the database", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Построить дерево элемента. Пустой результат означает, что индекс не готов и нужно читать из базы
+     * **/
+    public Optional<SystemItemDto> findItemInfo(String id) {
+        SubtreeCopy copy;
+        lock.readLock().lock();
+        try {
+            if (!ready) {
+                return Optional.empty();
+            }
+            int root = find(id);
+            if (root == NONE) {
+                throw new ItemNotFoundException();
+            }
+            copy = copySubtree(root);
+        } finally {
+            lock.readLock().unlock();
+        }
+        // Коммиты ждут только копирования массивов, а не построения DTO
+        return Optional.of(copy.toDto());
+    }
+
+    private SubtreeCopy copySubtree(int root) {
+        SubtreeCopy copy = new SubtreeCopy(parents[root] == NONE ? null : ids[parents[root]]);
+        copy.add(ids[root], urls[root], dates[root], types[root], sizes[root], versions[root], NONE);
+        // Пары (слот, номер в копии) папок, чьи дети ещё не скопированы
+        int[] stack = new int[16];
+        int depth = 0;
+        stack[depth++] = root;
+        stack[depth++] = 0;
+        while (depth > 0) {
+            int index = stack[--depth];
+            int slot = stack[--depth];
+            for (int child = firstChildren[slot]; child != NONE; child = nextSiblings[child]) {
+                int childIndex = copy.add(ids[child], urls[child], dates[child], types[child], sizes[child],
+                        versions[child], index);
+                if (types[child] == FOLDER) {
+                    if (depth + 2 > stack.length) {
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    }
+                    stack[depth++] = child;
+                    stack[depth++] = childIndex;
+                }
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Накопить id изменённых элементов транзакции и применить изменения после коммита
+     * **/
+    @EventListener
+    public void onStorageChanged(StorageChangedEvent event) {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            lock.writeLock().lock();
+            try {
+                apply(event);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return;
+        }
+        Changes pending = (Changes) TransactionSynchronizationManager.getResource(this);
+        if (pending == null) {
+            Changes changes = new Changes(properties.getMaxPendingIds());
+            TransactionSynchronizationManager.bindResource(this, changes);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void beforeCommit(boolean readOnly) {
+                    lock.writeLock().lock();
+                }
+
+                @Override
+                public void afterCommit() {
+                    apply(changes);
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(TreeIndex.this);
+                    if (lock.isWriteLockedByCurrentThread()) {
+                        lock.writeLock().unlock();
+                    }
+                }
+            });
+            pending = changes;
+        }
+        pending.add(event);
+    }
+
+    /**
+     * Поставить загрузку в очередь, если она ещё не поставлена. Вызывается под блокировкой записи
+     * **/
+    private void scheduleLoad() {
+        ready = false;
+        if (!loadScheduled) {
+            loadScheduled = true;
+            CompletableFuture.runAsync(this::load);
+        }
+    }
+
+    /**
+     * Применить событие вне транзакции. Версии элементов события не прочитаны из базы,
+     * поэтому элементы перечитываются так же, как после коммита
+     * **/
+    private void apply(StorageChangedEvent event) {
+        Changes changes = new Changes(properties.getMaxPendingIds());
+        changes.add(event);
+        apply(changes);
+    }
+
+    /**
+     * Применить закоммиченные изменения: удалённые элементы убираются, сохранённые перечитываются из базы.
+     * Элемент, которого уже нет в базе, удалён позже в той же транзакции
+     * **/
+    private void apply(Changes changes) {
+        if (!ready) {
+            // Изменения уже в базе, их прочитает загрузка. Если она не поставлена (предыдущая упала), ставится сейчас
+            scheduleLoad();
+            return;
+        }
+        if (changes.overflow) {
+            log.info("Tree index: transaction changed more than {} items, reloading", properties.getMaxPendingIds());
+            scheduleLoad();
+            return;
+        }
+        try {
+            changes.deletedIds.forEach(this::removeSubtree);
+            List<String> ids = new ArrayList<>(changes.savedIds);
+            List<SystemItem> unlinked = new ArrayList<>();
+            for (int i = 0; i < ids.size(); i += RELOAD_BATCH_SIZE) {
+                List<String> batch = ids.subList(i, Math.min(ids.size(), i + RELOAD_BATCH_SIZE));
+                Map<String, SystemItem> found = new HashMap<>();
+                jdbcTemplate.query(connection -> {
+                    PreparedStatement statement = connection.prepareStatement(RELOAD_QUERY);
+                    statement.setArray(1, connection.createArrayOf("varchar", batch.toArray()));
+                    return statement;
+                }, (rs, rowNum) -> {
+                    SystemItem item = SystemItemRowMapper.INSTANCE.mapRow(rs, rowNum);
+                    item.setVersion(rs.getLong("version"));
+                    return item;
+                }).forEach(item -> found.put(item.getId(), item));
+                for (String id : batch) {
+                    SystemItem item = found.get(id);
+                    if (item == null) {
+                        removeSubtree(id);
+                    } else {
+                        upsert(item, unlinked);
+                    }
+                }
+            }
+            linkDeferred(unlinked);
+        } catch (RuntimeException e) {
+            reloadAfterFailure(e);
+        }
+    }
+
+    /**
+     * Индекс разошёлся с базой: читаем из базы, пока он перезагружается
+     * **/
+    private void reloadAfterFailure(RuntimeException e) {
+        log.error("Tree index update failed, reloading", e);
+        scheduleLoad();
+    }
+
+    /**
+     * Записать элемент в индекс. Элемент, чей родитель ещё не проиндексирован, попадает в unlinked
+     * и связывается с родителем после остальных
+     * **/
+    private void upsert(SystemItem item, List<SystemItem> unlinked) {
+        int slot = find(item.getId());
+        if (slot == NONE) {
+            slot = allocate(item.getId());
+        }
+        urls[slot] = item.getUrl();
+        dates[slot] = toMicros(item.getDate());
+        types[slot] = item.getType() == SystemItemType.FILE ? FILE : FOLDER;
+        sizes[slot] = item.getSize() == null ? NO_SIZE : item.getSize();
+        versions[slot] = item.getVersion();
+        int parent = NONE;
+        if (item.getParentId() != null) {
+            parent = find(item.getParentId());
+            if (parent == NONE) {
+                unlink(slot);
+                unlinked.add(item);
+                return;
+            }
+        }
+        if (parents[slot] != parent) {
+            unlink(slot);
+            if (parent != NONE) {
+                link(slot, parent);
+            }
+        }
+    }
+
+    private void linkDeferred(List<SystemItem> unlinked) {
+        for (SystemItem item : unlinked) {
+            int parent = find(item.getParentId());
+            if (parent == NONE) {
+                throw new IllegalStateException("Parent " + item.getParentId() + " is not indexed");
+            }
+            link(find(item.getId()), parent);
+        }
+    }
+
+    private void removeSubtree(String id) {
+        int root = find(id);
+        if (root == NONE) {
+            return;
+        }
+        unlink(root);
+        int[] stack = new int[16];
+        int depth = 0;
+        stack[depth++] = root;
+        while (depth > 0) {
+            int slot = stack[--depth];
+            for (int child = firstChildren[slot]; child != NONE; child = nextSiblings[child]) {
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, depth * 2);
+                }
+                stack[depth++] = child;
+            }
+            free(slot);
+        }
+    }
+
+    private void link(int child, int parent) {
+        int first = firstChildren[parent];
+        parents[child] = parent;
+        prevSiblings[child] = NONE;
+        nextSiblings[child] = first;
+        if (first != NONE) {
+            prevSiblings[first] = child;
+        }
+        firstChildren[parent] = child;
+    }
+
+    private void unlink(int child) {
+        int parent = parents[child];
+        if (parent == NONE) {
+            return;
+        }
+        int prev = prevSiblings[child];
+        int next = nextSiblings[child];
+        if (prev == NONE) {
+            firstChildren[parent] = next;
+        } else {
+            nextSiblings[prev] = next;
+        }
+        if (next != NONE) {
+            prevSiblings[next] = prev;
+        }
+        parents[child] = NONE;
+        prevSiblings[child] = NONE;
+        nextSiblings[child] = NONE;
+    }
+
+    private int allocate(String id) {
+        int slot;
+        if (freeHead != NONE) {
+            slot = freeHead;
+            freeHead = nextSiblings[slot];
+        } else {
+            if (used == ids.length) {
+                grow(used + (used >> 1) + 1);
+            }
+            slot = used++;
+        }
+        ids[slot] = id.intern();
+        urls[slot] = null;
+        parents[slot] = NONE;
+        firstChildren[slot] = NONE;
+        nextSiblings[slot] = NONE;
+        prevSiblings[slot] = NONE;
+        if ((count + 1) * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        insertIntoTable(slot);
+        count++;
+        return slot;
+    }
+
+    private void free(int slot) {
+        removeFromTable(ids[slot]);
+        ids[slot] = null;
+        urls[slot] = null;
+        types[slot] = FREE;
+        parents[slot] = NONE;
+        firstChildren[slot] = NONE;
+        prevSiblings[slot] = NONE;
+        nextSiblings[slot] = freeHead;
+        freeHead = slot;
+        count--;
+    }
+
+    private void reset(int capacity) {
+        int initial = Math.max(16, capacity);
+        ids = new String[initial];
+        urls = new String[initial];
+        parents = new int[initial];
+        firstChildren = new int[initial];
+        nextSiblings = new int[initial];
+        prevSiblings = new int[initial];
+        types = new byte[initial];
+        sizes = new long[initial];
+        dates = new long[initial];
+        versions = new long[initial];
+        used = 0;
+        freeHead = NONE;
+        count = 0;
+        table = new int[Integer.highestOneBit(initial - 1) << 2];
+    }
+
+    private void grow(int capacity) {
+        ids = Arrays.copyOf(ids, capacity);
+        urls = Arrays.copyOf(urls, capacity);
+        parents = Arrays.copyOf(parents, capacity);
+        firstChildren = Arrays.copyOf(firstChildren, capacity);
+        nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        prevSiblings = Arrays.copyOf(prevSiblings, capacity);
+        types = Arrays.copyOf(types, capacity);
+        sizes = Arrays.copyOf(sizes, capacity);
+        dates = Arrays.copyOf(dates, capacity);
+        versions = Arrays.copyOf(versions, capacity);
+    }
+
+    private int find(String id) {
+        int mask = table.length - 1;
+        for (int i = home(id, mask); ; i = (i + 1) & mask) {
+            int entry = table[i];
+            if (entry == 0) {
+                return NONE;
+            }
+            if (ids[entry - 1].equals(id)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    private void insertIntoTable(int slot) {
+        int mask = table.length - 1;
+        int i = home(ids[slot], mask);
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        table[i] = slot + 1;
+    }
+
+    /**
+     * Удаление со сдвигом назад, чтобы не оставлять в цепочках пробирования пустых ячеек
+     * **/
+    private void removeFromTable(String id) {
+        int mask = table.length - 1;
+        int i = home(id, mask);
+        while (table[i] != 0 && !ids[table[i] - 1].equals(id)) {
+            i = (i + 1) & mask;
+        }
+        if (table[i] == 0) {
+            return;
+        }
+        table[i] = 0;
+        for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+            int k = home(ids[table[j] - 1], mask);
+            boolean movable = i <= j ? (k <= i || k > j) : (k <= i && k > j);
+            if (movable) {
+                table[i] = table[j];
+                table[j] = 0;
+                i = j;
+            }
+        }
+    }
+
+    private void rehash(int length) {
+        table = new int[length];
+        for (int slot = 0; slot < used; slot++) {
+            if (ids[slot] != null) {
+                insertIntoTable(slot);
+            }
+        }
+    }
+
+    private static int home(String id, int mask) {
+        int h = id.hashCode();
+        return (h ^ (h >>> 16)) * 0x9E3779B9 & mask;
+    }
+
+    /**
+     * PostgreSQL хранит timestamp с точностью до микросекунд и округляет наносекунды так же
+     * **/
+    private static long toMicros(Instant instant) {
+        return instant.getEpochSecond() * 1_000_000L + (instant.getNano() + 500) / 1_000;
+    }
+
+    private static Instant fromMicros(long micros) {
+        return Instant.ofEpochSecond(Math.floorDiv(micros, 1_000_000L), Math.floorMod(micros, 1_000_000L) * 1_000L);
+    }
+
+    /**
+     * Поля узлов поддерева, скопированные под блокировкой чтения. Узел ссылается на родителя номером в копии,
+     * родитель всегда скопирован раньше детей
+     * **/
+    private static class SubtreeCopy {
+        private final String rootParentId;
+        private String[] ids = new String[16];
+        private String[] urls = new String[16];
+        private long[] dates = new long[16];
+        private byte[] types = new byte[16];
+        private long[] sizes = new long[16];
+        private long[] versions = new long[16];
+        private int[] parents = new int[16];
+        private int count;
+
+        SubtreeCopy(String rootParentId) {
+            this.rootParentId = rootParentId;
+        }
+
+        int add(String id, String url, long date, byte type, long size, long version, int parent) {
+            if (count == ids.length) {
+                int capacity = count * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                urls = Arrays.copyOf(urls, capacity);
+                dates = Arrays.copyOf(dates, capacity);
+                types = Arrays.copyOf(types, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                versions = Arrays.copyOf(versions, capacity);
+                parents = Arrays.copyOf(parents, capacity);
+            }
+            ids[count] = id;
+            urls[count] = url;
+            dates[count] = date;
+            types[count] = type;
+            sizes[count] = size;
+            versions[count] = version;
+            parents[count] = parent;
+            return count++;
+        }
+
+        /**
+         * Дети добавляются в порядке копирования, то есть в порядке списка детей в индексе
+         * **/
+        SystemItemDto toDto() {
+            SystemItemDto[] dtos = new SystemItemDto[count];
+            for (int i = 0; i < count; i++) {
+                dtos[i] = SystemItemDto.builder()
+                        .id(ids[i])
+                        .url(urls[i])
+                        .date(fromMicros(dates[i]).toString())
+                        .parentId(parents[i] == NONE ? rootParentId : ids[parents[i]])
+                        .type(types[i] == FILE ? SystemItemType.FILE.toString() : SystemItemType.FOLDER.toString())
+                        .size(sizes[i] == NO_SIZE ? null : sizes[i])
+                        .children(types[i] == FOLDER ? new ArrayList<>() : null)
+                        .version(versions[i])
+                        .build();
+                if (parents[i] != NONE) {
+                    dtos[parents[i]].getChildren().add(dtos[i]);
+                }
+            }
+            return dtos[0];
+        }
+    }
+
+    /**
+     * id, изменённые транзакцией. Сверх limit id не копятся, после коммита индекс загружается заново
+     * **/
+    private static class Changes {
+        private final int limit;
+        private final Set<String> savedIds = new LinkedHashSet<>();
+        private final Set<String> deletedIds = new LinkedHashSet<>();
+        private boolean overflow;
+
+        Changes(int limit) {
+            this.limit = limit;
+        }
+
+        void add(StorageChangedEvent event) {
+            if (overflow) {
+                return;
+            }
+            event.getSavedItems().forEach(item -> savedIds.add(item.getId()));
+            deletedIds.addAll(event.getDeletedIds());
+            if (savedIds.size() + deletedIds.size() > limit) {
+                overflow = true;
+                savedIds.clear();
+                deletedIds.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.petrunkov.diskapi.mapper;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.petrunkov.diskapi.dto.SystemItemHistoryUnit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.function.Consumer;
+
+/**
+ * Запись строк истории в формате NDJSON: по одному SystemItemHistoryUnit на строку, по мере чтения
+ * **/
+public class HistoryUnitNdjsonWriter implements Consumer<SystemItemHistoryUnit> {
+
+    private final ObjectMapper objectMapper;
+    private final ObjectWriter writer;
+    private final OutputStream outputStream;
+    private JsonGenerator generator;
+    private long itemCount;
+
+    public HistoryUnitNdjsonWriter(ObjectMapper objectMapper, OutputStream outputStream) {
+        this.objectMapper = objectMapper;
+        this.writer = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        this.outputStream = outputStream;
+    }
+
+    @Override
+    public void accept(SystemItemHistoryUnit unit) {
+        try {
+            if (generator == null) {
+                // Поток не трогается до первой строки, чтобы можно было ответить 404
+                generator = objectMapper.createGenerator(outputStream, JsonEncoding.UTF8);
+            }
+            writer.writeValue(generator, unit);
+            generator.writeRaw('\n');
+            itemCount++;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public long getItemCount() {
+        return itemCount;
+    }
+
+    public void finish() {
+        if (generator == null) {
+            return;
+        }
+        try {
+            generator.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
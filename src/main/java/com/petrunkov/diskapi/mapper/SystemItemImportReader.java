@@ -0,0 +1,118 @@
+package com.petrunkov.diskapi.mapper;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.petrunkov.diskapi.dto.SystemItemImport;
+import com.petrunkov.diskapi.exception.ValidationErrorException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Потоковое чтение тела SystemItemImportRequest: элементы items читаются порциями, не собираясь в список целиком.
+ * Если items идёт в документе раньше updateDate, массив сначала копируется во временный файл,
+ * так как элементы нельзя применить до получения даты
+ * **/
+public class SystemItemImportReader implements Closeable {
+
+    private final ObjectMapper objectMapper;
+    private final JsonParser parser;
+    private JsonParser itemsParser;
+    private Path spool;
+    private boolean finished;
+
+    public SystemItemImportReader(ObjectMapper objectMapper, InputStream inputStream) throws IOException {
+        this.objectMapper = objectMapper;
+        this.parser = objectMapper.createParser(inputStream);
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new ValidationErrorException();
+        }
+    }
+
+    /**
+     * Прочитать поля запроса до начала массива items и вернуть updateDate
+     * **/
+    public String readUpdateDate() throws IOException {
+        String updateDate = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("updateDate".equals(field)) {
+                updateDate = token == JsonToken.VALUE_NULL ? null : parser.getValueAsString();
+            } else if ("items".equals(field)) {
+                if (token != JsonToken.START_ARRAY) {
+                    throw new ValidationErrorException();
+                }
+                if (updateDate != null) {
+                    itemsParser = parser;
+                    return updateDate;
+                }
+                spoolItems();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (updateDate == null || spool == null) {
+            throw new ValidationErrorException();
+        }
+        itemsParser = objectMapper.createParser(spool.toFile());
+        itemsParser.nextToken();
+        return updateDate;
+    }
+
+    /**
+     * Следующая порция элементов не больше size. Пустой список - элементы закончились
+     * **/
+    public List<SystemItemImport> nextChunk(int size) throws IOException {
+        List<SystemItemImport> chunk = new ArrayList<>();
+        while (!finished && chunk.size() < size) {
+            JsonToken token = itemsParser.nextToken();
+            if (token == JsonToken.END_ARRAY) {
+                finished = true;
+                skipRemainingFields();
+            } else if (token == JsonToken.START_OBJECT) {
+                chunk.add(objectMapper.readValue(itemsParser, SystemItemImport.class));
+            } else {
+                throw new ValidationErrorException();
+            }
+        }
+        return chunk;
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+        if (spool != null) {
+            if (itemsParser != null) {
+                itemsParser.close();
+            }
+            Files.deleteIfExists(spool);
+        }
+    }
+
+    private void spoolItems() throws IOException {
+        spool = Files.createTempFile("disk-api-import", ".json");
+        try (JsonGenerator generator = objectMapper.createGenerator(Files.newOutputStream(spool), JsonEncoding.UTF8)) {
+            generator.copyCurrentStructure(parser);
+        }
+    }
+
+    // Поля после items, когда updateDate уже прочитан раньше
+    private void skipRemainingFields() throws IOException {
+        if (itemsParser != parser) {
+            return;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            parser.nextToken();
+            parser.skipChildren();
+        }
+    }
+}
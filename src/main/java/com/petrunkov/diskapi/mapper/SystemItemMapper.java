@@ -32,10 +32,45 @@ public class SystemItemMapper {
                 .type(root.getType().toString())
                 .size(root.getSize())
                 .children(root.getType() == SystemItemType.FOLDER ? new ArrayList<>() : null)
+                .version(root.getVersion())
                 .build();
 
     }
 
+    /**
+     * DTO с пустым списком детей заданной ёмкости для папки
+     * **/
+    public static SystemItemDto mapToDto(SystemItem item, int childCount) {
+        return SystemItemDto.builder()
+                .id(item.getId())
+                .url(item.getUrl())
+                .date(item.getDate().toString())
+                .parentId(item.getParentId())
+                .type(item.getType().toString())
+                .size(item.getSize())
+                .children(item.getType() == SystemItemType.FOLDER ? new ArrayList<>(childCount) : null)
+                .version(item.getVersion())
+                .build();
+    }
+
+    /**
+     * Слабый ETag представления элемента с поддеревом. Любое изменение в поддереве увеличивает версию
+     * всех предков, а depth, childrenLimit и cursor выбирают разные представления одной версии
+     * **/
+    public static String mapToETag(long version, Integer depth, Integer childrenLimit, String cursor) {
+        StringBuilder tag = new StringBuilder("W/\"").append(version);
+        if (depth != null) {
+            tag.append(";depth=").append(depth);
+        }
+        if (childrenLimit != null) {
+            tag.append(";limit=").append(childrenLimit);
+        }
+        if (cursor != null) {
+            tag.append(";cursor=").append(cursor);
+        }
+        return tag.append('"').toString();
+    }
+
     public static SystemItem mapFromSystemItemImport(SystemItemImport itemImport, Instant instant) {
         return new SystemItem(
                 itemImport.getId(),
@@ -43,7 +78,9 @@ public class SystemItemMapper {
                 instant,
                 itemImport.getParentId(),
                 SystemItemType.valueOf(itemImport.getType()),
-                itemImport.getSize()
+                itemImport.getSize(),
+                null,
+                null
         );
     }
 
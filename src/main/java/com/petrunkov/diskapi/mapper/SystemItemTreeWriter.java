@@ -0,0 +1,100 @@
+package com.petrunkov.diskapi.mapper;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.petrunkov.diskapi.model.SystemItem;
+import com.petrunkov.diskapi.model.SystemItemType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Consumer;
+
+/**
+ * Запись дерева элементов в формате SystemItemDto по мере чтения, без построения дерева в памяти.
+ * Элементы должны приходить в порядке обхода в глубину, в памяти держится только цепочка открытых папок
+ * **/
+public class SystemItemTreeWriter implements Consumer<SystemItem> {
+
+    private final ObjectMapper objectMapper;
+    private final OutputStream outputStream;
+    private final Deque<String> openFolders = new ArrayDeque<>();
+    private JsonGenerator generator;
+    private long itemCount;
+
+    public SystemItemTreeWriter(ObjectMapper objectMapper, OutputStream outputStream) {
+        this.objectMapper = objectMapper;
+        this.outputStream = outputStream;
+    }
+
+    @Override
+    public void accept(SystemItem item) {
+        try {
+            if (generator == null) {
+                // Поток не трогается, пока не найден корень: иначе ответ 404 уже не отправить
+                generator = objectMapper.createGenerator(outputStream, JsonEncoding.UTF8);
+            } else {
+                // Закрыть папки, поддерево которых закончилось
+                while (!openFolders.isEmpty() && !openFolders.peek().equals(item.getParentId())) {
+                    closeFolder();
+                }
+            }
+            writeItem(item);
+            itemCount++;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public long getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * Закрыть оставшиеся папки и сбросить буфер в поток
+     * **/
+    public void finish() {
+        if (generator == null) {
+            return;
+        }
+        try {
+            while (!openFolders.isEmpty()) {
+                closeFolder();
+            }
+            generator.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Порядок и значения полей совпадают с сериализацией SystemItemMapper.mapToDto
+    private void writeItem(SystemItem item) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("id", item.getId());
+        generator.writeStringField("url", item.getUrl());
+        generator.writeStringField("date", item.getDate().toString());
+        generator.writeStringField("parentId", item.getParentId());
+        generator.writeStringField("type", item.getType().toString());
+        if (item.getSize() == null) {
+            generator.writeNullField("size");
+        } else {
+            generator.writeNumberField("size", item.getSize());
+        }
+        if (item.getType() == SystemItemType.FOLDER) {
+            generator.writeArrayFieldStart("children");
+            openFolders.push(item.getId());
+        } else {
+            generator.writeNullField("children");
+            generator.writeEndObject();
+        }
+    }
+
+    private void closeFolder() throws IOException {
+        generator.writeEndArray();
+        generator.writeEndObject();
+        openFolders.pop();
+    }
+}
@@ -0,0 +1,121 @@
+package com.petrunkov.diskapi.mapper;
+
+import com.petrunkov.diskapi.dto.SystemItemDto;
+import com.petrunkov.diskapi.model.SystemItem;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.stream.IntStream;
+
+/**
+ * Сборка дерева SystemItemDto из элементов поддерева. Связи хранятся в массивах индексов:
+ * первый ребёнок и следующий брат для каждого элемента, поэтому на элемент не создаются ни узлы
+ * списков, ни записи хэш-таблиц. В DTO преобразуются только элементы, достижимые от корня.
+ * Большое поддерево (disk-api.nodes.parallel-threshold) преобразуется и связывается параллельно в общем ForkJoinPool
+ * **/
+public final class TreeAssembler {
+
+    private TreeAssembler() {
+    }
+
+    /**
+     * Дерево с корнем rootId или null, если его нет среди элементов.
+     * Элементы, не достижимые от корня, в дерево не попадают и в DTO не преобразуются
+     * **/
+    public static SystemItemDto assemble(Collection<SystemItem> items, String rootId, boolean parallel) {
+        SystemItem[] nodes = items.toArray(new SystemItem[0]);
+        int n = nodes.length;
+        IdIndex index = new IdIndex(n);
+        for (int i = 0; i < n; i++) {
+            index.put(nodes[i].getId(), i);
+        }
+        int root = index.get(rootId);
+        if (root < 0) {
+            return null;
+        }
+
+        // Один проход с конца: дети выстраиваются в исходном порядке
+        int[] firstChild = new int[n];
+        int[] nextSibling = new int[n];
+        int[] childCount = new int[n];
+        Arrays.fill(firstChild, -1);
+        for (int i = n - 1; i >= 0; i--) {
+            String parentId = nodes[i].getParentId();
+            int parent = i == root || parentId == null ? -1 : index.get(parentId);
+            if (parent >= 0) {
+                nextSibling[i] = firstChild[parent];
+                firstChild[parent] = i;
+                childCount[parent]++;
+            }
+        }
+
+        // Обход в ширину от корня. У элемента один родитель, а у корня связь с родителем не строится,
+        // поэтому каждый достижимый элемент попадает в order ровно один раз, а циклы вне дерева не обходятся
+        int[] order = new int[n];
+        order[0] = root;
+        int reachable = 1;
+        for (int k = 0; k < reachable; k++) {
+            for (int child = firstChild[order[k]]; child >= 0; child = nextSibling[child]) {
+                order[reachable++] = child;
+            }
+        }
+
+        // Списки детей создаются сразу нужного размера, каждый заполняется одной задачей
+        SystemItemDto[] dtos = new SystemItemDto[n];
+        range(reachable, parallel).map(k -> order[k])
+                .forEach(i -> dtos[i] = SystemItemMapper.mapToDto(nodes[i], childCount[i]));
+        range(reachable, parallel).map(k -> order[k]).forEach(i -> {
+            if (dtos[i].getChildren() == null) {
+                return;
+            }
+            for (int child = firstChild[i]; child >= 0; child = nextSibling[child]) {
+                dtos[i].getChildren().add(dtos[child]);
+            }
+        });
+        return dtos[root];
+    }
+
+    private static IntStream range(int n, boolean parallel) {
+        IntStream range = IntStream.range(0, n);
+        return parallel ? range.parallel() : range;
+    }
+
+    /**
+     * Хэш-таблица id -> индекс с открытой адресацией на двух массивах
+     * **/
+    private static final class IdIndex {
+        private final String[] keys;
+        private final int[] values;
+        private final int mask;
+
+        IdIndex(int expectedSize) {
+            int capacity = Integer.highestOneBit(Math.max(2, expectedSize) * 2 - 1) << 1;
+            keys = new String[capacity];
+            values = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        void put(String key, int value) {
+            int slot = slot(key);
+            while (keys[slot] != null && !keys[slot].equals(key)) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+        }
+
+        int get(String key) {
+            for (int slot = slot(key); keys[slot] != null; slot = (slot + 1) & mask) {
+                if (keys[slot].equals(key)) {
+                    return values[slot];
+                }
+            }
+            return -1;
+        }
+
+        private int slot(String key) {
+            int hash = key.hashCode();
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.petrunkov.diskapi.model;
+
+import lombok.*;
+
+import javax.persistence.*;
+import java.io.Serializable;
+
+/**
+ * Строка таблицы замыканий: связь предка с потомком на расстоянии depth.
+ * Каждый элемент также связан сам с собой с depth = 0
+ * **/
+@Entity
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@ToString
+@Table(name = "t_item_closure", indexes = @Index(name = "idx_item_closure_descendant", columnList = "descendantId, depth"))
+@IdClass(ItemClosure.Key.class)
+public class ItemClosure {
+    @Id
+    private String ancestorId;
+    @Id
+    private String descendantId;
+    private int depth;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Key implements Serializable {
+        private String ancestorId;
+        private String descendantId;
+    }
+}
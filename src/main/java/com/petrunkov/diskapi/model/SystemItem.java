@@ -14,7 +14,7 @@ import java.util.Objects;
 @AllArgsConstructor
 @NoArgsConstructor
 @ToString
-@Table(name = "t_system_items")
+@Table(name = "t_system_items", indexes = @Index(name = "idx_system_items_path", columnList = "path"))
 public class SystemItem {
     @Id
     @NotNull
@@ -27,6 +27,12 @@ public class SystemItem {
     @Enumerated(EnumType.STRING)
     private SystemItemType type;
     private Long size;
+    // Материализованный путь от корня, см. MaterializedPath
+    @Column(columnDefinition = "text COLLATE \"C\"")
+    private String path;
+    // Версия для ETag: при вставке берётся из последовательности, дальше меняется только запросами обновления
+    @Column(insertable = false, updatable = false)
+    private Long version;
 
     @Override
     public boolean equals(Object o) {
@@ -31,6 +31,15 @@ public class SystemItemArchived {
     @Enumerated(EnumType.STRING)
     private SystemItemType type;
     private Long size;
+    /**
+     * Поля, сохранённые в строке: маска ArchiveDelta, по умолчанию полная версия
+     * **/
+    @Builder.Default
+    private short storedFields = 7;
+    /**
+     * Корень дерева элемента на дату версии, хранится в каждой строке
+     * **/
+    private String rootId;
 
     @Override
     public boolean equals(Object o) {
@@ -0,0 +1,125 @@
+package com.petrunkov.diskapi.repository;
+
+import com.petrunkov.diskapi.model.SystemItem;
+import com.petrunkov.diskapi.model.SystemItemArchived;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Дельта-кодирование истории. Строка t_archive хранит date и size всегда, а url, parent_id и type -
+ * только если они отличаются от предыдущей записанной версии элемента (маска stored_fields).
+ * Полная версия пишется для первой версии элемента в месяце и при дате раньше предыдущей,
+ * поэтому база любой дельты лежит в той же месячной секции и историю достаточно читать с начала месяца.
+ * База дельты - предыдущая по bd_id строка элемента: строки восстанавливаются в порядке bd_id, а не date,
+ * иначе полная версия с прошедшей датой встаёт между дельтой и её базой
+ * **/
+public final class ArchiveDelta {
+
+    public static final short URL = 1;
+    public static final short PARENT_ID = 2;
+    public static final short TYPE = 4;
+    public static final short ALL = URL | PARENT_ID | TYPE;
+
+    private ArchiveDelta() {
+    }
+
+    /**
+     * Закодировать версию относительно предыдущего состояния элемента, null - элемент новый
+     * **/
+    public static SystemItemArchived encode(SystemItemArchived row, SystemItem previous) {
+        if (previous == null || !canEncodeAfter(previous.getDate(), row.getDate())) {
+            return row;
+        }
+        short storedFields = 0;
+        if (Objects.equals(row.getUrl(), previous.getUrl())) {
+            row.setUrl(null);
+        } else {
+            storedFields |= URL;
+        }
+        if (Objects.equals(row.getParentId(), previous.getParentId())) {
+            row.setParentId(null);
+        } else {
+            storedFields |= PARENT_ID;
+        }
+        if (row.getType() == previous.getType()) {
+            row.setType(null);
+        } else {
+            storedFields |= TYPE;
+        }
+        row.setStoredFields(storedFields);
+        return row;
+    }
+
+    /**
+     * Закодировать версию, в которой изменились только date и size.
+     * previousDate - дата предыдущей версии, null - неизвестна
+     * **/
+    public static SystemItemArchived encodeUnchanged(SystemItemArchived row, Instant previousDate) {
+        if (previousDate == null || !canEncodeAfter(previousDate, row.getDate())) {
+            return row;
+        }
+        row.setUrl(null);
+        row.setParentId(null);
+        row.setType(null);
+        row.setStoredFields((short) 0);
+        return row;
+    }
+
+    /**
+     * Начало месячной секции, в которую попадает date. Секции нарезаны по локальному времени,
+     * в котором timestamp пишется в базу
+     * **/
+    public static Instant monthStart(Instant date) {
+        ZoneId zone = ZoneId.systemDefault();
+        return YearMonth.from(LocalDateTime.ofInstant(date, zone)).atDay(1).atStartOfDay(zone).toInstant();
+    }
+
+    /**
+     * Полная версия из дельты и полной версии, на которую она ссылается
+     * **/
+    public static SystemItemArchived apply(SystemItemArchived base, SystemItemArchived row) {
+        short storedFields = row.getStoredFields();
+        return SystemItemArchived.builder()
+                .bdId(row.getBdId())
+                .id(row.getId())
+                .url((storedFields & URL) != 0 ? row.getUrl() : base.getUrl())
+                .date(row.getDate())
+                .parentId((storedFields & PARENT_ID) != 0 ? row.getParentId() : base.getParentId())
+                .type((storedFields & TYPE) != 0 ? row.getType() : base.getType())
+                .size(row.getSize())
+                .rootId(row.getRootId())
+                .build();
+    }
+
+    private static boolean canEncodeAfter(Instant previousDate, Instant date) {
+        return !date.isBefore(previousDate) && monthStart(previousDate).equals(monthStart(date));
+    }
+
+    /**
+     * Восстановление полных версий. Строки подаются в порядке bd_id, начиная с полной версии элемента,
+     * поэтому для каждого элемента хранится только его последняя версия
+     * **/
+    public static class Decoder {
+
+        private final Map<String, SystemItemArchived> latest = new HashMap<>();
+
+        public SystemItemArchived decode(SystemItemArchived row) {
+            SystemItemArchived version = row;
+            if (row.getStoredFields() != ALL) {
+                SystemItemArchived base = latest.get(row.getId());
+                if (base == null) {
+                    throw new IllegalStateException("No base version for archive row " + row.getBdId());
+                }
+                version = apply(base, row);
+            }
+            latest.put(row.getId(), version);
+            return version;
+        }
+    }
+}
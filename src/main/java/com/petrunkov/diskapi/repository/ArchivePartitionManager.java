@@ -0,0 +1,123 @@
+package com.petrunkov.diskapi.repository;
+
+import com.petrunkov.diskapi.config.DiskApiProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.time.Period;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Секционирование t_archive по месяцам колонки date.
+ * Обслуживание создаёт секции на disk-api.archive.partitions-ahead месяцев вперёд, переносит в отдельные секции
+ * строки, попавшие в секцию по умолчанию, и удаляет целиком секции старше disk-api.archive.retention.
+ * Сама секционированная таблица и секция по умолчанию создаются миграцией V1
+ * **/
+@Component
+@Slf4j
+public class ArchivePartitionManager {
+
+    private static final String PARTITION_PREFIX = "t_archive_p";
+    private static final String DEFAULT_PARTITION = "t_archive_default";
+    private static final DateTimeFormatter PARTITION_SUFFIX = DateTimeFormatter.ofPattern("yyyyMM");
+    private static final DateTimeFormatter BOUND = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final int partitionsAhead;
+    private final Period retention;
+
+    public ArchivePartitionManager(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                                   DiskApiProperties properties) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.partitionsAhead = properties.getArchive().getPartitionsAhead();
+        this.retention = properties.getArchive().getRetention();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void initialize() {
+        maintain();
+    }
+
+    @Scheduled(cron = "${disk-api.archive.maintenance-cron:0 0 3 * * *}")
+    public void maintain() {
+        transactionTemplate.executeWithoutResult(status -> {
+            // Одновременно обслуживает только один экземпляр приложения
+            jdbcTemplate.query("SELECT pg_advisory_xact_lock(hashtext('t_archive'))", (RowCallbackHandler) rs -> { });
+            Set<YearMonth> existing = getPartitions();
+            Set<YearMonth> months = new TreeSet<>(jdbcTemplate.queryForList(
+                    "SELECT DISTINCT to_char(date, 'YYYYMM') FROM " + DEFAULT_PARTITION, String.class).stream()
+                    .map(month -> YearMonth.parse(month, PARTITION_SUFFIX))
+                    .toList());
+            YearMonth now = YearMonth.now();
+            for (int i = 0; i <= partitionsAhead; i++) {
+                months.add(now.plusMonths(i));
+            }
+            months.removeAll(existing);
+            months.forEach(this::createPartition);
+            existing.addAll(months);
+            if (retention != null) {
+                dropExpired(existing, LocalDate.now().minus(retention));
+            }
+        });
+    }
+
+    private Set<YearMonth> getPartitions() {
+        Set<YearMonth> partitions = new TreeSet<>();
+        jdbcTemplate.queryForList(
+                "SELECT c.relname::text FROM pg_inherits i " +
+                "JOIN pg_class c ON c.oid = i.inhrelid " +
+                "WHERE i.inhparent = 't_archive'::regclass", String.class).forEach(name -> {
+            if (name.startsWith(PARTITION_PREFIX)) {
+                partitions.add(YearMonth.parse(name.substring(PARTITION_PREFIX.length()), PARTITION_SUFFIX));
+            }
+        });
+        return partitions;
+    }
+
+    /**
+     * Создать секцию месяца, забрав её строки из секции по умолчанию:
+     * иначе PostgreSQL не даст подключить секцию с пересекающимся диапазоном
+     * **/
+    private void createPartition(YearMonth month) {
+        String name = PARTITION_PREFIX + month.format(PARTITION_SUFFIX);
+        String from = month.atDay(1).atStartOfDay().format(BOUND);
+        String to = month.plusMonths(1).atDay(1).atStartOfDay().format(BOUND);
+        log.info("Creating archive partition {}", name);
+        jdbcTemplate.execute("CREATE TABLE " + name + " (LIKE t_archive INCLUDING DEFAULTS)");
+        jdbcTemplate.update("WITH moved AS (" +
+                "DELETE FROM " + DEFAULT_PARTITION + " WHERE date >= ?::timestamp AND date < ?::timestamp RETURNING *) " +
+                "INSERT INTO " + name + " SELECT * FROM moved", from, to);
+        jdbcTemplate.execute("ALTER TABLE t_archive ATTACH PARTITION " + name +
+                " FOR VALUES FROM ('" + from + "') TO ('" + to + "')");
+    }
+
+    /**
+     * Удалить секции, целиком лежащие до границы хранения, устаревшие строки секции по умолчанию
+     * и переносы и удаления, история которых уже удалена
+     * **/
+    private void dropExpired(Set<YearMonth> partitions, LocalDate cutoff) {
+        partitions.stream()
+                .filter(month -> !month.plusMonths(1).atDay(1).isAfter(cutoff))
+                .forEach(month -> {
+                    log.info("Dropping expired archive partition {}", month);
+                    jdbcTemplate.execute("DROP TABLE " + PARTITION_PREFIX + month.format(PARTITION_SUFFIX));
+                });
+        String bound = cutoff.atStartOfDay().format(BOUND);
+        jdbcTemplate.update("DELETE FROM " + DEFAULT_PARTITION + " WHERE date < ?::timestamp", bound);
+        jdbcTemplate.update("DELETE FROM t_tree_move WHERE date < ?::timestamp", bound);
+        jdbcTemplate.update("DELETE FROM t_tree_tombstone WHERE date < ?::timestamp", bound);
+    }
+}
@@ -4,11 +4,11 @@ import com.petrunkov.diskapi.model.SystemItemArchived;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
-import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.Instant;
 import java.util.Collection;
+import java.util.List;
 
 public interface ArchiveRepository extends JpaRepository<SystemItemArchived, Long> {
 
@@ -16,29 +16,70 @@ public interface ArchiveRepository extends JpaRepository<SystemItemArchived, Lon
     @Query(nativeQuery = true, value =
     "DELETE FROM t_archive WHERE id = ?1 ;")
     @Modifying
-    @Transactional(isolation = Isolation.SERIALIZABLE)
+    @Transactional
     void deleteFileById(String id);
 
+    @Query(nativeQuery = true, value =
+            "DELETE FROM t_archive o " +
+            "USING t_system_items p, t_system_items s " +
+            "WHERE p.id = ?1 " +
+                "AND s.path >= p.path " +
+                "AND s.path < left(p.path, -1) || '0' " +
+                "AND o.id = s.id ; ")
+    @Modifying
+    @Transactional
+    void deleteSubtreeByPath(String id);
+
+    @Query(nativeQuery = true, value =
+            "DELETE FROM t_archive o " +
+            "USING t_item_closure c " +
+            "WHERE c.ancestor_id = ?1 " +
+                "AND o.id = c.descendant_id ; ")
+    @Modifying
+    @Transactional
+    void deleteSubtreeByClosure(String id);
+
     @Query(nativeQuery = true, value = "WITH RECURSIVE items AS(" +
-            "SELECT id, url, date, parent_id, type, size " +
+            "SELECT id " +
             "FROM t_system_items " +
             "WHERE id = ?1 " +
             "UNION ALL " +
-            "SELECT e.id, " +
-            "e.url, " +
-            "e.date, " +
-            "e.parent_id," +
-            "e.type," +
-            "e.size " +
+            "SELECT e.id " +
             "FROM t_system_items e, items " +
             "WHERE items.id = e.parent_id) " +
             "DELETE FROM t_archive o WHERE o.id IN (SELECT i.id FROM items i); ")
     @Modifying
-    @Transactional(isolation = Isolation.SERIALIZABLE)
-    void deleteFolderById(String id);
+    @Transactional
+    void deleteSubtreeRecursive(String id);
 
+    /**
+     * История за полуинтервал [dateStart, dateEnd): условие по date отсекает секции вне интервала
+     * **/
     @Query(nativeQuery = true, value =
-    "SELECT * FROM t_archive WHERE id = ?1 AND date BETWEEN ?2 AND ?3 ;")
+    "SELECT * FROM t_archive WHERE id = ?1 AND date >= ?2 AND date < ?3 ;")
     Collection<SystemItemArchived> getHistoryInterval(String id, Instant dateStart, Instant dateEnd);
 
+    /**
+     * Строки элемента с датой в [dateStart, dateEnd] и bd_id до maxBdId, начиная с последней полной версии
+     * перед строкой minBdId. Содержит цепочки баз всех дельт с bd_id из [minBdId, maxBdId] и датой из интервала,
+     * если dateStart - начало месяца самой ранней из них
+     * **/
+    @Query(nativeQuery = true, value =
+    "SELECT * FROM t_archive WHERE id = ?1 AND date >= ?2 AND date <= ?3 AND bd_id <= ?5 " +
+            "AND bd_id >= (SELECT max(f.bd_id) FROM t_archive f " +
+                "WHERE f.id = ?1 AND f.date >= ?2 AND f.date <= ?3 AND f.bd_id < ?4 AND f.stored_fields = 7) ;")
+    Collection<SystemItemArchived> getHistoryChain(String id, Instant dateStart, Instant dateEnd,
+                                                   long minBdId, long maxBdId);
+
+    /**
+     * Страница getHistoryInterval в порядке (date, bd_id), строго после ключа (afterDate, afterBdId)
+     * **/
+    @Query(nativeQuery = true, value =
+    "SELECT * FROM t_archive WHERE id = ?1 AND date >= ?2 AND date < ?3 " +
+            "AND (date, bd_id) > (?4, ?5) " +
+            "ORDER BY date, bd_id " +
+            "LIMIT ?6 ;")
+    List<SystemItemArchived> getHistoryPage(String id, Instant dateStart, Instant dateEnd,
+                                            Instant afterDate, long afterBdId, int limit);
+
 }
@@ -0,0 +1,181 @@
+package com.petrunkov.diskapi.repository;
+
+import com.petrunkov.diskapi.config.DiskApiProperties;
+import com.petrunkov.diskapi.model.SystemItemArchived;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Запись истории в t_archive пачками. Строки копятся в буфере текущей транзакции и вставляются
+ * одним INSERT ... SELECT FROM unnest(массивы колонок) при заполнении буфера и перед коммитом.
+ * Идентификаторы берутся из hibernate_sequence на стороне базы, без отдельного запроса на строку.
+ * Версия элемента с той же датой, что и его последняя версия в буфере, заменяет её: от каждого (id, date)
+ * остаётся итоговая строка
+ * **/
+@Component
+public class ArchiveWriter {
+
+    private static final String INSERT_QUERY =
+            "INSERT INTO t_archive (bd_id, id, url, date, parent_id, type, size, stored_fields, root_id) " +
+            "SELECT nextval('hibernate_sequence'), r.* " +
+            "FROM unnest(?::varchar[], ?::varchar[], ?::timestamp[], ?::varchar[], ?::varchar[], ?::bigint[], " +
+                "?::smallint[], ?::varchar[]) " +
+                "AS r(id, url, date, parent_id, type, size, stored_fields, root_id)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final int batchSize;
+    private final Timer insertTimer;
+    private final Counter insertedRows;
+
+    public ArchiveWriter(JdbcTemplate jdbcTemplate, DiskApiProperties properties, MeterRegistry registry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.batchSize = properties.getArchive().getBatchSize();
+        this.insertTimer = registry.timer("diskapi.archive.insert");
+        this.insertedRows = registry.counter("diskapi.archive.rows");
+    }
+
+    public void add(SystemItemArchived row) {
+        addAll(List.of(row));
+    }
+
+    public void addAll(Collection<SystemItemArchived> rows) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            Buffer buffer = new Buffer();
+            rows.forEach(buffer::add);
+            insert(buffer.rows);
+            return;
+        }
+        Buffer buffer = getBuffer();
+        rows.forEach(buffer::add);
+        if (buffer.rows.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Записать буфер текущей транзакции. Вызывается перед запросами, которые должны видеть накопленные строки
+     * **/
+    public void flush() {
+        if (!TransactionSynchronizationManager.hasResource(this)) {
+            return;
+        }
+        Buffer buffer = getBuffer();
+        insert(buffer.rows);
+        buffer.clear();
+    }
+
+    private Buffer getBuffer() {
+        Buffer buffer = (Buffer) TransactionSynchronizationManager.getResource(this);
+        if (buffer == null) {
+            buffer = new Buffer();
+            TransactionSynchronizationManager.bindResource(this, buffer);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void beforeCommit(boolean readOnly) {
+                    flush();
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(ArchiveWriter.this);
+                }
+            });
+        }
+        return buffer;
+    }
+
+    /**
+     * Строки в порядке записи и позиция последней строки каждого элемента.
+     * Сливается только последняя версия элемента: на более раннюю могут ссылаться дельты после неё
+     * **/
+    private static class Buffer {
+        private final List<SystemItemArchived> rows = new ArrayList<>();
+        private final Map<String, Integer> lastRows = new HashMap<>();
+
+        void add(SystemItemArchived row) {
+            Integer last = lastRows.get(row.getId());
+            if (last != null && rows.get(last).getDate().equals(row.getDate())) {
+                rows.set(last, merge(rows.get(last), row));
+                return;
+            }
+            lastRows.put(row.getId(), rows.size());
+            rows.add(row);
+        }
+
+        void clear() {
+            rows.clear();
+            lastRows.clear();
+        }
+
+        /**
+         * Итоговая версия: поля, сохранённые в поздней строке, иначе из ранней.
+         * База объединённой строки - база ранней
+         * **/
+        private static SystemItemArchived merge(SystemItemArchived earlier, SystemItemArchived later) {
+            short laterFields = later.getStoredFields();
+            return SystemItemArchived.builder()
+                    .id(later.getId())
+                    .url((laterFields & ArchiveDelta.URL) != 0 ? later.getUrl() : earlier.getUrl())
+                    .date(later.getDate())
+                    .parentId((laterFields & ArchiveDelta.PARENT_ID) != 0 ? later.getParentId() : earlier.getParentId())
+                    .type((laterFields & ArchiveDelta.TYPE) != 0 ? later.getType() : earlier.getType())
+                    .size(later.getSize())
+                    .storedFields((short) (earlier.getStoredFields() | laterFields))
+                    .rootId(later.getRootId())
+                    .build();
+        }
+    }
+
+    private void insert(List<SystemItemArchived> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        int size = rows.size();
+        String[] ids = new String[size];
+        String[] urls = new String[size];
+        Timestamp[] dates = new Timestamp[size];
+        String[] parentIds = new String[size];
+        String[] types = new String[size];
+        Long[] sizes = new Long[size];
+        Short[] storedFields = new Short[size];
+        String[] rootIds = new String[size];
+        for (int i = 0; i < size; i++) {
+            SystemItemArchived row = rows.get(i);
+            ids[i] = row.getId();
+            urls[i] = row.getUrl();
+            dates[i] = Timestamp.from(row.getDate());
+            parentIds[i] = row.getParentId();
+            // В дельте неизменившийся тип не хранится
+            types[i] = row.getType() == null ? null : row.getType().toString();
+            sizes[i] = row.getSize();
+            storedFields[i] = row.getStoredFields();
+            rootIds[i] = row.getRootId();
+        }
+        insertedRows.increment(size);
+        insertTimer.record(() -> jdbcTemplate.update(connection -> {
+            PreparedStatement statement = connection.prepareStatement(INSERT_QUERY);
+            statement.setArray(1, connection.createArrayOf("varchar", ids));
+            statement.setArray(2, connection.createArrayOf("varchar", urls));
+            statement.setArray(3, connection.createArrayOf("timestamp", dates));
+            statement.setArray(4, connection.createArrayOf("varchar", parentIds));
+            statement.setArray(5, connection.createArrayOf("varchar", types));
+            statement.setArray(6, connection.createArrayOf("int8", sizes));
+            statement.setArray(7, connection.createArrayOf("int2", storedFields));
+            statement.setArray(8, connection.createArrayOf("varchar", rootIds));
+            return statement;
+        }));
+    }
+}
@@ -0,0 +1,85 @@
+package com.petrunkov.diskapi.repository;
+
+import com.petrunkov.diskapi.model.ItemClosure;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.transaction.annotation.Transactional;
+
+public interface ClosureRepository extends JpaRepository<ItemClosure, ItemClosure.Key> {
+
+    @Query(nativeQuery = true, value =
+            "INSERT INTO t_item_closure (ancestor_id, descendant_id, depth) " +
+            "VALUES (?1, ?1, 0) ; ")
+    @Modifying
+    @Transactional
+    void insertSelfLink(String id);
+
+    /**
+     * Связать новый элемент с родителем и всеми предками родителя
+     * **/
+    @Query(nativeQuery = true, value =
+            "INSERT INTO t_item_closure (ancestor_id, descendant_id, depth) " +
+            "SELECT ancestor_id, ?1, depth + 1 " +
+            "FROM t_item_closure " +
+            "WHERE descendant_id = ?2 " +
+            "UNION ALL " +
+            "SELECT ?1, ?1, 0 ; ")
+    @Modifying
+    @Transactional
+    void insertLinks(String id, String parentId);
+
+    /**
+     * Разорвать связи поддерева элемента с его прежними предками
+     * **/
+    @Query(nativeQuery = true, value =
+            "DELETE FROM t_item_closure c " +
+            "USING t_item_closure d, t_item_closure a " +
+            "WHERE d.ancestor_id = ?1 " +
+                "AND a.descendant_id = ?1 " +
+                "AND a.depth > 0 " +
+                "AND c.descendant_id = d.descendant_id " +
+                "AND c.ancestor_id = a.ancestor_id ; ")
+    @Modifying
+    @Transactional
+    void detachSubtree(String id);
+
+    /**
+     * Связать поддерево элемента с новым родителем и всеми его предками
+     * **/
+    @Query(nativeQuery = true, value =
+            "INSERT INTO t_item_closure (ancestor_id, descendant_id, depth) " +
+            "SELECT p.ancestor_id, d.descendant_id, p.depth + d.depth + 1 " +
+            "FROM t_item_closure p, t_item_closure d " +
+            "WHERE p.descendant_id = ?2 " +
+                "AND d.ancestor_id = ?1 ; ")
+    @Modifying
+    @Transactional
+    void attachSubtree(String id, String parentId);
+
+    @Query(nativeQuery = true, value =
+            "DELETE FROM t_item_closure c " +
+            "USING t_item_closure d " +
+            "WHERE d.ancestor_id = ?1 " +
+                "AND c.descendant_id = d.descendant_id ; ")
+    @Modifying
+    @Transactional
+    void deleteSubtree(String id);
+
+    /**
+     * Построить таблицу замыканий для элементов, сохранённых без неё
+     * **/
+    @Query(nativeQuery = true, value =
+            "INSERT INTO t_item_closure (ancestor_id, descendant_id, depth) " +
+            "WITH RECURSIVE links AS(" +
+                "SELECT id AS ancestor_id, id AS descendant_id, 0 AS depth " +
+                "FROM t_system_items " +
+                "UNION ALL " +
+                "SELECT l.ancestor_id, e.id, l.depth + 1 " +
+                "FROM t_system_items e, links l " +
+                "WHERE l.descendant_id = e.parent_id) " +
+            "SELECT ancestor_id, descendant_id, depth FROM links ; ")
+    @Modifying
+    @Transactional
+    void rebuild();
+}
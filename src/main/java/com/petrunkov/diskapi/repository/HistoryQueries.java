@@ -0,0 +1,207 @@
+package com.petrunkov.diskapi.repository;
+
+import com.petrunkov.diskapi.config.DiskApiProperties;
+import com.petrunkov.diskapi.model.SystemItem;
+import com.petrunkov.diskapi.model.SystemItemArchived;
+import com.petrunkov.diskapi.model.SystemItemType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * Чтение истории курсором в порядке (date, key) без загрузки всей выборки.
+ * Курсор PostgreSQL работает только внутри транзакции
+ * **/
+@Component
+public class HistoryQueries {
+
+    private static final String FILE_UPDATES_QUERY =
+            "SELECT id, url, date, parent_id, type, size FROM t_system_items " +
+            "WHERE type = 'FILE' AND date BETWEEN ? AND ? " +
+            "ORDER BY date, id";
+
+    private static final String ITEM_HISTORY_QUERY =
+            "SELECT bd_id, id, url, date, parent_id, type, size, stored_fields, root_id FROM t_archive " +
+            "WHERE id = ? AND date >= ? AND date < ? " +
+            "ORDER BY date, bd_id";
+
+    private static final String ROOTS_HISTORY_QUERY =
+            "SELECT a.bd_id, a.id, a.url, a.date, a.parent_id, a.type, a.size, a.stored_fields, a.root_id " +
+            "FROM unnest(?::varchar[], ?::timestamp[]) AS r(root_id, after) " +
+            "JOIN t_archive a ON a.root_id = r.root_id " +
+                "AND a.date > COALESCE(r.after, '-infinity') " +
+                "AND a.date <= ? " +
+            "ORDER BY a.bd_id";
+
+    // Цепочка баз строки: от последней полной версии элемента перед ней до самой строки
+    private static final String BASES_QUERY =
+            "SELECT r.bd_id AS request_id, a.bd_id, a.id, a.url, a.date, a.parent_id, a.type, a.size, " +
+                "a.stored_fields, a.root_id " +
+            "FROM unnest(?::bigint[], ?::varchar[], ?::timestamp[], ?::timestamp[]) AS r(bd_id, id, month_start, date) " +
+            "JOIN t_archive a ON a.id = r.id " +
+                "AND a.date >= r.month_start " +
+                "AND a.date <= r.date " +
+                "AND a.bd_id < r.bd_id " +
+                "AND a.bd_id >= (SELECT max(f.bd_id) FROM t_archive f " +
+                    "WHERE f.id = r.id AND f.date >= r.month_start AND f.date <= r.date " +
+                        "AND f.bd_id < r.bd_id AND f.stored_fields = 7) " +
+            "ORDER BY r.bd_id, a.bd_id";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final int fetchSize;
+
+    public HistoryQueries(JdbcTemplate jdbcTemplate, DiskApiProperties properties) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.fetchSize = properties.getStreaming().getFetchSize();
+    }
+
+    public void forEachFileUpdate(Instant start, Instant finish, Consumer<SystemItem> consumer) {
+        query(FILE_UPDATES_QUERY, rs -> consumer.accept(SystemItemRowMapper.INSTANCE.mapRow(rs, rs.getRow())),
+                Timestamp.from(start), Timestamp.from(finish));
+    }
+
+    /**
+     * Полные версии элемента за [start, end). Чтение начинается с начала месяца start, где лежат базы дельт.
+     * В памяти держатся строки одного месяца: они восстанавливаются в порядке bd_id и выдаются в порядке date
+     * **/
+    public void forEachArchived(String id, Instant start, Instant end, Consumer<SystemItemArchived> consumer) {
+        ArchiveDelta.Decoder decoder = new ArchiveDelta.Decoder();
+        List<SystemItemArchived> month = new ArrayList<>();
+        Instant[] monthStart = {null};
+        query(ITEM_HISTORY_QUERY, rs -> {
+            SystemItemArchived row = mapArchived(rs);
+            Instant rowMonth = ArchiveDelta.monthStart(row.getDate());
+            if (!rowMonth.equals(monthStart[0])) {
+                decodeMonth(month, decoder, start, consumer);
+                monthStart[0] = rowMonth;
+            }
+            month.add(row);
+        }, id, Timestamp.from(ArchiveDelta.monthStart(start)), Timestamp.from(end));
+        decodeMonth(month, decoder, start, consumer);
+    }
+
+    private static void decodeMonth(List<SystemItemArchived> rows, ArchiveDelta.Decoder decoder, Instant start,
+                                    Consumer<SystemItemArchived> consumer) {
+        rows.sort(Comparator.comparing(SystemItemArchived::getBdId));
+        rows.stream()
+                .map(decoder::decode)
+                .sorted(Comparator.comparing(SystemItemArchived::getDate).thenComparing(SystemItemArchived::getBdId))
+                .filter(version -> !version.getDate().isBefore(start))
+                .forEach(consumer);
+        rows.clear();
+    }
+
+    /**
+     * Последняя полная версия элемента с датой не позже at
+     * **/
+    public Optional<SystemItemArchived> findVersionAt(String id, Instant at) {
+        Timestamp date = jdbcTemplate.queryForObject(
+                "SELECT max(date) FROM t_archive WHERE id = ? AND date <= ?", Timestamp.class, id, Timestamp.from(at));
+        if (date == null) {
+            return Optional.empty();
+        }
+        List<SystemItemArchived> versions = new ArrayList<>();
+        forEachArchived(id, date.toInstant(), date.toInstant().plus(1, ChronoUnit.MICROS), versions::add);
+        return Optional.of(versions.get(versions.size() - 1));
+    }
+
+    /**
+     * Строки истории деревьев без восстановления дельт в порядке bd_id. Корень -> начало интервала (after, until],
+     * null - с начала истории
+     * **/
+    public List<SystemItemArchived> findArchivedOfRoots(Map<String, Instant> after, Instant until) {
+        List<String> roots = new ArrayList<>(after.keySet());
+        Timestamp[] from = roots.stream()
+                .map(root -> after.get(root) == null ? null : Timestamp.from(after.get(root)))
+                .toArray(Timestamp[]::new);
+        List<SystemItemArchived> rows = new ArrayList<>();
+        jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(ROOTS_HISTORY_QUERY);
+            statement.setFetchSize(fetchSize);
+            statement.setArray(1, connection.createArrayOf("varchar", roots.toArray()));
+            statement.setArray(2, connection.createArrayOf("timestamp", from));
+            statement.setTimestamp(3, Timestamp.from(until));
+            return statement;
+        }, (RowCallbackHandler) rs -> rows.add(mapArchived(rs)));
+        return rows;
+    }
+
+    /**
+     * Полные версии, на которые ссылаются дельты rows, одним запросом: bd_id дельты -> её база.
+     * База - предыдущая по bd_id строка элемента, она лежит в том же месяце и не позже самой дельты
+     * **/
+    public Map<Long, SystemItemArchived> findBases(Collection<SystemItemArchived> rows) {
+        Map<Long, SystemItemArchived> bases = new HashMap<>();
+        if (rows.isEmpty()) {
+            return bases;
+        }
+        Long[] bdIds = rows.stream().map(SystemItemArchived::getBdId).toArray(Long[]::new);
+        String[] ids = rows.stream().map(SystemItemArchived::getId).toArray(String[]::new);
+        Timestamp[] monthStarts = rows.stream()
+                .map(row -> Timestamp.from(ArchiveDelta.monthStart(row.getDate())))
+                .toArray(Timestamp[]::new);
+        Timestamp[] dates = rows.stream().map(row -> Timestamp.from(row.getDate())).toArray(Timestamp[]::new);
+        long[] request = {-1};
+        ArchiveDelta.Decoder[] decoder = {null};
+        jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(BASES_QUERY);
+            statement.setArray(1, connection.createArrayOf("int8", bdIds));
+            statement.setArray(2, connection.createArrayOf("varchar", ids));
+            statement.setArray(3, connection.createArrayOf("timestamp", monthStarts));
+            statement.setArray(4, connection.createArrayOf("timestamp", dates));
+            return statement;
+        }, (RowCallbackHandler) rs -> {
+            long requestId = rs.getLong("request_id");
+            if (requestId != request[0]) {
+                request[0] = requestId;
+                decoder[0] = new ArchiveDelta.Decoder();
+            }
+            // Последняя строка цепочки - база запрошенной дельты
+            bases.put(requestId, decoder[0].decode(mapArchived(rs)));
+        });
+        return bases;
+    }
+
+    private static SystemItemArchived mapArchived(ResultSet rs) throws SQLException {
+        String type = rs.getString("type");
+        long size = rs.getLong("size");
+        boolean sizeIsNull = rs.wasNull();
+        return SystemItemArchived.builder()
+                .bdId(rs.getLong("bd_id"))
+                .id(rs.getString("id"))
+                .url(rs.getString("url"))
+                .date(rs.getTimestamp("date").toInstant())
+                .parentId(rs.getString("parent_id"))
+                .type(type == null ? null : SystemItemType.valueOf(type))
+                .size(sizeIsNull ? null : size)
+                .storedFields(rs.getShort("stored_fields"))
+                .rootId(rs.getString("root_id"))
+                .build();
+    }
+
+    private void query(String query, RowCallbackHandler handler, Object... parameters) {
+        jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(query);
+            statement.setFetchSize(fetchSize);
+            for (int i = 0; i < parameters.length; i++) {
+                statement.setObject(i + 1, parameters[i]);
+            }
+            return statement;
+        }, handler);
+    }
+}
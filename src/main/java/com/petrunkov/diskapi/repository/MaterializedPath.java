@@ -0,0 +1,69 @@
+package com.petrunkov.diskapi.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Материализованный путь элемента: идентификаторы от корня до элемента, каждый завершается '/'.
+ * Символы '/' и '\' внутри id экранируются, поэтому путь любого потомка начинается с пути предка,
+ * а всё поддерево занимает диапазон [path, upperBound(path)) в порядке сортировки "C"
+ * **/
+public final class MaterializedPath {
+
+    public static final char SEPARATOR = '/';
+    private static final char ESCAPE = '\\';
+
+    private MaterializedPath() {
+    }
+
+    public static String of(String parentPath, String id) {
+        return (parentPath == null ? String.valueOf(SEPARATOR) : parentPath) + encode(id) + SEPARATOR;
+    }
+
+    /**
+     * Граница, не включаемая в диапазон поддерева: последний разделитель заменяется на следующий символ
+     * **/
+    public static String upperBound(String path) {
+        return path.substring(0, path.length() - 1) + (char) (SEPARATOR + 1);
+    }
+
+    /**
+     * Идентификаторы предков от корня, без самого элемента
+     * **/
+    public static List<String> getAncestorIds(String path) {
+        List<String> ids = getIds(path);
+        return ids.subList(0, Math.max(0, ids.size() - 1));
+    }
+
+    /**
+     * Идентификаторы от корня до элемента включительно
+     * **/
+    public static List<String> getIds(String path) {
+        List<String> ids = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        for (int i = 1; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == ESCAPE && i + 1 < path.length()) {
+                current.append(path.charAt(++i));
+            } else if (c == SEPARATOR) {
+                ids.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        return ids;
+    }
+
+    private static String encode(String id) {
+        StringBuilder builder = new StringBuilder(id.length());
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c == SEPARATOR || c == ESCAPE) {
+                builder.append(ESCAPE);
+            }
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+}
@@ -5,17 +5,228 @@ import com.petrunkov.diskapi.model.SystemItem;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
-import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
 import java.util.Set;
 
 
 public interface StorageRepository extends JpaRepository<SystemItem, String> {
+
+    interface ItemPath {
+        String getId();
+        String getPath();
+    }
+
+    interface ItemRoot {
+        String getId();
+        String getRootId();
+    }
+
+    @Query(nativeQuery = true, value =
+            "SELECT * FROM t_system_items " +
+            "WHERE type = 'FILE' AND date BETWEEN ?1 AND ?2 ; ")
+
+    Set<SystemItem> getFileHistory(Instant start, Instant finish);
+
+    /**
+     * Страница getFileHistory в порядке (date, id), строго после ключа (afterDate, afterId)
+     * **/
+    @Query(nativeQuery = true, value =
+            "SELECT * FROM t_system_items " +
+            "WHERE type = 'FILE' AND date BETWEEN ?1 AND ?2 " +
+                "AND (date, id) > (?3, ?4) " +
+            "ORDER BY date, id " +
+            "LIMIT ?5 ; ")
+    List<SystemItem> getFileHistoryPage(Instant start, Instant finish, Instant afterDate, String afterId, int limit);
+
+    /**
+     * Добавить изменение размера и дату обновления сразу множеству предков, каждый получает новую версию
+     * **/
+    @Query(nativeQuery = true, value =
+            "UPDATE t_system_items " +
+                "SET size = COALESCE(size, 0) + ?2, " +
+                    "date = ?3, " +
+                    "version = nextval('t_system_items_version_seq') " +
+                "WHERE id IN (?1) ; ")
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Transactional
+    void updatePredecessors(Collection<String> ids, long sizeChange, Instant date);
+
+    /**
+     * Новые версии элементам, обновлённым импортом: JPA колонку version не пишет
+     * **/
+    @Query(nativeQuery = true, value =
+            "UPDATE t_system_items " +
+                "SET version = nextval('t_system_items_version_seq') " +
+                "WHERE id IN (?1) ; ")
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Transactional
+    void updateVersions(Collection<String> ids);
+
+    @Query(nativeQuery = true, value = "SELECT version FROM t_system_items WHERE id = ?1 ; ")
+    Optional<Long> findVersionById(String id);
+
+    // Материализованный путь
+
+    @Query(nativeQuery = true, value =
+    "SELECT s.* " +
+            "FROM t_system_items p " +
+            "JOIN t_system_items s " +
+                "ON s.path >= p.path " +
+                "AND s.path < left(p.path, -1) || '0' " +
+            "WHERE p.id = ?1 ; ")
+    Set<SystemItem> getSubtreeByPath(String id);
+
+    @Query(nativeQuery = true, value =
+            "SELECT s.id " +
+            "FROM t_system_items p " +
+            "JOIN t_system_items s " +
+                "ON s.path >= p.path " +
+                "AND s.path < left(p.path, -1) || '0' " +
+            "WHERE p.id = ?1 ; ")
+    List<String> getSubtreeIdsByPath(String id);
+
+    /**
+     * Удалённые элементы не должны оставаться в контексте сохранения: он очищается после запроса
+     * **/
+    @Query(nativeQuery = true, value =
+            "DELETE FROM t_system_items s " +
+                "USING t_system_items p " +
+                "WHERE p.id = ?1 " +
+                    "AND s.path >= p.path " +
+                    "AND s.path < left(p.path, -1) || '0' ; ")
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Transactional
+    void deleteSubtreeByPath(String id);
+
+    /**
+     * Предки элемента по его материализованному пути: один запрос по первичному ключу
+     * **/
+    default List<SystemItem> getPredecessorsByPath(SystemItem item) {
+        return findAllById(MaterializedPath.getAncestorIds(item.getPath()));
+    }
+
+    /**
+     * Заменить префикс пути у элемента и всего его поддерева при смене parentId
+     * **/
+    @Query(nativeQuery = true, value =
+            "UPDATE t_system_items " +
+                "SET path = ?2 || substr(path, length(?1) + 1) " +
+                "WHERE path >= ?1 " +
+                    "AND path < left(?1, -1) || '0' ; ")
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Transactional
+    void movePaths(String oldPath, String newPath);
+
+    @Query(nativeQuery = true, value =
+            "SELECT id, path FROM t_system_items " +
+            "WHERE id IN (?1) ; ")
+    List<ItemPath> getPaths(Collection<String> ids);
+
+    boolean existsByPathIsNull();
+
+    List<SystemItem> findAllByParentIdIsNull();
+
+    /**
+     * Построить пути для элементов, сохранённых до появления колонки path
+     * **/
+    @Query(nativeQuery = true, value =
+            "WITH RECURSIVE paths AS(" +
+                "SELECT id, '/' || replace(replace(id, '\\', '\\\\'), '/', '\\/') || '/' AS path " +
+                "FROM t_system_items " +
+                "WHERE parent_id IS NULL " +
+                "UNION ALL " +
+                "SELECT e.id, " +
+                    "p.path || replace(replace(e.id, '\\', '\\\\'), '/', '\\/') || '/' " +
+                "FROM t_system_items e, paths p " +
+                "WHERE p.id = e.parent_id) " +
+            "UPDATE t_system_items t " +
+                "SET path = paths.path " +
+                "FROM paths " +
+                "WHERE t.id = paths.id " +
+                    "AND t.path IS DISTINCT FROM paths.path ; ")
+    @Modifying
+    @Transactional
+    void rebuildPaths();
+
+    // Таблица замыканий
+
+    @Query(nativeQuery = true, value =
+            "SELECT s.* " +
+            "FROM t_item_closure c " +
+            "JOIN t_system_items s ON s.id = c.descendant_id " +
+            "WHERE c.ancestor_id = ?1 ; ")
+    Set<SystemItem> getSubtreeByClosure(String id);
+
+    @Query(nativeQuery = true, value =
+            "SELECT s.* " +
+            "FROM t_item_closure c " +
+            "JOIN t_system_items s ON s.id = c.ancestor_id " +
+            "WHERE c.descendant_id = ?1 " +
+                "AND c.depth > 0 ; ")
+    List<SystemItem> getPredecessorsByClosure(String id);
+
+    /**
+     * Корень дерева для каждого существующего элемента - предок наибольшей глубины
+     * **/
+    @Query(nativeQuery = true, value =
+            "SELECT DISTINCT ON (c.descendant_id) c.descendant_id AS id, c.ancestor_id AS \"rootId\" " +
+            "FROM t_item_closure c " +
+            "WHERE c.descendant_id IN (?1) " +
+            "ORDER BY c.descendant_id, c.depth DESC ; ")
+    List<ItemRoot> getRootsByClosure(Collection<String> ids);
+
+    @Query(nativeQuery = true, value =
+            "SELECT c.descendant_id " +
+            "FROM t_item_closure c " +
+            "WHERE c.ancestor_id = ?1 ; ")
+    List<String> getSubtreeIdsByClosure(String id);
+
+    @Query(nativeQuery = true, value =
+            "DELETE FROM t_system_items s " +
+                "USING t_item_closure c " +
+                "WHERE c.ancestor_id = ?1 " +
+                    "AND s.id = c.descendant_id ; ")
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Transactional
+    void deleteSubtreeByClosure(String id);
+
+    // Рекурсивные CTE
+
+    /**
+     * Элемент и его поддерево до глубины depth, у каждой папки - не больше limit + 1 первых детей в порядке id.
+     * Лишний ребёнок показывает, что дети выданы не полностью, и его поддерево не читается.
+     * У самого элемента дети начинаются строго после afterId. Строки упорядочены по (глубина, родитель, номер)
+     * **/
+    @Query(nativeQuery = true, value =
+            "WITH RECURSIVE items AS(" +
+                "SELECT id, url, date, parent_id, type, size, path, version, 0 AS depth, 1::bigint AS rn " +
+                "FROM t_system_items " +
+                "WHERE id = ?1 " +
+                "UNION ALL " +
+                "SELECT c.id, c.url, c.date, c.parent_id, c.type, c.size, c.path, c.version, items.depth + 1, c.rn " +
+                "FROM items " +
+                "CROSS JOIN LATERAL (" +
+                    "SELECT e.*, row_number() OVER (ORDER BY e.id) AS rn " +
+                    "FROM t_system_items e " +
+                    "WHERE e.parent_id = items.id " +
+                        "AND (items.depth > 0 OR e.id > ?4) " +
+                    "ORDER BY e.id " +
+                    "LIMIT ?3 + 1) c " +
+                "WHERE items.depth < ?2 " +
+                    "AND items.type = 'FOLDER' " +
+                    "AND items.rn <= ?3) " +
+            "SELECT id, url, date, parent_id, type, size, path, version FROM items " +
+            "ORDER BY depth, parent_id, rn ; ")
+    List<SystemItem> getSubtreeLimited(String id, int depth, long limit, String afterId);
+
     @Query(nativeQuery = true, value =
     "WITH RECURSIVE items AS(" +
-            "SELECT id, url, date, parent_id, type, size " +
+            "SELECT id, url, date, parent_id, type, size, path, version " +
             "FROM t_system_items " +
             "WHERE id = ?1 " +
             "UNION ALL " +
@@ -24,41 +235,41 @@ public interface StorageRepository extends JpaRepository<SystemItem, String> {
                 "e.date, " +
                 "e.parent_id," +
                 "e.type," +
-                "e.size " +
+                "e.size," +
+                "e.path," +
+                "e.version " +
             "FROM t_system_items e, items " +
             "WHERE items.id = e.parent_id) " +
             "SELECT * FROM items; ")
-    Set<SystemItem> getItemInfo(String id);
+    Set<SystemItem> getSubtreeRecursive(String id);
     @Query(nativeQuery = true, value =
             "WITH RECURSIVE items AS(" +
-                "SELECT id, url, date, parent_id, type, size " +
+                "SELECT id " +
                 "FROM t_system_items " +
                 "WHERE id = ?1 " +
                 "UNION ALL " +
-                "SELECT e.id, " +
-                    "e.url, " +
-                    "e.date, " +
-                    "e.parent_id," +
-                    "e.type," +
-                    "e.size " +
+                "SELECT e.id " +
                 "FROM t_system_items e, items " +
                 "WHERE items.id = e.parent_id) " +
-                "DELETE FROM t_system_items " +
-                    "WHERE id IN (SELECT id FROM items); ")
-    @Modifying
-    @Transactional(isolation = Isolation.SERIALIZABLE)
-    void deleteFolder(String id);
+                "SELECT id FROM items ; ")
+    List<String> getSubtreeIdsRecursive(String id);
     @Query(nativeQuery = true, value =
-            "SELECT * FROM t_system_items " +
-            "WHERE type = 'FILE' AND date BETWEEN ?1 AND ?2 ; ")
-
-    Set<SystemItem> getFileHistory(Instant start, Instant finish);
-
-
-
+            "WITH RECURSIVE items AS(" +
+                "SELECT id " +
+                "FROM t_system_items " +
+                "WHERE id = ?1 " +
+                "UNION ALL " +
+                "SELECT e.id " +
+                "FROM t_system_items e, items " +
+                "WHERE items.id = e.parent_id) " +
+                "DELETE FROM t_system_items " +
+                    "WHERE id IN (SELECT id FROM items) ; ")
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Transactional
+    void deleteSubtreeRecursive(String id);
     @Query(nativeQuery = true, value =
             "WITH RECURSIVE items AS(" +
-                    "SELECT id, url, date, parent_id, type, size " +
+                    "SELECT id, url, date, parent_id, type, size, path, version " +
                     "FROM t_system_items " +
                     "WHERE id = ?1 " +
                     "UNION ALL " +
@@ -67,10 +278,25 @@ public interface StorageRepository extends JpaRepository<SystemItem, String> {
                     "e.date, " +
                     "e.parent_id," +
                     "e.type," +
-                    "e.size " +
+                    "e.size," +
+                    "e.path," +
+                    "e.version " +
                     "FROM t_system_items e, items " +
                     "WHERE items.parent_id = e.id) " +
                     "SELECT * FROM items WHERE id <> ?1 ; ")
-    Set<SystemItem> getPredecessors(String id);
+    List<SystemItem> getPredecessorsRecursive(String id);
+    @Query(nativeQuery = true, value =
+            "WITH RECURSIVE chain AS(" +
+                "SELECT id AS item_id, id, parent_id " +
+                "FROM t_system_items " +
+                "WHERE id IN (?1) " +
+                "UNION ALL " +
+                "SELECT chain.item_id, " +
+                    "e.id, " +
+                    "e.parent_id " +
+                "FROM t_system_items e, chain " +
+                "WHERE chain.parent_id = e.id) " +
+            "SELECT item_id AS id, id AS \"rootId\" FROM chain WHERE parent_id IS NULL ; ")
+    List<ItemRoot> getRootsRecursive(Collection<String> ids);
 
 }
@@ -0,0 +1,33 @@
+package com.petrunkov.diskapi.repository;
+
+import com.petrunkov.diskapi.model.SystemItem;
+import com.petrunkov.diskapi.model.SystemItemType;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Чтение элемента из строки JDBC-запроса в обход JPA.
+ * Ожидает колонки id, url, date, parent_id, type, size
+ * **/
+public class SystemItemRowMapper implements RowMapper<SystemItem> {
+
+    public static final SystemItemRowMapper INSTANCE = new SystemItemRowMapper();
+
+    @Override
+    public SystemItem mapRow(ResultSet rs, int rowNum) throws SQLException {
+        long size = rs.getLong("size");
+        boolean noSize = rs.wasNull();
+        return new SystemItem(
+                rs.getString("id"),
+                rs.getString("url"),
+                rs.getTimestamp("date").toInstant(),
+                rs.getString("parent_id"),
+                SystemItemType.valueOf(rs.getString("type")),
+                noSize ? null : size,
+                null,
+                null
+        );
+    }
+}
@@ -0,0 +1,118 @@
+package com.petrunkov.diskapi.repository;
+
+import lombok.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Изменения состава деревьев для проигрывания истории корня: переносы элементов между деревьями
+ * в t_tree_move и удалённые элементы в t_tree_tombstone
+ * **/
+@Component
+public class TreeChanges {
+
+    private static final String LINKED_ROOTS_QUERY =
+            "SELECT root_id, min(date) AS date FROM (" +
+                "SELECT to_root AS root_id, date FROM t_tree_move " +
+                "WHERE from_root = ? AND date > COALESCE(?::timestamp, '-infinity') AND date <= ? " +
+                "UNION ALL " +
+                "SELECT from_root, date FROM t_tree_move " +
+                "WHERE to_root = ? AND date > COALESCE(?::timestamp, '-infinity') AND date <= ?) AS moves " +
+            "GROUP BY root_id";
+
+    private static final String TOMBSTONES_QUERY =
+            "SELECT t.id, t.date " +
+            "FROM unnest(?::varchar[], ?::timestamp[]) AS r(root_id, after) " +
+            "JOIN t_tree_tombstone t ON t.root_id = r.root_id " +
+                "AND t.date > COALESCE(r.after, '-infinity') " +
+                "AND t.date <= ? " +
+            "ORDER BY t.date";
+
+    @Value
+    public static class Move {
+        String fromRoot;
+        String toRoot;
+        Instant date;
+    }
+
+    @Value
+    public static class Tombstone {
+        String id;
+        Instant date;
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public TreeChanges(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public void saveMoves(Collection<Move> moves) {
+        if (moves.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO t_tree_move (from_root, to_root, date) VALUES (?, ?, ?)",
+                moves.stream()
+                        .map(move -> new Object[]{move.getFromRoot(), move.getToRoot(), Timestamp.from(move.getDate())})
+                        .toList());
+    }
+
+    /**
+     * Отметить удаление элементов ids дерева rootId одной вставкой
+     * **/
+    public void saveTombstones(String rootId, Collection<String> ids, Instant date) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.update(connection -> {
+            PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO t_tree_tombstone (root_id, id, date) " +
+                    "SELECT ?, id, ? FROM unnest(?::varchar[]) AS r(id)");
+            statement.setString(1, rootId);
+            statement.setTimestamp(2, Timestamp.from(date));
+            statement.setArray(3, connection.createArrayOf("varchar", ids.toArray()));
+            return statement;
+        });
+    }
+
+    /**
+     * Корни, с которыми дерево rootId обменивалось элементами за (after, until], after = null - за всю историю.
+     * Корень -> дата первого переноса
+     * **/
+    public Map<String, Instant> findLinkedRoots(String rootId, Instant after, Instant until) {
+        Timestamp from = after == null ? null : Timestamp.from(after);
+        Timestamp to = Timestamp.from(until);
+        Map<String, Instant> roots = new HashMap<>();
+        jdbcTemplate.query(LINKED_ROOTS_QUERY,
+                (RowCallbackHandler) rs -> roots.put(rs.getString("root_id"), rs.getTimestamp("date").toInstant()),
+                rootId, from, to, rootId, from, to);
+        return roots;
+    }
+
+    /**
+     * Удаления в деревьях за интервалы после их снимков в порядке даты. Корень -> начало интервала, null - с начала истории
+     * **/
+    public List<Tombstone> findTombstones(Map<String, Instant> after, Instant until) {
+        List<String> roots = new ArrayList<>(after.keySet());
+        Timestamp[] from = roots.stream()
+                .map(root -> after.get(root) == null ? null : Timestamp.from(after.get(root)))
+                .toArray(Timestamp[]::new);
+        return jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(TOMBSTONES_QUERY);
+            statement.setArray(1, connection.createArrayOf("varchar", roots.toArray()));
+            statement.setArray(2, connection.createArrayOf("timestamp", from));
+            statement.setTimestamp(3, Timestamp.from(until));
+            return statement;
+        }, (rs, rowNum) -> new Tombstone(rs.getString("id"), rs.getTimestamp("date").toInstant()));
+    }
+}
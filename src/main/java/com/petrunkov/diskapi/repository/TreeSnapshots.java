@@ -0,0 +1,59 @@
+package com.petrunkov.diskapi.repository;
+
+import lombok.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * Снимки деревьев в t_tree_snapshot: сжатое состояние всех элементов корня на момент taken_at
+ * **/
+@Component
+public class TreeSnapshots {
+
+    @Value
+    public static class Snapshot {
+        Instant takenAt;
+        byte[] items;
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public TreeSnapshots(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public void save(String rootId, Instant takenAt, byte[] items) {
+        jdbcTemplate.update("INSERT INTO t_tree_snapshot (root_id, taken_at, items) VALUES (?, ?, ?) " +
+                "ON CONFLICT DO NOTHING", rootId, Timestamp.from(takenAt), items);
+    }
+
+    public Optional<Instant> findLatestTakenAt(String rootId) {
+        Timestamp takenAt = jdbcTemplate.queryForObject(
+                "SELECT max(taken_at) FROM t_tree_snapshot WHERE root_id = ?", Timestamp.class, rootId);
+        return Optional.ofNullable(takenAt).map(Timestamp::toInstant);
+    }
+
+    /**
+     * Последний снимок корня не позже at
+     * **/
+    public Optional<Snapshot> findLatest(String rootId, Instant at) {
+        return jdbcTemplate.query("SELECT taken_at, items FROM t_tree_snapshot " +
+                        "WHERE root_id = ? AND taken_at <= ? " +
+                        "ORDER BY taken_at DESC LIMIT 1",
+                (rs, rowNum) -> new Snapshot(rs.getTimestamp("taken_at").toInstant(), rs.getBytes("items")),
+                rootId, Timestamp.from(at)).stream().findFirst();
+    }
+
+    /**
+     * Удалить снимки корня, снятые не раньше since. Удаление с прошедшей датой делает их неверными,
+     * а более ранние снимки поправляются отметками удаления при проигрывании истории
+     * **/
+    public void deleteTakenSince(String rootId, Instant since) {
+        jdbcTemplate.update("DELETE FROM t_tree_snapshot WHERE root_id = ? AND taken_at >= ?",
+                rootId, Timestamp.from(since));
+    }
+}
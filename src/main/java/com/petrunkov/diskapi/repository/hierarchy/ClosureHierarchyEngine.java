@@ -0,0 +1,111 @@
+package com.petrunkov.diskapi.repository.hierarchy;
+
+import com.petrunkov.diskapi.config.DiskApiProperties;
+import com.petrunkov.diskapi.model.SystemItem;
+import com.petrunkov.diskapi.repository.ArchiveRepository;
+import com.petrunkov.diskapi.repository.ClosureRepository;
+import com.petrunkov.diskapi.repository.StorageRepository;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Иерархия на таблице замыканий t_item_closure: предки и потомки выбираются одним соединением по индексу
+ * **/
+@Component
+@ConditionalOnProperty(prefix = "disk-api.hierarchy", name = "engine", havingValue = "closure")
+@AllArgsConstructor
+@Slf4j
+public class ClosureHierarchyEngine implements HierarchyEngine {
+
+    private static final String ENGINE = "closure";
+
+    private final StorageRepository repository;
+    private final ArchiveRepository archive;
+    private final ClosureRepository closure;
+    private final JdbcTemplate jdbcTemplate;
+    private final DiskApiProperties properties;
+    private final HierarchyState state;
+
+    @Override
+    public Collection<SystemItem> getSubtree(String id) {
+        return repository.getSubtreeByClosure(id);
+    }
+
+    /**
+     * Порядок обхода задаётся массивом id от корня, сортировка выполняется на стороне базы
+     * **/
+    @Override
+    public void forEachDepthFirst(String id, Consumer<SystemItem> consumer) {
+        DepthFirstQuery.forEach(jdbcTemplate, DepthFirstQuery.RECURSIVE, id,
+                properties.getStreaming().getFetchSize(), consumer);
+    }
+
+    @Override
+    public Collection<SystemItem> getPredecessors(SystemItem item) {
+        return repository.getPredecessorsByClosure(item.getId());
+    }
+
+    @Override
+    public Map<String, String> getRootIds(Collection<String> ids) {
+        return repository.getRootsByClosure(ids).stream()
+                .collect(Collectors.toMap(StorageRepository.ItemRoot::getId, StorageRepository.ItemRoot::getRootId));
+    }
+
+    @Override
+    public void onInsert(SystemItem item, SystemItem parent) {
+        if (parent == null) {
+            closure.insertSelfLink(item.getId());
+        } else {
+            closure.insertLinks(item.getId(), parent.getId());
+        }
+    }
+
+    @Override
+    public void onUpdate(SystemItem oldItem, SystemItem newItem) {
+    }
+
+    @Override
+    public void onMove(SystemItem oldItem, SystemItem newItem, SystemItem parent) {
+        closure.detachSubtree(oldItem.getId());
+        if (parent != null) {
+            closure.attachSubtree(oldItem.getId(), parent.getId());
+        }
+    }
+
+    @Override
+    public List<String> deleteSubtree(SystemItem item) {
+        List<String> deletedIds = repository.getSubtreeIdsByClosure(item.getId());
+        archive.deleteSubtreeByClosure(item.getId());
+        repository.deleteSubtreeByClosure(item.getId());
+        closure.deleteSubtree(item.getId());
+        return deletedIds;
+    }
+
+    /**
+     * Построить таблицу замыканий заново, если до этого запуска элементы сохранял другой способ:
+     * связи новых, перенесённых и удалённых им элементов в таблице не отражены
+     * **/
+    @Override
+    @EventListener(ApplicationReadyEvent.class)
+    @Transactional
+    public void initialize() {
+        if (!state.isMaintainedBy(ENGINE) || (closure.count() == 0 && repository.count() > 0)) {
+            log.info("Rebuilding closure table");
+            closure.deleteAllInBatch();
+            closure.rebuild();
+        }
+        state.setEngine(ENGINE);
+    }
+}
@@ -0,0 +1,58 @@
+package com.petrunkov.diskapi.repository.hierarchy;
+
+import com.petrunkov.diskapi.model.SystemItem;
+import com.petrunkov.diskapi.repository.SystemItemRowMapper;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.sql.PreparedStatement;
+import java.util.function.Consumer;
+
+/**
+ * Чтение поддерева курсором в порядке обхода в глубину: каждый элемент следует за своим родителем,
+ * поддерево папки идёт подряд. Курсор PostgreSQL работает только внутри транзакции
+ * **/
+final class DepthFirstQuery {
+
+    /**
+     * Для иерархий без материализованного пути порядок задаёт массив id от корня
+     * **/
+    static final String RECURSIVE =
+            "WITH RECURSIVE items AS(" +
+                "SELECT id, url, date, parent_id, type, size, ARRAY[id] AS ord " +
+                "FROM t_system_items " +
+                "WHERE id = ? " +
+                "UNION ALL " +
+                "SELECT e.id, " +
+                    "e.url, " +
+                    "e.date, " +
+                    "e.parent_id, " +
+                    "e.type, " +
+                    "e.size, " +
+                    "items.ord || e.id " +
+                "FROM t_system_items e, items " +
+                "WHERE items.id = e.parent_id) " +
+            "SELECT id, url, date, parent_id, type, size FROM items ORDER BY ord";
+
+    static final String PATH =
+            "SELECT s.id, s.url, s.date, s.parent_id, s.type, s.size " +
+            "FROM t_system_items p " +
+            "JOIN t_system_items s " +
+                "ON s.path >= p.path " +
+                "AND s.path < left(p.path, -1) || '0' " +
+            "WHERE p.id = ? " +
+            "ORDER BY s.path";
+
+    private DepthFirstQuery() {
+    }
+
+    static void forEach(JdbcTemplate jdbcTemplate, String query, String id, int fetchSize,
+                        Consumer<SystemItem> consumer) {
+        jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(query);
+            statement.setFetchSize(fetchSize);
+            statement.setString(1, id);
+            return statement;
+        }, (RowCallbackHandler) rs -> consumer.accept(SystemItemRowMapper.INSTANCE.mapRow(rs, rs.getRow())));
+    }
+}
@@ -0,0 +1,63 @@
+package com.petrunkov.diskapi.repository.hierarchy;
+
+import com.petrunkov.diskapi.model.SystemItem;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Способ хранения иерархии элементов. Реализация выбирается свойством disk-api.hierarchy.engine:
+ * path - материализованный путь, closure - таблица замыканий, recursive - рекурсивные CTE по parent_id
+ * **/
+public interface HierarchyEngine {
+
+    /**
+     * Элемент и все его потомки
+     * **/
+    Collection<SystemItem> getSubtree(String id);
+
+    /**
+     * Передать элемент и всех его потомков по одному в порядке обхода в глубину: родитель идёт раньше потомков,
+     * поддерево папки - подряд. Строки читаются курсором, поэтому вызывается внутри транзакции
+     * **/
+    void forEachDepthFirst(String id, Consumer<SystemItem> consumer);
+
+    /**
+     * Все предки элемента без него самого
+     * **/
+    Collection<SystemItem> getPredecessors(SystemItem item);
+
+    /**
+     * Корни деревьев существующих элементов: id -> id корня. Корень сопоставлен сам себе,
+     * отсутствующие в хранилище id в результат не попадают
+     * **/
+    Map<String, String> getRootIds(Collection<String> ids);
+
+    /**
+     * Подготовить новый элемент к сохранению. parent == null для корневого элемента
+     * **/
+    void onInsert(SystemItem item, SystemItem parent);
+
+    /**
+     * Подготовить обновление элемента без смены parentId
+     * **/
+    void onUpdate(SystemItem oldItem, SystemItem newItem);
+
+    /**
+     * Перенести элемент вместе с поддеревом под нового родителя
+     * **/
+    void onMove(SystemItem oldItem, SystemItem newItem, SystemItem parent);
+
+    /**
+     * Удалить элемент, всё его поддерево и их историю. Возвращает id удалённых элементов
+     * **/
+    List<String> deleteSubtree(SystemItem item);
+
+    /**
+     * Проверить при запуске вспомогательные данные способа и построить их заново,
+     * если элементы сохранялись без них или другим способом
+     * **/
+    void initialize();
+}
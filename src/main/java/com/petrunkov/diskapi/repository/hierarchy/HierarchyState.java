@@ -0,0 +1,30 @@
+package com.petrunkov.diskapi.repository.hierarchy;
+
+import lombok.AllArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Способ хранения иерархии, который последним поддерживал вспомогательные данные, в t_hierarchy_engine
+ * **/
+@Component
+@AllArgsConstructor
+public class HierarchyState {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * Вспомогательные данные engine актуальны: с момента их построения приложение работало только с ним
+     * **/
+    public boolean isMaintainedBy(String engine) {
+        List<String> engines = jdbcTemplate.queryForList("SELECT engine FROM t_hierarchy_engine", String.class);
+        return engines.contains(engine);
+    }
+
+    public void setEngine(String engine) {
+        jdbcTemplate.update("INSERT INTO t_hierarchy_engine (id, engine) VALUES (1, ?) " +
+                "ON CONFLICT (id) DO UPDATE SET engine = EXCLUDED.engine", engine);
+    }
+}
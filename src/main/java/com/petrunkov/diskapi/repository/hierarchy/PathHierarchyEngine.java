@@ -0,0 +1,109 @@
+package com.petrunkov.diskapi.repository.hierarchy;
+
+import com.petrunkov.diskapi.config.DiskApiProperties;
+import com.petrunkov.diskapi.model.SystemItem;
+import com.petrunkov.diskapi.model.SystemItemType;
+import com.petrunkov.diskapi.repository.ArchiveRepository;
+import com.petrunkov.diskapi.repository.MaterializedPath;
+import com.petrunkov.diskapi.repository.StorageRepository;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Иерархия на материализованном пути: поддерево - один диапазон по индексу path,
+ * предки - выборка по первичному ключу из идентификаторов, записанных в пути
+ * **/
+@Component
+@ConditionalOnProperty(prefix = "disk-api.hierarchy", name = "engine", havingValue = "path", matchIfMissing = true)
+@AllArgsConstructor
+@Slf4j
+public class PathHierarchyEngine implements HierarchyEngine {
+
+    private static final String ENGINE = "path";
+
+    private final StorageRepository repository;
+    private final ArchiveRepository archive;
+    private final JdbcTemplate jdbcTemplate;
+    private final DiskApiProperties properties;
+    private final HierarchyState state;
+
+    @Override
+    public Collection<SystemItem> getSubtree(String id) {
+        return repository.getSubtreeByPath(id);
+    }
+
+    @Override
+    public void forEachDepthFirst(String id, Consumer<SystemItem> consumer) {
+        DepthFirstQuery.forEach(jdbcTemplate, DepthFirstQuery.PATH, id,
+                properties.getStreaming().getFetchSize(), consumer);
+    }
+
+    @Override
+    public Collection<SystemItem> getPredecessors(SystemItem item) {
+        return repository.getPredecessorsByPath(item);
+    }
+
+    @Override
+    public Map<String, String> getRootIds(Collection<String> ids) {
+        return repository.getPaths(ids).stream()
+                .collect(Collectors.toMap(StorageRepository.ItemPath::getId,
+                        item -> MaterializedPath.getIds(item.getPath()).get(0)));
+    }
+
+    @Override
+    public void onInsert(SystemItem item, SystemItem parent) {
+        item.setPath(MaterializedPath.of(parent == null ? null : parent.getPath(), item.getId()));
+    }
+
+    @Override
+    public void onUpdate(SystemItem oldItem, SystemItem newItem) {
+        newItem.setPath(oldItem.getPath());
+    }
+
+    @Override
+    public void onMove(SystemItem oldItem, SystemItem newItem, SystemItem parent) {
+        onInsert(newItem, parent);
+        // Переписать пути всего перемещаемого поддерева
+        repository.movePaths(oldItem.getPath(), newItem.getPath());
+    }
+
+    @Override
+    public List<String> deleteSubtree(SystemItem item) {
+        if (item.getType() == SystemItemType.FILE) {
+            archive.deleteFileById(item.getId());
+            repository.delete(item);
+            return List.of(item.getId());
+        }
+        List<String> deletedIds = repository.getSubtreeIdsByPath(item.getId());
+        archive.deleteSubtreeByPath(item.getId());
+        repository.deleteSubtreeByPath(item.getId());
+        return deletedIds;
+    }
+
+    /**
+     * Заполнить материализованные пути элементов, сохранённых без них. Если до этого запуска работал
+     * другой способ, пути новых и перенесённых им элементов устарели и перестраиваются все
+     * **/
+    @Override
+    @EventListener(ApplicationReadyEvent.class)
+    @Transactional
+    public void initialize() {
+        if (!state.isMaintainedBy(ENGINE) || repository.existsByPathIsNull()) {
+            log.info("Rebuilding materialized paths");
+            repository.rebuildPaths();
+        }
+        state.setEngine(ENGINE);
+    }
+}
@@ -0,0 +1,92 @@
+package com.petrunkov.diskapi.repository.hierarchy;
+
+import com.petrunkov.diskapi.config.DiskApiProperties;
+import com.petrunkov.diskapi.model.SystemItem;
+import com.petrunkov.diskapi.model.SystemItemType;
+import com.petrunkov.diskapi.repository.ArchiveRepository;
+import com.petrunkov.diskapi.repository.StorageRepository;
+import lombok.AllArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Иерархия только по parent_id: обход дерева рекурсивными CTE, дополнительные структуры не поддерживаются
+ * **/
+@Component
+@ConditionalOnProperty(prefix = "disk-api.hierarchy", name = "engine", havingValue = "recursive")
+@AllArgsConstructor
+public class RecursiveHierarchyEngine implements HierarchyEngine {
+
+    private static final String ENGINE = "recursive";
+
+    private final StorageRepository repository;
+    private final ArchiveRepository archive;
+    private final JdbcTemplate jdbcTemplate;
+    private final DiskApiProperties properties;
+    private final HierarchyState state;
+
+    @Override
+    public Collection<SystemItem> getSubtree(String id) {
+        return repository.getSubtreeRecursive(id);
+    }
+
+    @Override
+    public void forEachDepthFirst(String id, Consumer<SystemItem> consumer) {
+        DepthFirstQuery.forEach(jdbcTemplate, DepthFirstQuery.RECURSIVE, id,
+                properties.getStreaming().getFetchSize(), consumer);
+    }
+
+    @Override
+    public Collection<SystemItem> getPredecessors(SystemItem item) {
+        return repository.getPredecessorsRecursive(item.getId());
+    }
+
+    @Override
+    public Map<String, String> getRootIds(Collection<String> ids) {
+        return repository.getRootsRecursive(ids).stream()
+                .collect(Collectors.toMap(StorageRepository.ItemRoot::getId, StorageRepository.ItemRoot::getRootId));
+    }
+
+    @Override
+    public void onInsert(SystemItem item, SystemItem parent) {
+    }
+
+    @Override
+    public void onUpdate(SystemItem oldItem, SystemItem newItem) {
+    }
+
+    @Override
+    public void onMove(SystemItem oldItem, SystemItem newItem, SystemItem parent) {
+    }
+
+    @Override
+    public List<String> deleteSubtree(SystemItem item) {
+        if (item.getType() == SystemItemType.FILE) {
+            archive.deleteFileById(item.getId());
+            repository.delete(item);
+            return List.of(item.getId());
+        }
+        List<String> deletedIds = repository.getSubtreeIdsRecursive(item.getId());
+        archive.deleteSubtreeRecursive(item.getId());
+        repository.deleteSubtreeRecursive(item.getId());
+        return deletedIds;
+    }
+
+    /**
+     * Пути и таблицу замыканий этот способ не поддерживает: отметка заставит другой способ построить их заново
+     * **/
+    @Override
+    @EventListener(ApplicationReadyEvent.class)
+    public void initialize() {
+        state.setEngine(ENGINE);
+    }
+}
@@ -0,0 +1,43 @@
+package com.petrunkov.diskapi.service;
+
+import com.petrunkov.diskapi.exception.ValidationErrorException;
+import lombok.Value;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Base64;
+
+/**
+ * Позиция в истории, упорядоченной по (date, key): непрозрачный для клиента токен продолжения.
+ * key - id элемента для /updates и номер строки архива для истории элемента
+ * **/
+@Value
+class HistoryCursor {
+    Instant date;
+    String key;
+
+    String encode() {
+        long micros = ChronoUnit.MICROS.between(Instant.EPOCH, date);
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((micros + ":" + key).getBytes(StandardCharsets.UTF_8));
+    }
+
+    static HistoryCursor decode(String token) {
+        try {
+            String value = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            int separator = value.indexOf(':');
+            Instant date = Instant.EPOCH.plus(Long.parseLong(value.substring(0, separator)), ChronoUnit.MICROS);
+            return new HistoryCursor(date, value.substring(separator + 1));
+        } catch (RuntimeException e) {
+            throw new ValidationErrorException();
+        }
+    }
+
+    /**
+     * Позиция перед первой строкой, начиная с date
+     * **/
+    static HistoryCursor before(Instant date, String minKey) {
+        return new HistoryCursor(date.minus(1, ChronoUnit.MICROS), minKey);
+    }
+}
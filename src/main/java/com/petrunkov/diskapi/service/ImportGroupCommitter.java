@@ -0,0 +1,113 @@
+package com.petrunkov.diskapi.service;
+
+import com.petrunkov.diskapi.config.DiskApiProperties;
+import com.petrunkov.diskapi.dto.SystemItemImportRequest;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Групповой коммит POST /imports: запросы, пришедшие в течение disk-api.group-commit.window после первого,
+ * применяются одной транзакцией. Первый запрос группы ждёт попутчиков и применяет группу в своём потоке,
+ * остальные ждут результат. Каждый вызывающий получает результат своего запроса
+ * **/
+@Component
+@Slf4j
+public class ImportGroupCommitter {
+
+    private final StorageServiceImpl storageService;
+    private final boolean enabled;
+    private final long windowNanos;
+    private final int maxItems;
+    // Группа, в которую попадают новые запросы; null - следующий запрос начинает новую группу
+    private Group current;
+
+    public ImportGroupCommitter(StorageServiceImpl storageService, DiskApiProperties properties) {
+        this.storageService = storageService;
+        this.enabled = properties.getGroupCommit().isEnabled();
+        this.windowNanos = properties.getGroupCommit().getWindow().toNanos();
+        this.maxItems = properties.getGroupCommit().getMaxItems();
+    }
+
+    public void importItem(SystemItemImportRequest request) {
+        if (!enabled) {
+            storageService.importItem(request);
+            return;
+        }
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        Group group;
+        boolean leader;
+        synchronized (this) {
+            leader = current == null;
+            if (leader) {
+                current = new Group();
+            }
+            group = current;
+            group.add(request, result);
+            // Группа набрана, лидер может не дожидаться конца окна
+            if (group.items >= maxItems) {
+                current = null;
+                notifyAll();
+            }
+        }
+        if (leader) {
+            awaitGroup(group);
+            apply(group);
+        }
+        try {
+            result.join();
+        } catch (CompletionException e) {
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    private synchronized void awaitGroup(Group group) {
+        long deadline = System.nanoTime() + windowNanos;
+        long remaining = windowNanos;
+        try {
+            while (current == group && remaining > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                remaining = deadline - System.nanoTime();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (current == group) {
+            current = null;
+        }
+    }
+
+    private void apply(Group group) {
+        List<RuntimeException> errors;
+        try {
+            errors = storageService.importItemGroup(group.requests);
+        } catch (RuntimeException e) {
+            group.results.forEach(result -> result.completeExceptionally(e));
+            return;
+        }
+        for (int i = 0; i < group.results.size(); i++) {
+            if (errors.get(i) == null) {
+                group.results.get(i).complete(null);
+            } else {
+                group.results.get(i).completeExceptionally(errors.get(i));
+            }
+        }
+    }
+
+    private static class Group {
+        private final List<SystemItemImportRequest> requests = new ArrayList<>();
+        private final List<CompletableFuture<Void>> results = new ArrayList<>();
+        private int items;
+
+        private void add(SystemItemImportRequest request, CompletableFuture<Void> result) {
+            requests.add(request);
+            results.add(result);
+            items += request.getItems() == null ? 1 : request.getItems().size();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.petrunkov.diskapi.service;
+
+import com.petrunkov.diskapi.dto.ImportJobDto;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Состояние асинхронного импорта. Меняется потоком-исполнителем, читается обработчиком GET /imports/{jobId}
+ * **/
+class ImportJob {
+
+    enum Status {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+
+    private final String id;
+    private final Instant submitted;
+    private Status status = Status.QUEUED;
+    private Instant started;
+    private Instant finished;
+    private String message;
+
+    ImportJob(String id, Instant submitted) {
+        this.id = id;
+        this.submitted = submitted;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    synchronized void start() {
+        status = Status.RUNNING;
+        started = Instant.now();
+    }
+
+    synchronized void finish() {
+        status = Status.DONE;
+        finished = Instant.now();
+    }
+
+    synchronized void fail(String message) {
+        status = Status.FAILED;
+        finished = Instant.now();
+        this.message = message;
+    }
+
+    /**
+     * Отметить неудачей задачу, которая так и не начала выполняться. false - задача уже запущена
+     * **/
+    synchronized boolean failIfQueued(String message) {
+        if (status != Status.QUEUED) {
+            return false;
+        }
+        fail(message);
+        return true;
+    }
+
+    synchronized boolean isFinishedBefore(Instant instant) {
+        return finished != null && finished.isBefore(instant);
+    }
+
+    synchronized ImportJobDto toDto() {
+        return ImportJobDto.builder()
+                .id(id)
+                .status(status.toString())
+                .submitted(submitted.toString())
+                .started(started == null ? null : started.toString())
+                .finished(finished == null ? null : finished.toString())
+                .queuedMillis(started == null ? null : Duration.between(submitted, started).toMillis())
+                .runMillis(finished == null || started == null ? null : Duration.between(started, finished).toMillis())
+                .message(message)
+                .build();
+    }
+}
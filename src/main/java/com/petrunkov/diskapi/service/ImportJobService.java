@@ -0,0 +1,132 @@
+package com.petrunkov.diskapi.service;
+
+import com.petrunkov.diskapi.config.DiskApiProperties;
+import com.petrunkov.diskapi.dto.ImportJobDto;
+import com.petrunkov.diskapi.dto.SystemItemImportRequest;
+import com.petrunkov.diskapi.exception.ItemNotFoundException;
+import com.petrunkov.diskapi.exception.TooManyRequestsException;
+import com.petrunkov.diskapi.exception.ValidationErrorException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Асинхронный импорт: запрос ставится в очередь и выполняется importItem в пуле потоков.
+ * Импорты в одно дерево выполняются в порядке поступления: задача ждёт предыдущие задачи всех своих корней,
+ * импорты в разные деревья идут параллельно. Число задач в очереди ограничено, сверх него - 429.
+ * Статусы завершённых задач удаляются по расписанию через disk-api.async.retention
+ * **/
+@Service
+@Slf4j
+public class ImportJobService {
+
+    private final StorageService storageService;
+    private final StorageTransactions transactions;
+    private final ExecutorService executor;
+    private final int queueCapacity;
+    private final Duration retention;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Map<String, ImportJob> jobs = new ConcurrentHashMap<>();
+    // Последняя задача каждого корня
+    private final Map<String, CompletableFuture<Void>> tails = new HashMap<>();
+
+    public ImportJobService(StorageService storageService, StorageTransactions transactions,
+                            DiskApiProperties properties) {
+        this.storageService = storageService;
+        this.transactions = transactions;
+        this.executor = Executors.newFixedThreadPool(properties.getAsync().getThreads());
+        this.queueCapacity = properties.getAsync().getQueueCapacity();
+        this.retention = properties.getAsync().getRetention();
+    }
+
+    public ImportJobDto submit(SystemItemImportRequest request) {
+        if (request.getItems() == null || request.getItems().stream().anyMatch(i -> i == null || i.getId() == null)) {
+            throw new ValidationErrorException();
+        }
+        if (pending.incrementAndGet() > queueCapacity) {
+            pending.decrementAndGet();
+            throw new TooManyRequestsException();
+        }
+        ImportJob job = new ImportJob(UUID.randomUUID().toString(), Instant.now());
+        try {
+            // Корни на момент постановки в очередь: порядок соблюдается для деревьев, известных сейчас
+            Set<String> roots = transactions.getRootIds(StorageTransactions.getAffectedIds(request.getItems()));
+            jobs.put(job.getId(), job);
+            synchronized (tails) {
+                CompletableFuture<?>[] previous = roots.stream()
+                        .map(tails::get)
+                        .filter(Objects::nonNull)
+                        .toArray(CompletableFuture[]::new);
+                // Задача запускается после предыдущих при любом их исходе
+                CompletableFuture<Void> future = CompletableFuture.allOf(previous)
+                        .handle((result, e) -> null)
+                        .thenRunAsync(() -> run(job, request), executor);
+                roots.forEach(root -> tails.put(root, future));
+                future.whenComplete((result, e) -> {
+                    synchronized (tails) {
+                        roots.forEach(root -> tails.remove(root, future));
+                    }
+                    // Пул отклонил задачу, например после остановки: run не вызывался и место в очереди не освободил
+                    if (e != null && job.failIfQueued("Import job was not started")) {
+                        log.warn("Import job {} was not started", job.getId(), e);
+                        pending.decrementAndGet();
+                    }
+                });
+            }
+        } catch (RuntimeException e) {
+            jobs.remove(job.getId());
+            pending.decrementAndGet();
+            throw e;
+        }
+        return job.toDto();
+    }
+
+    public ImportJobDto getJob(String id) {
+        ImportJob job = jobs.get(id);
+        // Задача с истёкшим сроком хранения могла ещё не попасть под очистку
+        if (job == null || job.isFinishedBefore(Instant.now().minus(retention))) {
+            throw new ItemNotFoundException();
+        }
+        return job.toDto();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private void run(ImportJob job, SystemItemImportRequest request) {
+        job.start();
+        try {
+            storageService.importItem(request);
+            job.finish();
+        } catch (ResponseStatusException e) {
+            job.fail(e.getReason());
+        } catch (RuntimeException e) {
+            log.error("Import job {} failed", job.getId(), e);
+            job.fail(e.getMessage());
+        } finally {
+            pending.decrementAndGet();
+        }
+    }
+
+    /**
+     * Удалить статусы задач, завершённых раньше disk-api.async.retention
+     * **/
+    @Scheduled(fixedDelayString = "${disk-api.async.cleanup-delay:60000}")
+    public void removeExpiredJobs() {
+        Instant expired = Instant.now().minus(retention);
+        jobs.values().removeIf(job -> job.isFinishedBefore(expired));
+    }
+}
@@ -0,0 +1,91 @@
+package com.petrunkov.diskapi.service;
+
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Накопитель изменений предшественников в рамках одной операции.
+ * Хранит известные связи id -> parentId с учётом уже применённых в операции перемещений
+ * и суммарное изменение размера для каждого затронутого предка
+ * **/
+class PredecessorUpdates {
+
+    private final Map<String, String> parents = new HashMap<>();
+    private final Map<String, Instant> dates = new HashMap<>();
+    private final Map<String, Long> sizeDeltas = new LinkedHashMap<>();
+
+    boolean isKnown(String id) {
+        return parents.containsKey(id);
+    }
+
+    String getParentId(String id) {
+        return parents.get(id);
+    }
+
+    void putParent(String id, String parentId) {
+        parents.put(id, parentId);
+    }
+
+    /**
+     * Корень дерева элемента по известным связям, null - цепочка до корня неизвестна
+     * **/
+    String getRootId(String id) {
+        Set<String> visited = new HashSet<>();
+        String current = id;
+        while (parents.containsKey(current) && visited.add(current)) {
+            String parentId = parents.get(current);
+            if (parentId == null) {
+                return current;
+            }
+            current = parentId;
+        }
+        return null;
+    }
+
+    /**
+     * Забыть известные связи, когда они уже записаны в хранилище. Изменения размеров сохраняются,
+     * для забытых дат история пишется полными версиями
+     * **/
+    void clearParents() {
+        parents.clear();
+        dates.clear();
+    }
+
+    /**
+     * Дата последней версии элемента в истории, null - неизвестна
+     * **/
+    Instant getDate(String id) {
+        return dates.get(id);
+    }
+
+    void putDate(String id, Instant date) {
+        dates.put(id, date);
+    }
+
+    void putDateIfAbsent(String id, Instant date) {
+        dates.putIfAbsent(id, date);
+    }
+
+    void putParentIfAbsent(String id, String parentId) {
+        parents.putIfAbsent(id, parentId);
+    }
+
+    /**
+     * Изменение размера, которое ещё не записано в хранилище
+     * **/
+    long getPendingDelta(String id) {
+        return sizeDeltas.getOrDefault(id, 0L);
+    }
+
+    void addSizeDelta(String id, long sizeChange) {
+        sizeDeltas.merge(id, sizeChange, Long::sum);
+    }
+
+    Map<String, Long> getSizeDeltas() {
+        return sizeDeltas;
+    }
+
+    boolean isEmpty() {
+        return sizeDeltas.isEmpty();
+    }
+}
@@ -0,0 +1,18 @@
+package com.petrunkov.diskapi.service;
+
+import com.petrunkov.diskapi.model.SystemItem;
+import lombok.Value;
+
+import java.util.Collection;
+
+/**
+ * Изменения хранилища, сделанные одной операцией импорта или удаления.
+ * Публикуется внутри транзакции; элементы передаются в итоговом состоянии
+ * **/
+@Value
+public class StorageChangedEvent {
+    // Сохранённые или обновлённые элементы в порядке записи
+    Collection<SystemItem> savedItems;
+    // Все удалённые элементы: удалённый элемент и каждый его потомок
+    Collection<String> deletedIds;
+}
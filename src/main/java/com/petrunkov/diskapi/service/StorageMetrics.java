@@ -0,0 +1,89 @@
+package com.petrunkov.diskapi.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Метрики операций хранилища: время фаз импорта, чтения и удаления, число записанных строк,
+ * глубина цепочек предков и размер поддеревьев. Доступны по /actuator/metrics
+ * **/
+@Component
+class StorageMetrics {
+
+    /**
+     * Фаза операции. Время фазы пишется в таймер diskapi.{operation}.phase с тегом phase
+     * **/
+    enum Phase {
+        IMPORT_VALIDATION("import", "validation"),
+        // Чтение сохранённых версий элементов и их родителей одним запросом
+        IMPORT_LOOKUP("import", "lookup"),
+        // Запись элемента и изменения иерархии
+        IMPORT_SAVE("import", "save"),
+        IMPORT_FLUSH("import", "flush"),
+        NODES_FETCH("nodes", "fetch"),
+        NODES_BUILD("nodes", "build"),
+        DELETE_LOOKUP("delete", "lookup"),
+        DELETE_ARCHIVE_FLUSH("delete", "archive-flush"),
+        DELETE_SUBTREE("delete", "subtree"),
+        // Общие для импорта и удаления: загрузка цепочки предков через getPredecessors
+        PREDECESSORS("predecessors", "load"),
+        // UPDATE размеров и дат предков
+        PREDECESSOR_UPDATE("predecessors", "update");
+
+        private final String operation;
+        private final String phase;
+
+        Phase(String operation, String phase) {
+            this.operation = operation;
+            this.phase = phase;
+        }
+    }
+
+    private final Map<Phase, Timer> timers = new EnumMap<>(Phase.class);
+    private final DistributionSummary importRows;
+    private final DistributionSummary ancestorDepth;
+    private final DistributionSummary subtreeSize;
+
+    StorageMetrics(MeterRegistry registry) {
+        for (Phase phase : Phase.values()) {
+            timers.put(phase, Timer.builder("diskapi." + phase.operation + ".phase")
+                    .tag("phase", phase.phase)
+                    .register(registry));
+        }
+        importRows = DistributionSummary.builder("diskapi.import.rows")
+                .description("Элементы и предки, записанные одним импортом")
+                .register(registry);
+        ancestorDepth = DistributionSummary.builder("diskapi.hierarchy.ancestor.depth")
+                .description("Число предков в цепочке, загруженной из хранилища")
+                .register(registry);
+        subtreeSize = DistributionSummary.builder("diskapi.nodes.subtree.size")
+                .description("Число элементов в поддереве ответа /nodes/{id}")
+                .register(registry);
+    }
+
+    <T> T time(Phase phase, Supplier<T> action) {
+        return timers.get(phase).record(action);
+    }
+
+    void time(Phase phase, Runnable action) {
+        timers.get(phase).record(action);
+    }
+
+    void recordImportRows(int rows) {
+        importRows.record(rows);
+    }
+
+    void recordAncestorDepth(int depth) {
+        ancestorDepth.record(depth);
+    }
+
+    void recordSubtreeSize(int size) {
+        subtreeSize.record(size);
+    }
+}
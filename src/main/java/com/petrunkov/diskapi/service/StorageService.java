@@ -4,13 +4,23 @@ import com.petrunkov.diskapi.dto.SystemItemDto;
 import com.petrunkov.diskapi.dto.SystemItemHistoryResponse;
 import com.petrunkov.diskapi.dto.SystemItemImportRequest;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.time.Instant;
 
 public interface StorageService {
     void importItem(SystemItemImportRequest request);
+    void importItemStream(InputStream inputStream);
     void deleteItem(String id, Instant time);
     SystemItemDto getItemInfo(String id);
+    SystemItemDto getItemInfo(String id, Integer depth, Integer childrenLimit, String cursor);
+    String getItemETag(String id, Integer depth, Integer childrenLimit, String cursor);
+    void writeItemInfo(String id, OutputStream outputStream);
     SystemItemHistoryResponse getItemUpdates(Instant dateTime);
     SystemItemHistoryResponse getItemHistory(String id, Instant getStart, Instant getEnd);
+    SystemItemHistoryResponse getItemUpdates(Instant dateTime, int limit, String cursor);
+    SystemItemHistoryResponse getItemHistory(String id, Instant getStart, Instant getEnd, int limit, String cursor);
+    void writeItemUpdates(Instant dateTime, OutputStream outputStream);
+    void writeItemHistory(String id, Instant getStart, Instant getEnd, OutputStream outputStream);
 
 }
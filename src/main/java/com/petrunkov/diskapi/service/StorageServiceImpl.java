@@ -1,23 +1,45 @@
 package com.petrunkov.diskapi.service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.petrunkov.diskapi.dto.SystemItemDto;
 import com.petrunkov.diskapi.dto.SystemItemHistoryResponse;
 import com.petrunkov.diskapi.dto.SystemItemImport;
 import com.petrunkov.diskapi.dto.SystemItemImportRequest;
 import com.petrunkov.diskapi.exception.ItemNotFoundException;
 import com.petrunkov.diskapi.exception.ValidationErrorException;
+import com.petrunkov.diskapi.index.TreeIndex;
+import com.petrunkov.diskapi.config.DiskApiProperties;
+import com.petrunkov.diskapi.mapper.HistoryUnitNdjsonWriter;
+import com.petrunkov.diskapi.mapper.SystemItemImportReader;
 import com.petrunkov.diskapi.mapper.SystemItemMapper;
+import com.petrunkov.diskapi.mapper.SystemItemTreeWriter;
+import com.petrunkov.diskapi.mapper.TreeAssembler;
 import com.petrunkov.diskapi.model.SystemItem;
 import com.petrunkov.diskapi.model.SystemItemArchived;
 import com.petrunkov.diskapi.model.SystemItemType;
+import com.petrunkov.diskapi.repository.ArchiveDelta;
 import com.petrunkov.diskapi.repository.ArchiveRepository;
+import com.petrunkov.diskapi.repository.ArchiveWriter;
+import com.petrunkov.diskapi.repository.HistoryQueries;
 import com.petrunkov.diskapi.repository.StorageRepository;
+import com.petrunkov.diskapi.repository.TreeChanges;
+import com.petrunkov.diskapi.repository.TreeSnapshots;
+import com.petrunkov.diskapi.repository.hierarchy.HierarchyEngine;
+import com.petrunkov.diskapi.service.StorageMetrics.Phase;
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.persistence.EntityManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
@@ -30,174 +52,650 @@ import java.util.stream.Collectors;
 @Slf4j
 public class StorageServiceImpl implements StorageService {
 
+    // Ограничение на число id в одном IN-списке
+    private static final int UPDATE_CHUNK_SIZE = 1000;
+    // Наибольший размер страницы истории
+    private static final int MAX_PAGE_SIZE = 1000;
+
     private final StorageRepository repository;
     private final ArchiveRepository archive;
+    private final ArchiveWriter archiveWriter;
+    private final HistoryQueries historyQueries;
+    private final TreeSnapshots treeSnapshots;
+    private final TreeChanges treeChanges;
+    private final HierarchyEngine hierarchy;
+    private final TreeIndex treeIndex;
+    private final ApplicationEventPublisher eventPublisher;
+    private final ObjectMapper objectMapper;
+    private final EntityManager entityManager;
+    private final DiskApiProperties properties;
+    private final StorageTransactions transactions;
+    private final StorageMetrics metrics;
 
     @Override
-    @Transactional(isolation = Isolation.SERIALIZABLE)
     public void importItem(SystemItemImportRequest request) {
 
         //Валидация текстовых данных
-        Instant instant;
-        try {
-            instant = Instant.from(DateTimeFormatter.ISO_DATE_TIME.parse(request.getUpdateDate()));
-        } catch (Exception e) {
-            throw new ValidationErrorException();
+        Instant instant = metrics.time(Phase.IMPORT_VALIDATION, () -> {
+            validateSchema(request);
+            return parseUpdateDate(request.getUpdateDate());
+        });
+
+        transactions.execute("import", () -> {
+            transactions.lockTrees(StorageTransactions.getAffectedIds(request.getItems()));
+            applyImport(request, instant);
+        });
+        log.info("Items successfully imported");
+
+    }
+
+    /**
+     * Применить группу запросов в одной транзакции в порядке поступления.
+     * Запрос, не прошедший проверку, исключается из группы, и оставшиеся применяются заново без него.
+     * Возвращает ошибку для каждого отклонённого запроса и null для применённых
+     * **/
+    public List<RuntimeException> importItemGroup(List<SystemItemImportRequest> requests) {
+        List<RuntimeException> errors = new ArrayList<>(Collections.nCopies(requests.size(), null));
+        Instant[] instants = new Instant[requests.size()];
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < requests.size(); i++) {
+            SystemItemImportRequest request = requests.get(i);
+            try {
+                instants[i] = metrics.time(Phase.IMPORT_VALIDATION, () -> {
+                    validateSchema(request);
+                    return parseUpdateDate(request.getUpdateDate());
+                });
+                pending.add(i);
+            } catch (RuntimeException e) {
+                // Любая ошибка проверки относится только к своему запросу
+                errors.set(i, e);
+            }
         }
-        validateSchema(request);
 
+        while (!pending.isEmpty()) {
+            // Запрос, который применялся в момент ошибки
+            int[] current = {-1};
+            try {
+                transactions.execute("import", () -> {
+                    transactions.lockTrees(pending.stream()
+                            .flatMap(i -> StorageTransactions.getAffectedIds(requests.get(i).getItems()).stream())
+                            .toList());
+                    for (int i : pending) {
+                        current[0] = i;
+                        applyImport(requests.get(i), instants[i]);
+                    }
+                    current[0] = -1;
+                });
+                log.info("Group of {} imports successfully applied", pending.size());
+                break;
+            } catch (ValidationErrorException e) {
+                if (current[0] < 0) {
+                    throw e;
+                }
+                errors.set(current[0], e);
+                pending.remove(Integer.valueOf(current[0]));
+            } catch (RuntimeException e) {
+                if (current[0] < 0) {
+                    // Ошибка при блокировке или коммите не связана с конкретным запросом
+                    pending.forEach(i -> errors.set(i, e));
+                    break;
+                }
+                // Ошибка базы на конкретном запросе: он отклоняется, остальные применяются заново
+                log.warn("Import failed inside a group, retrying the rest without it", e);
+                errors.set(current[0], e);
+                pending.remove(Integer.valueOf(current[0]));
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Применить один запрос импорта в текущей транзакции
+     * **/
+    private void applyImport(SystemItemImportRequest request, Instant instant) {
+        // Элементы создаются заново на каждую попытку транзакции
         List<SystemItem> systemItems = request.getItems().stream()
                 .map(item -> SystemItemMapper.mapFromSystemItemImport(item, instant)).toList();
 
+        // Изменения предшественников копятся для всего запроса и записываются один раз в конце
+        PredecessorUpdates updates = new PredecessorUpdates();
+        List<SystemItem> savedItems = importItems(systemItems, updates);
+        metrics.time(Phase.IMPORT_FLUSH, entityManager::flush);
+        savedItems.addAll(updatePredecessors(updates, instant));
+        metrics.recordImportRows(savedItems.size());
+        eventPublisher.publishEvent(new StorageChangedEvent(savedItems, List.of()));
+    }
+
+    /**
+     * Потоковый импорт: элементы читаются и применяются порциями по disk-api.imports.chunk-size
+     * в одной транзакции. После каждой порции изменения сбрасываются в базу и контекст очищается,
+     * поэтому в памяти держатся только текущая порция, множество id запроса и накопленные изменения предков.
+     * Тело сначала копируется во временный файл: первый проход по нему собирает затронутые деревья,
+     * и они блокируются сразу и в том же порядке, что и в обычном импорте, второй проход применяет элементы.
+     * Файл можно перечитать, поэтому при конфликте импорт повторяется
+     * **/
+    @Override
+    public void importItemStream(InputStream inputStream) {
+        Path body = null;
+        try {
+            body = Files.createTempFile("disk-api-stream", ".json");
+            Files.copy(inputStream, body, StandardCopyOption.REPLACE_EXISTING);
+            Path spooled = body;
+            transactions.execute("import-stream", () -> importStream(spooled));
+        } catch (IOException e) {
+            log.warn("Import stream could not be read");
+            throw new ValidationErrorException();
+        } finally {
+            deleteSpool(body);
+        }
+    }
+
+    private static void deleteSpool(Path body) {
+        if (body == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(body);
+        } catch (IOException e) {
+            log.warn("Import spool {} was not deleted", body, e);
+        }
+    }
+
+    /**
+     * Элементы всего тела импорта и их родители, деревья которых блокируются до применения первой порции
+     * **/
+    private Set<String> readAffectedIds(Path body) {
+        Set<String> ids = new HashSet<>();
+        try (SystemItemImportReader reader = new SystemItemImportReader(objectMapper, Files.newInputStream(body))) {
+            reader.readUpdateDate();
+            int chunkSize = properties.getImports().getChunkSize();
+            List<SystemItemImport> chunk;
+            while (!(chunk = reader.nextChunk(chunkSize)).isEmpty()) {
+                ids.addAll(StorageTransactions.getAffectedIds(chunk));
+            }
+        } catch (IOException e) {
+            log.warn("Malformed import stream. Transaction rollback");
+            throw new ValidationErrorException();
+        }
+        return ids;
+    }
+
+    private void importStream(Path body) {
+        if (transactions.isAdvisory()) {
+            transactions.lockTrees(readAffectedIds(body));
+        }
+        try (SystemItemImportReader reader = new SystemItemImportReader(objectMapper, Files.newInputStream(body))) {
+            Instant instant = parseUpdateDate(reader.readUpdateDate());
+            PredecessorUpdates updates = new PredecessorUpdates();
+            Set<String> importedIds = new HashSet<>();
+            int chunkSize = properties.getImports().getChunkSize();
+
+            List<SystemItemImport> chunk;
+            while (!(chunk = reader.nextChunk(chunkSize)).isEmpty()) {
+                List<SystemItemImport> current = chunk;
+                metrics.time(Phase.IMPORT_VALIDATION, () -> current.forEach(item -> {
+                    // Повторяющийся id в запросе
+                    if (!isValid(item) || !importedIds.add(item.getId())) {
+                        throw new ValidationErrorException();
+                    }
+                }));
+                List<SystemItem> savedItems = importItems(chunk.stream()
+                        .map(item -> SystemItemMapper.mapFromSystemItemImport(item, instant)).toList(), updates);
+                eventPublisher.publishEvent(new StorageChangedEvent(savedItems, List.of()));
+                metrics.time(Phase.IMPORT_FLUSH, entityManager::flush);
+                entityManager.clear();
+                // Сохранённые связи уже в базе, дальше цепочки предков читаются оттуда
+                updates.clearParents();
+            }
+            List<SystemItem> predecessors = updatePredecessors(updates, instant);
+            metrics.recordImportRows(importedIds.size() + predecessors.size());
+            eventPublisher.publishEvent(new StorageChangedEvent(predecessors, List.of()));
+            log.info("{} items successfully imported", importedIds.size());
+        } catch (IOException e) {
+            log.warn("Malformed import stream. Transaction rollback");
+            throw new ValidationErrorException();
+        }
+    }
+
+    /**
+     * Применить элементы к хранилищу, накапливая изменения предков в updates. Возвращает сохранённые элементы.
+     * Элементы применяются так, что родитель из того же списка идёт раньше потомков. Сохранённые версии
+     * элементов и их родителей читаются одним запросом на список, родители из списка берутся из памяти
+     * **/
+    private List<SystemItem> importItems(List<SystemItem> systemItems, PredecessorUpdates updates) {
+        List<SystemItem> savedItems = new ArrayList<>();
+        // Обновлённые элементы, версии новых выдаёт сама вставка
+        List<String> updatedIds = new ArrayList<>();
+        List<SystemItemArchived> archived = new ArrayList<>();
+        // Переносы поддеревьев между корнями
+        List<TreeChanges.Move> moves = new ArrayList<>();
+        List<SystemItem> ordered = topologicalOrder(systemItems);
+        // id -> сохранённая версия, после применения элемента - его новая версия
+        Map<String, SystemItem> known = metrics.time(Phase.IMPORT_LOOKUP, () -> findReferenced(ordered));
+
         // Обработать 3 случая: обновление и сохранение parentId, обновление и смена parentId, вставка нового элемента
-        for (SystemItem newItem : systemItems) {
+        for (int i = 0; i < ordered.size(); i++) {
+            SystemItem newItem = ordered.get(i);
             // Проверка типа parentId. В случае FILE ошибка и роллбэк
+            SystemItem parent = null;
             if (newItem.getParentId() != null) {
-                Optional<SystemItem> parent = repository.findById(newItem.getParentId());
-                if (parent.isEmpty()) {
+                parent = known.get(newItem.getParentId());
+                if (parent == null) {
                     throw new ValidationErrorException();
                 }
-                if (parent.get().getType() == SystemItemType.FILE) {
+                if (parent.getType() == SystemItemType.FILE) {
                     log.warn("Validation Error. Transaction rollback");
                     throw new ValidationErrorException();
                 }
             }
 
-            archive.save(SystemItemMapper.mapToArchive(newItem));
+            Optional<SystemItem> fromStorage = Optional.ofNullable(known.get(newItem.getId()));
+            // Версия в истории хранит только поля, изменившиеся относительно сохранённого состояния
+            archived.add(ArchiveDelta.encode(SystemItemMapper.mapToArchive(newItem), fromStorage.orElse(null)));
+            updates.putDate(newItem.getId(), newItem.getDate());
 
-            Optional<SystemItem> fromStorage = repository.findById(newItem.getId());
             long newItemSize = newItem.getSize() == null ? 0L : newItem.getSize();
             // Случай обновления
             if (fromStorage.isPresent()) {
                 SystemItem oldItem = fromStorage.get();
+                updatedIds.add(oldItem.getId());
                 // Проверка на смену типа. Если тип изменен - ошибка и роллбэк
                 if (oldItem.getType() != newItem.getType()) {
                     log.warn("Validation error. Transaction rollback");
                     throw new ValidationErrorException();
                 }
                 long oldItemSize = oldItem.getSize() == null ? 0L : oldItem.getSize();
+                // Размер с учётом ещё не записанных изменений от предыдущих элементов запроса
+                long currentSize = oldItemSize + updates.getPendingDelta(oldItem.getId());
 
                 // Сохранить размер папки в случае обновления
                 if (newItem.getType() == SystemItemType.FOLDER) {
                     newItem.setSize(oldItemSize);
-                    newItemSize = oldItemSize;
+                    newItemSize = currentSize;
                 }
                 // Случай, когда parentId не меняется
 
-                if ((oldItem.getParentId() == null && newItem.getParentId() == null) ||
-                                oldItem.getParentId() != null &&
-                                newItem.getParentId() != null &&
-                                oldItem.getParentId().equals(newItem.getParentId())) {
-                    repository.save(newItem);
-                    updatePredecessors(repository.getPredecessors(oldItem.getId()), instant, newItemSize - oldItemSize);
+                if (Objects.equals(oldItem.getParentId(), newItem.getParentId())) {
+                    addToPredecessors(updates, newItem.getId(), newItem.getParentId(), newItemSize - currentSize);
+                    SystemItem saved = metrics.time(Phase.IMPORT_SAVE, () -> {
+                        hierarchy.onUpdate(oldItem, newItem);
+                        return repository.save(newItem);
+                    });
+                    savedItems.add(saved);
+                    known.put(saved.getId(), saved);
+                    updates.putParent(newItem.getId(), newItem.getParentId());
                 // Случай со сменой parentId. Требуется обновление дерева в двух местах
                 } else {
-                    repository.save(newItem);
-                    updatePredecessors(repository.getPredecessors(oldItem.getId()), instant, -oldItemSize);
-                    updatePredecessors(repository.getPredecessors(newItem.getId()), instant, newItemSize);
+                    addToPredecessors(updates, oldItem.getId(), oldItem.getParentId(), -currentSize);
+                    addToPredecessors(updates, newItem.getId(), newItem.getParentId(), newItemSize);
+                    String oldRootId = oldItem.getParentId() == null ? oldItem.getId()
+                            : updates.getRootId(oldItem.getParentId());
+                    SystemItem newParent = parent;
+                    savedItems.add(metrics.time(Phase.IMPORT_SAVE, () -> {
+                        hierarchy.onMove(oldItem, newItem, newParent);
+                        return repository.save(newItem);
+                    }));
+                    updates.putParent(newItem.getId(), newItem.getParentId());
+                    String newRootId = updates.getRootId(newItem.getId());
+                    if (oldRootId != null && newRootId != null && !oldRootId.equals(newRootId)) {
+                        moves.add(new TreeChanges.Move(oldRootId, newRootId, newItem.getDate()));
+                    }
+                    // Перенос меняет пути поддерева в базе и может очистить контекст, версии перечитываются
+                    List<SystemItem> remaining = ordered.subList(i + 1, ordered.size());
+                    known = metrics.time(Phase.IMPORT_LOOKUP, () -> findReferenced(remaining));
                 }
             // Вставка нового элемента
             } else {
-                repository.save(newItem);
-                updatePredecessors(repository.getPredecessors(newItem.getId()), instant, newItemSize);
+                addToPredecessors(updates, newItem.getId(), newItem.getParentId(), newItemSize);
+                SystemItem newParent = parent;
+                metrics.time(Phase.IMPORT_SAVE, () -> {
+                    hierarchy.onInsert(newItem, newParent);
+                    // Отсутствие в базе уже проверено, merge с лишним SELECT не нужен
+                    entityManager.persist(newItem);
+                });
+                savedItems.add(newItem);
+                known.put(newItem.getId(), newItem);
+                updates.putParent(newItem.getId(), newItem.getParentId());
             }
         }
-        log.info("Items successfully imported");
+        // Корни берутся из итоговых связей: все версии списка имеют одну дату
+        assignRoots(archived, updates);
+        archiveWriter.addAll(archived);
+        treeChanges.saveMoves(moves);
+        for (int i = 0; i < updatedIds.size(); i += UPDATE_CHUNK_SIZE) {
+            repository.updateVersions(updatedIds.subList(i, Math.min(updatedIds.size(), i + UPDATE_CHUNK_SIZE)));
+        }
+        return savedItems;
+    }
 
+    /**
+     * Записать в версии корни их деревьев. Корни элементов с неизвестной цепочкой предков
+     * читаются из хранилища по UPDATE_CHUNK_SIZE id
+     * **/
+    private void assignRoots(List<SystemItemArchived> rows, PredecessorUpdates updates) {
+        List<String> unknown = new ArrayList<>();
+        rows.forEach(row -> {
+            row.setRootId(updates.getRootId(row.getId()));
+            if (row.getRootId() == null) {
+                unknown.add(row.getId());
+            }
+        });
+        if (unknown.isEmpty()) {
+            return;
+        }
+        Map<String, String> rootIds = new HashMap<>();
+        for (int i = 0; i < unknown.size(); i += UPDATE_CHUNK_SIZE) {
+            rootIds.putAll(hierarchy.getRootIds(unknown.subList(i, Math.min(unknown.size(), i + UPDATE_CHUNK_SIZE))));
+        }
+        rows.stream()
+                .filter(row -> row.getRootId() == null)
+                .forEach(row -> row.setRootId(rootIds.get(row.getId())));
+    }
+
+    /**
+     * Упорядочить элементы так, чтобы родитель из того же списка шёл раньше потомков.
+     * Порядок, в котором родители уже идут первыми, не меняется. Цикл parentId внутри списка - ошибка
+     * **/
+    static List<SystemItem> topologicalOrder(List<SystemItem> items) {
+        Map<String, SystemItem> byId = new HashMap<>();
+        items.forEach(item -> byId.put(item.getId(), item));
+        Set<String> ordered = new HashSet<>();
+        List<SystemItem> result = new ArrayList<>(items.size());
+        Deque<SystemItem> chain = new ArrayDeque<>();
+        Set<String> chainIds = new HashSet<>();
+        for (SystemItem item : items) {
+            // Подняться по родителям из списка до уже упорядоченного или отсутствующего в списке
+            SystemItem current = item;
+            while (current != null && !ordered.contains(current.getId())) {
+                if (!chainIds.add(current.getId())) {
+                    log.warn("Validation error. Cycle in parentId chain. Transaction rollback");
+                    throw new ValidationErrorException();
+                }
+                chain.push(current);
+                current = current.getParentId() == null ? null : byId.get(current.getParentId());
+            }
+            while (!chain.isEmpty()) {
+                SystemItem next = chain.pop();
+                ordered.add(next.getId());
+                result.add(next);
+            }
+            chainIds.clear();
+        }
+        return result;
     }
 
     /**
-     * Обновить всех предшественников по parentId и добавить в архив изменения
+     * Сохранённые версии элементов и их родителей, по одному запросу на UPDATE_CHUNK_SIZE id
      * **/
-    private void updatePredecessors(Collection<SystemItem> items, Instant updateTime, long sizeChange) {
-        items.forEach(systemItem -> {
-            systemItem.setDate(updateTime);
-            long size = systemItem.getSize() == null ? 0 :systemItem.getSize();
-            systemItem.setSize(size + sizeChange);
+    private Map<String, SystemItem> findReferenced(List<SystemItem> items) {
+        Set<String> idSet = new HashSet<>();
+        items.forEach(item -> {
+            idSet.add(item.getId());
+            if (item.getParentId() != null) {
+                idSet.add(item.getParentId());
+            }
         });
-        addToArchive(items);
-        repository.saveAllAndFlush(items);
+        List<String> ids = new ArrayList<>(idSet);
+        Map<String, SystemItem> found = new HashMap<>();
+        for (int i = 0; i < ids.size(); i += UPDATE_CHUNK_SIZE) {
+            repository.findAllById(ids.subList(i, Math.min(ids.size(), i + UPDATE_CHUNK_SIZE)))
+                    .forEach(item -> found.put(item.getId(), item));
+        }
+        return found;
     }
-    private void addToArchive(Collection<SystemItem> items) {
-        archive.saveAll(items.stream().map(SystemItemMapper::mapToArchive).collect(Collectors.toList()));
+
+    private Instant parseUpdateDate(String updateDate) {
+        try {
+            return Instant.from(DateTimeFormatter.ISO_DATE_TIME.parse(updateDate));
+        } catch (Exception e) {
+            throw new ValidationErrorException();
+        }
+    }
+
+    /**
+     * Добавить изменение размера всем элементам цепочки от parentId до корня.
+     * Цепочка проверяется до сохранения элемента, поэтому попадание id в неё означает
+     * перемещение папки внутрь собственного поддерева
+     * **/
+    private void addToPredecessors(PredecessorUpdates updates, String id, String parentId, long sizeChange) {
+        Set<String> visited = new HashSet<>();
+        visited.add(id);
+        String current = parentId;
+        while (current != null) {
+            if (!updates.isKnown(current)) {
+                loadPredecessors(updates, current);
+            }
+            if (!visited.add(current)) {
+                log.warn("Validation error. Cycle in parentId chain. Transaction rollback");
+                throw new ValidationErrorException();
+            }
+            updates.addSizeDelta(current, sizeChange);
+            current = updates.getParentId(current);
+        }
+    }
+
+    /**
+     * Загрузить из хранилища цепочку parentId от элемента до корня. Поиск элемента и его предков -
+     * один замер фазы PREDECESSORS на вызов
+     * **/
+    private void loadPredecessors(PredecessorUpdates updates, String id) {
+        Collection<SystemItem> predecessors = metrics.time(Phase.PREDECESSORS, () -> {
+            SystemItem item = repository.findById(id).orElseThrow(ValidationErrorException::new);
+            updates.putParentIfAbsent(item.getId(), item.getParentId());
+            updates.putDateIfAbsent(item.getId(), item.getDate());
+            return hierarchy.getPredecessors(item);
+        });
+        metrics.recordAncestorDepth(predecessors.size());
+        predecessors.forEach(p -> {
+            updates.putParentIfAbsent(p.getId(), p.getParentId());
+            updates.putDateIfAbsent(p.getId(), p.getDate());
+        });
+    }
+
+    /**
+     * Обновить всех накопленных предшественников и добавить в архив изменения.
+     * Каждый предок записывается и архивируется один раз за операцию,
+     * предки с одинаковым изменением размера обновляются одним запросом.
+     * Возвращает предков в итоговом состоянии
+     * **/
+    private List<SystemItem> updatePredecessors(PredecessorUpdates updates, Instant updateTime) {
+        if (updates.isEmpty()) {
+            return List.of();
+        }
+        Map<Long, List<String>> idsBySizeChange = updates.getSizeDeltas().entrySet().stream()
+                .collect(Collectors.groupingBy(Map.Entry::getValue,
+                        Collectors.mapping(Map.Entry::getKey, Collectors.toList())));
+        List<SystemItem> items = metrics.time(Phase.PREDECESSOR_UPDATE, () -> {
+            idsBySizeChange.forEach((sizeChange, ids) -> {
+                for (int i = 0; i < ids.size(); i += UPDATE_CHUNK_SIZE) {
+                    repository.updatePredecessors(ids.subList(i, Math.min(ids.size(), i + UPDATE_CHUNK_SIZE)),
+                            sizeChange, updateTime);
+                }
+            });
+            return repository.findAllById(updates.getSizeDeltas().keySet());
+        });
+        addToArchive(items, updates);
+        return items;
+    }
+    /**
+     * У предков меняются только размер и дата, поэтому версии пишутся дельтой к предыдущей дате
+     * **/
+    private void addToArchive(Collection<SystemItem> items, PredecessorUpdates updates) {
+        List<SystemItemArchived> rows = items.stream()
+                .map(item -> ArchiveDelta.encodeUnchanged(SystemItemMapper.mapToArchive(item), updates.getDate(item.getId())))
+                .collect(Collectors.toList());
+        assignRoots(rows, updates);
+        archiveWriter.addAll(rows);
     }
 
     @Override
     public SystemItemDto getItemInfo(String id) {
+        // Дерево в памяти, если индекс включён и загружен
+        if (treeIndex.isReady()) {
+            Optional<SystemItemDto> indexed = treeIndex.findItemInfo(id);
+            if (indexed.isPresent()) {
+                return indexed.get();
+            }
+        }
 
-        Map<String, List<SystemItem>> map = new HashMap<>();
         // Получить все элементы из запроса
-        Set<SystemItem> itemSet = repository.getItemInfo(id);
-        final SystemItem[] root = {null};
-        // Реорганизовать в хэш-таблицу где ключ - Id, значение - список потомков
-        itemSet.forEach(item -> {
-            if (item.getId().equals(id)) {
-                root[0] = item;
-            } else {
-                map.putIfAbsent(item.getParentId(), new ArrayList<>());
-                map.get(item.getParentId()).add(item);
-            }});
+        Collection<SystemItem> itemSet = metrics.time(Phase.NODES_FETCH, () -> hierarchy.getSubtree(id));
+        metrics.recordSubtreeSize(itemSet.size());
+        // Дерево собирается на массивах индексов, большое поддерево - параллельно
+        boolean parallel = itemSet.size() >= properties.getNodes().getParallelThreshold();
+        SystemItemDto dto = metrics.time(Phase.NODES_BUILD, () -> TreeAssembler.assemble(itemSet, id, parallel));
         // Элемент не найден
-        if (root[0] == null) {
+        if (dto == null) {
             throw new ItemNotFoundException();
         }
-        // Элемент - файл, построение дерева не требуется
-        if (root[0].getType() == SystemItemType.FILE) {
-            return SystemItemMapper.mapToDto(root[0]);
-        }
-        // Элемент - папка, требуется построить дерево из хэш-таблицы
-        return buildTree(root[0], map);
+        return dto;
     }
 
     /**
-     * Построение дерева для запроса получения информации о папке
+     * ETag текущей версии поддерева элемента по одной строке из первичного ключа,
+     * без чтения самого поддерева
      * **/
-    private SystemItemDto buildTree(SystemItem root, Map<String, List<SystemItem>> map) {
-        LinkedList<SystemItem> queue = new LinkedList<>(map.get(root.getId()));
-        Map<String, SystemItemDto> dtoMap = new HashMap<>();
-        SystemItemDto dtoRoot = SystemItemMapper.mapToDto(root);
-        SystemItemDto dtoCur = dtoRoot;
+    @Override
+    public String getItemETag(String id, Integer depth, Integer childrenLimit, String cursor) {
+        long version = repository.findVersionById(id)
+                .orElseThrow(ItemNotFoundException::new);
+        return SystemItemMapper.mapToETag(version, depth, childrenLimit, cursor);
+    }
 
-        while (!queue.isEmpty()) {
-            while (queue.peek() != null && queue.peek().getParentId().equals(dtoCur.getId())) {
+    /**
+     * Элемент с поддеревом до глубины depth и не более чем childrenLimit детьми у каждой папки.
+     * Ограничения применяются в запросе, размер папки берётся из хранилища и остаётся полным.
+     * cursor продолжает список детей самого элемента
+     * **/
+    @Override
+    public SystemItemDto getItemInfo(String id, Integer depth, Integer childrenLimit, String cursor) {
+        if ((depth != null && depth < 0)
+                || (childrenLimit != null && (childrenLimit < 1 || childrenLimit > MAX_PAGE_SIZE))
+                || (cursor != null && childrenLimit == null)) {
+            throw new ValidationErrorException();
+        }
+        int maxDepth = depth == null ? Integer.MAX_VALUE : depth;
+        long limit = childrenLimit == null ? Integer.MAX_VALUE : childrenLimit;
+        String afterId = cursor == null ? "" : decodeChildrenCursor(cursor);
 
-                SystemItem cur = queue.poll();
-                SystemItemDto newDto = SystemItemMapper.mapToDto(cur);
-                dtoMap.put(newDto.getId(), newDto);
+        List<SystemItem> itemList = metrics.time(Phase.NODES_FETCH,
+                () -> repository.getSubtreeLimited(id, maxDepth, limit, afterId));
+        metrics.recordSubtreeSize(itemList.size());
+        Map<String, List<SystemItem>> map = new HashMap<>();
+        SystemItem root = groupByParent(itemList, id, map);
+        if (root == null) {
+            throw new ItemNotFoundException();
+        }
+        if (root.getType() == SystemItemType.FILE) {
+            return SystemItemMapper.mapToDto(root);
+        }
+        return metrics.time(Phase.NODES_BUILD, () -> buildLimitedTree(root, map, maxDepth, limit));
+    }
 
-                dtoCur.getChildren().add(newDto);
-                if (cur.getType() == SystemItemType.FOLDER) {
-                    queue.addAll(map.get(cur.getId()));
+    /**
+     * Построение дерева из детей, упорядоченных запросом. Ребёнок сверх limit отбрасывается,
+     * а папка получает токен продолжения после последнего выданного ребёнка
+     * **/
+    private static SystemItemDto buildLimitedTree(SystemItem root, Map<String, List<SystemItem>> map, int maxDepth, long limit) {
+        SystemItemDto dtoRoot = SystemItemMapper.mapToDto(root);
+        Deque<SystemItemDto> level = new ArrayDeque<>(List.of(dtoRoot));
+        for (int depth = 0; !level.isEmpty(); depth++) {
+            Deque<SystemItemDto> next = new ArrayDeque<>();
+            for (SystemItemDto dto : level) {
+                if (dto.getChildren() == null) {
+                    continue;
+                }
+                // Дети папок на последнем уровне не читались
+                if (depth == maxDepth) {
+                    dto.setChildren(null);
+                    continue;
+                }
+                List<SystemItem> children = map.getOrDefault(dto.getId(), List.of());
+                if (children.size() > limit) {
+                    children = children.subList(0, (int) limit);
+                    dto.setChildrenCursor(encodeChildrenCursor(children.get(children.size() - 1).getId()));
+                }
+                for (SystemItem child : children) {
+                    SystemItemDto childDto = SystemItemMapper.mapToDto(child);
+                    dto.getChildren().add(childDto);
+                    next.add(childDto);
                 }
             }
-            if (queue.peek() != null) {
-                dtoCur = dtoMap.get(queue.peek().getParentId());
-            }
+            level = next;
         }
-
         return dtoRoot;
     }
 
+    private static String encodeChildrenCursor(String id) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(id.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decodeChildrenCursor(String cursor) {
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new ValidationErrorException();
+        }
+    }
+
+    /**
+     * Реорганизовать поддерево в хэш-таблицу, где ключ - Id, значение - список потомков.
+     * Возвращает сам элемент id или null, если его нет в поддереве
+     * **/
+    static SystemItem groupByParent(Collection<SystemItem> itemSet, String id, Map<String, List<SystemItem>> map) {
+        SystemItem root = null;
+        for (SystemItem item : itemSet) {
+            if (item.getId().equals(id)) {
+                root = item;
+            } else {
+                map.computeIfAbsent(item.getParentId(), k -> new ArrayList<>()).add(item);
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Записать элемент с поддеревом в поток в том же формате, что и getItemInfo.
+     * Элементы читаются курсором в порядке обхода в глубину и сразу пишутся в поток,
+     * поэтому память не зависит от размера дерева. Порядок детей внутри папки не гарантируется
+     * **/
+    @Override
+    @Transactional(readOnly = true)
+    public void writeItemInfo(String id, OutputStream outputStream) {
+        SystemItemTreeWriter writer = new SystemItemTreeWriter(objectMapper, outputStream);
+        hierarchy.forEachDepthFirst(id, writer);
+        // Элемент не найден, в поток ничего не записано
+        if (writer.getItemCount() == 0) {
+            throw new ItemNotFoundException();
+        }
+        metrics.recordSubtreeSize(writer.getItemCount());
+        writer.finish();
+    }
 
     /**
      * Удалить элемент из основного хранилища и из архива
      * **/
     @Override
-    @Transactional(isolation = Isolation.SERIALIZABLE)
     public void deleteItem(String id, Instant dateTime) {
-        SystemItem item = repository.findById(id).orElseThrow(ItemNotFoundException::new);
-        long size = item.getSize() == null ? 0 : -item.getSize();
-        // Обновить дерево по parentId
-        updatePredecessors(repository.getPredecessors(item.getId()), dateTime, size);
-        // Удалить файл
-        if (item.getType() == SystemItemType.FILE) {
-            archive.deleteFileById(id);
-            repository.delete(item);
-        // Удалить папку
-        } else {
-            archive.deleteFolderById(id);
-            repository.deleteFolder(id);
-        }
+        transactions.execute("delete", () -> {
+            transactions.lockTrees(List.of(id));
+            SystemItem item = metrics.time(Phase.DELETE_LOOKUP, () -> repository.findById(id))
+                    .orElseThrow(ItemNotFoundException::new);
+            String rootId = hierarchy.getRootIds(List.of(id)).get(id);
+            // Снимки, снятые после даты удаления, содержат удаляемые элементы. Более ранние остаются,
+            // удалённые элементы убираются из них по отметкам удаления
+            treeSnapshots.deleteTakenSince(rootId, dateTime);
+            long size = item.getSize() == null ? 0 : -item.getSize();
+            // Обновить дерево по parentId
+            PredecessorUpdates updates = new PredecessorUpdates();
+            addToPredecessors(updates, item.getId(), item.getParentId(), size);
+            List<SystemItem> predecessors = updatePredecessors(updates, dateTime);
+            // Удалить элемент вместе с поддеревом и историей, включая ещё не записанную
+            metrics.time(Phase.DELETE_ARCHIVE_FLUSH, archiveWriter::flush);
+            List<String> deletedIds = metrics.time(Phase.DELETE_SUBTREE, () -> hierarchy.deleteSubtree(item));
+            treeChanges.saveTombstones(rootId, deletedIds, dateTime);
+            eventPublisher.publishEvent(new StorageChangedEvent(predecessors, deletedIds));
+        });
         log.info("Элемент с id {} удалён", id);
     }
 
@@ -213,7 +711,11 @@ public class StorageServiceImpl implements StorageService {
 
     @Override
     public SystemItemHistoryResponse getItemHistory(String id, Instant dateStart, Instant dateEnd) {
-        Collection<SystemItemArchived> archivedItems = archive.getHistoryInterval(id, dateStart, dateEnd.minusMillis(1));
+        // Базы дельт лежат не раньше начала месяца dateStart
+        List<SystemItemArchived> archivedItems =
+                decodeHistory(archive.getHistoryInterval(id, ArchiveDelta.monthStart(dateStart), dateEnd)).stream()
+                        .filter(item -> !item.getDate().isBefore(dateStart))
+                        .collect(Collectors.toList());
         if (archivedItems.size() == 0) {
             throw new ItemNotFoundException();
         }
@@ -223,31 +725,147 @@ public class StorageServiceImpl implements StorageService {
                         .collect(Collectors.toList()));
     }
 
+    /**
+     * Восстановить полные версии одного элемента: строки восстанавливаются в порядке bd_id
+     * и возвращаются в порядке (date, bd_id)
+     * **/
+    private static List<SystemItemArchived> decodeHistory(Collection<SystemItemArchived> rows) {
+        ArchiveDelta.Decoder decoder = new ArchiveDelta.Decoder();
+        return rows.stream()
+                .sorted(Comparator.comparing(SystemItemArchived::getBdId))
+                .map(decoder::decode)
+                .sorted(Comparator.comparing(SystemItemArchived::getDate).thenComparing(SystemItemArchived::getBdId))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Страница обновлений в порядке (date, id). Следующая страница продолжает строго после последнего ключа,
+     * поэтому выборка идёт по индексу без OFFSET
+     * **/
+    @Override
+    public SystemItemHistoryResponse getItemUpdates(Instant instant, int limit, String cursor) {
+        validateLimit(limit);
+        Instant start = instant.minus(24, ChronoUnit.HOURS);
+        HistoryCursor after = cursor == null ? HistoryCursor.before(start, "") : HistoryCursor.decode(cursor);
+        List<SystemItem> page = repository.getFileHistoryPage(start, instant, after.getDate(), after.getKey(), limit);
+        String nextCursor = page.size() < limit ? null
+                : new HistoryCursor(page.get(page.size() - 1).getDate(), page.get(page.size() - 1).getId()).encode();
+        return new SystemItemHistoryResponse(
+                page.stream()
+                        .map(SystemItemMapper::mapToHistoryUnit)
+                        .collect(Collectors.toList()),
+                nextCursor);
+    }
+
+    /**
+     * Страница истории элемента в порядке (date, bd_id). 404, только если пуста первая страница
+     * **/
+    @Override
+    public SystemItemHistoryResponse getItemHistory(String id, Instant dateStart, Instant dateEnd, int limit, String cursor) {
+        validateLimit(limit);
+        HistoryCursor after = cursor == null ? HistoryCursor.before(dateStart, "0") : HistoryCursor.decode(cursor);
+        long afterBdId;
+        try {
+            afterBdId = Long.parseLong(after.getKey());
+        } catch (NumberFormatException e) {
+            throw new ValidationErrorException();
+        }
+        List<SystemItemArchived> page = archive.getHistoryPage(id, dateStart, dateEnd, after.getDate(), afterBdId, limit);
+        if (page.isEmpty() && cursor == null) {
+            throw new ItemNotFoundException();
+        }
+        String nextCursor = null;
+        if (page.size() == limit) {
+            SystemItemArchived last = page.get(page.size() - 1);
+            nextCursor = new HistoryCursor(last.getDate(), String.valueOf(last.getBdId())).encode();
+        }
+        List<SystemItemArchived> deltas = page.stream()
+                .filter(item -> item.getStoredFields() != ArchiveDelta.ALL)
+                .toList();
+        if (!deltas.isEmpty()) {
+            // Цепочки баз дельт страницы начинаются с последней полной версии перед самой ранней по bd_id дельтой,
+            // чтение не возвращается к началу месяца
+            Map<Long, SystemItemArchived> decoded = decodeHistory(archive.getHistoryChain(id,
+                    ArchiveDelta.monthStart(deltas.get(0).getDate()),
+                    page.get(page.size() - 1).getDate(),
+                    deltas.stream().mapToLong(SystemItemArchived::getBdId).min().orElseThrow(),
+                    deltas.stream().mapToLong(SystemItemArchived::getBdId).max().orElseThrow())).stream()
+                    .collect(Collectors.toMap(SystemItemArchived::getBdId, item -> item));
+            page = page.stream().map(item -> decoded.getOrDefault(item.getBdId(), item)).collect(Collectors.toList());
+        }
+        return new SystemItemHistoryResponse(
+                page.stream()
+                        .map(SystemItemMapper::mapToHistoryUnitFromArchive)
+                        .collect(Collectors.toList()),
+                nextCursor);
+    }
+
+    /**
+     * Обновления за 24 часа в NDJSON, читаются курсором порциями по disk-api.streaming.fetch-size
+     * **/
+    @Override
+    @Transactional(readOnly = true)
+    public void writeItemUpdates(Instant instant, OutputStream outputStream) {
+        HistoryUnitNdjsonWriter writer = new HistoryUnitNdjsonWriter(objectMapper, outputStream);
+        historyQueries.forEachFileUpdate(instant.minus(24, ChronoUnit.HOURS), instant,
+                item -> writer.accept(SystemItemMapper.mapToHistoryUnit(item)));
+        writer.finish();
+    }
+
+    /**
+     * История элемента в NDJSON, читается курсором порциями по disk-api.streaming.fetch-size
+     * **/
+    @Override
+    @Transactional(readOnly = true)
+    public void writeItemHistory(String id, Instant dateStart, Instant dateEnd, OutputStream outputStream) {
+        HistoryUnitNdjsonWriter writer = new HistoryUnitNdjsonWriter(objectMapper, outputStream);
+        historyQueries.forEachArchived(id, dateStart, dateEnd,
+                item -> writer.accept(SystemItemMapper.mapToHistoryUnitFromArchive(item)));
+        if (writer.getItemCount() == 0) {
+            throw new ItemNotFoundException();
+        }
+        writer.finish();
+    }
+
+    private void validateLimit(int limit) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new ValidationErrorException();
+        }
+    }
+
     /**
      * Проверка текстовых данных, которые можно обработать без обращения к базе данных
      * **/
-    private void validateSchema(SystemItemImportRequest request) {
+    static void validateSchema(SystemItemImportRequest request) {
         List<SystemItemImport> importList = request.getItems();
+        if (importList == null || importList.contains(null)) {
+            throw new ValidationErrorException();
+        }
         Set<String> set = importList.stream().map(SystemItemImport::getId).collect(Collectors.toSet());
         if (set.size() != importList.size()) {
             throw new ValidationErrorException();
         }
 
+        if (!request.getItems().stream().allMatch(StorageServiceImpl::isValid)) {
+            throw new ValidationErrorException();
+        }
+
+    }
+
+    /**
+     * Проверка полей одного элемента
+     * **/
+    static boolean isValid(SystemItemImport item) {
         Predicate<SystemItemImport> nullTest = i -> i.getId() != null;
+        Predicate<SystemItemImport> typeTest = i -> "FILE".equals(i.getType()) || "FOLDER".equals(i.getType());
         Predicate<SystemItemImport> folderUrlTest = i -> !(i.getType().equals("FOLDER") && i.getUrl() != null);
         Predicate<SystemItemImport> folderSizeTest = i -> !(i.getType().equals("FOLDER") && i.getSize() != null);
         Predicate<SystemItemImport> fileUrlTest = i -> !(i.getType().equals("FILE") && (i.getUrl() == null || i.getUrl().length() > 255));
         Predicate<SystemItemImport> fileSizeTest = i -> !(i.getType().equals("FILE") && (i.getSize() == null || i.getSize() == 0));
 
-        List<Predicate<SystemItemImport>> predicateList = List.of(nullTest, folderUrlTest, folderSizeTest, fileUrlTest, fileSizeTest);
-
-
-        if (!request.getItems().stream()
-                .allMatch(item -> predicateList.stream()
-                        .allMatch(v -> v.test(item)))) {
-            throw new ValidationErrorException();
-        }
+        List<Predicate<SystemItemImport>> predicateList = List.of(nullTest, typeTest, folderUrlTest, folderSizeTest, fileUrlTest, fileSizeTest);
 
+        return predicateList.stream().allMatch(v -> v.test(item));
     }
 
 
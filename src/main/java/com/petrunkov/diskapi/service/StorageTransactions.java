@@ -0,0 +1,159 @@
+package com.petrunkov.diskapi.service;
+
+import com.petrunkov.diskapi.config.DiskApiProperties;
+import com.petrunkov.diskapi.dto.SystemItemImport;
+import com.petrunkov.diskapi.repository.hierarchy.HierarchyEngine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.*;
+
+/**
+ * Транзакции операций записи. Режим задаётся свойством disk-api.concurrency.mode:
+ * serializable - каждая операция в транзакции SERIALIZABLE;
+ * advisory - транзакция READ COMMITTED, операция блокирует advisory-блокировками PostgreSQL корни
+ * затронутых деревьев, поэтому операции над разными деревьями выполняются параллельно.
+ * Операция, прерванная из-за конфликта сериализации или взаимоблокировки, выполняется заново
+ * **/
+@Component
+@Slf4j
+public class StorageTransactions {
+
+    private static final int ROOTS_CHUNK_SIZE = 1000;
+    // Операции записи, которые выполняются через execute
+    private static final List<String> OPERATIONS = List.of("import", "import-stream", "delete");
+
+    private final TransactionTemplate transactionTemplate;
+    private final JdbcTemplate jdbcTemplate;
+    private final HierarchyEngine hierarchy;
+    private final boolean advisory;
+    private final int maxAttempts;
+    // Повторы после конфликта и операции, не завершившиеся за maxAttempts попыток, с тегом операции
+    private final MeterRegistry registry;
+    private final String mode;
+    // Блокировки дерева, которые пришлось ждать: дерево было занято другой операцией
+    private final Counter lockWaits;
+
+    public StorageTransactions(PlatformTransactionManager transactionManager, JdbcTemplate jdbcTemplate,
+                               HierarchyEngine hierarchy, DiskApiProperties properties, MeterRegistry registry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.hierarchy = hierarchy;
+        this.advisory = "advisory".equals(properties.getConcurrency().getMode());
+        this.maxAttempts = properties.getConcurrency().getMaxAttempts();
+        this.mode = properties.getConcurrency().getMode();
+        this.registry = registry;
+        // Счётчики регистрируются сразу, чтобы нулевые значения были видны в actuator
+        OPERATIONS.forEach(name -> {
+            counter("diskapi.transactions.retries", name);
+            counter("diskapi.transactions.aborts", name);
+        });
+        this.lockWaits = registry.counter("diskapi.transactions.lock.waits", "mode", mode);
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setIsolationLevel(advisory
+                ? TransactionDefinition.ISOLATION_READ_COMMITTED
+                : TransactionDefinition.ISOLATION_SERIALIZABLE);
+    }
+
+    /**
+     * Выполнить операцию в транзакции, повторяя её при конфликте. name - тег operation
+     * счётчиков повторов и отказов: import, import-stream или delete
+     * **/
+    public void execute(String name, Runnable operation) {
+        execute(name, operation, maxAttempts);
+    }
+
+    /**
+     * Операции блокируют деревья advisory-блокировками, а не полагаются на SERIALIZABLE
+     * **/
+    public boolean isAdvisory() {
+        return advisory;
+    }
+
+    /**
+     * Заблокировать до конца транзакции деревья, в которых находятся элементы ids.
+     * Отсутствующий id блокируется сам по себе: это корень нового дерева или будущий родитель из того же запроса.
+     * Пока ждали блокировку, дерево могли перенести под другой корень, поэтому корни определяются заново,
+     * пока не окажутся заблокированы все
+     * **/
+    public void lockTrees(Collection<String> ids) {
+        if (!advisory) {
+            return;
+        }
+        Set<String> locked = new HashSet<>();
+        Set<String> roots = getRootIds(ids);
+        while (!locked.containsAll(roots)) {
+            // Единый порядок захвата исключает взаимоблокировки между операциями
+            roots.stream()
+                    .filter(root -> !locked.contains(root))
+                    .sorted()
+                    .forEach(root -> {
+                        // Свободное дерево берётся одним запросом, ожидание занятого учитывается в lockWaits
+                        Boolean acquired = jdbcTemplate.queryForObject(
+                                "SELECT pg_try_advisory_xact_lock(hashtext(?))", Boolean.class, root);
+                        if (!Boolean.TRUE.equals(acquired)) {
+                            lockWaits.increment();
+                            jdbcTemplate.query("SELECT pg_advisory_xact_lock(hashtext(?))",
+                                    (RowCallbackHandler) rs -> { }, root);
+                        }
+                        locked.add(root);
+                    });
+            roots = getRootIds(ids);
+        }
+    }
+
+    /**
+     * Корни деревьев элементов ids. Для отсутствующего id корнем считается он сам
+     * **/
+    public Set<String> getRootIds(Collection<String> ids) {
+        List<String> distinctIds = new ArrayList<>(new HashSet<>(ids));
+        Set<String> roots = new HashSet<>();
+        for (int i = 0; i < distinctIds.size(); i += ROOTS_CHUNK_SIZE) {
+            List<String> chunk = distinctIds.subList(i, Math.min(distinctIds.size(), i + ROOTS_CHUNK_SIZE));
+            Map<String, String> rootIds = hierarchy.getRootIds(chunk);
+            chunk.forEach(id -> roots.add(rootIds.getOrDefault(id, id)));
+        }
+        return roots;
+    }
+
+    /**
+     * Элементы, деревья которых меняет импорт: сами элементы и их новые родители
+     * **/
+    static List<String> getAffectedIds(Collection<SystemItemImport> items) {
+        List<String> ids = new ArrayList<>();
+        items.forEach(item -> {
+            ids.add(item.getId());
+            if (item.getParentId() != null) {
+                ids.add(item.getParentId());
+            }
+        });
+        return ids;
+    }
+
+    private void execute(String name, Runnable operation, int attempts) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                transactionTemplate.executeWithoutResult(status -> operation.run());
+                return;
+            } catch (ConcurrencyFailureException e) {
+                if (attempt >= attempts) {
+                    counter("diskapi.transactions.aborts", name).increment();
+                    throw e;
+                }
+                counter("diskapi.transactions.retries", name).increment();
+                log.info("Transaction conflict in {}, retry {} of {}", name, attempt, attempts - 1);
+            }
+        }
+    }
+
+    private Counter counter(String metric, String name) {
+        return registry.counter(metric, "mode", mode, "operation", name);
+    }
+}
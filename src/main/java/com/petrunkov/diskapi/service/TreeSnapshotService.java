@@ -0,0 +1,293 @@
+package com.petrunkov.diskapi.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.petrunkov.diskapi.config.DiskApiProperties;
+import com.petrunkov.diskapi.dto.SystemItemDto;
+import com.petrunkov.diskapi.dto.SystemItemHistoryUnit;
+import com.petrunkov.diskapi.exception.ItemNotFoundException;
+import com.petrunkov.diskapi.mapper.SystemItemMapper;
+import com.petrunkov.diskapi.model.SystemItem;
+import com.petrunkov.diskapi.model.SystemItemArchived;
+import com.petrunkov.diskapi.model.SystemItemType;
+import com.petrunkov.diskapi.repository.ArchiveDelta;
+import com.petrunkov.diskapi.repository.HistoryQueries;
+import com.petrunkov.diskapi.repository.StorageRepository;
+import com.petrunkov.diskapi.repository.TreeChanges;
+import com.petrunkov.diskapi.repository.TreeSnapshots;
+import com.petrunkov.diskapi.repository.hierarchy.HierarchyEngine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Дерево элемента на прошедший момент. По расписанию для каждого изменившегося корня сохраняется снимок
+ * его дерева на дату последнего изменения, а запрос берёт ближайший снимок не позже at
+ * и проигрывает поверх него только историю после снимка
+ * **/
+@Service
+@Slf4j
+public class TreeSnapshotService {
+
+    private final StorageRepository repository;
+    private final HierarchyEngine hierarchy;
+    private final HistoryQueries historyQueries;
+    private final TreeSnapshots snapshots;
+    private final TreeChanges treeChanges;
+    private final ObjectMapper objectMapper;
+    private final TransactionTemplate snapshotTransaction;
+    private final boolean enabled;
+
+    public TreeSnapshotService(StorageRepository repository, HierarchyEngine hierarchy, HistoryQueries historyQueries,
+                               TreeSnapshots snapshots, TreeChanges treeChanges, ObjectMapper objectMapper,
+                               PlatformTransactionManager transactionManager, DiskApiProperties properties) {
+        this.repository = repository;
+        this.hierarchy = hierarchy;
+        this.historyQueries = historyQueries;
+        this.snapshots = snapshots;
+        this.treeChanges = treeChanges;
+        this.objectMapper = objectMapper;
+        this.snapshotTransaction = new TransactionTemplate(transactionManager);
+        // Дерево читается согласованно с датой корня, даже если параллельно идёт импорт
+        this.snapshotTransaction.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+        this.enabled = properties.getSnapshots().isEnabled();
+    }
+
+    /**
+     * Снять деревья, изменившиеся после своего последнего снимка
+     * **/
+    @Scheduled(cron = "${disk-api.snapshots.cron:0 0 * * * *}")
+    public void takeSnapshots() {
+        if (!enabled) {
+            return;
+        }
+        int taken = 0;
+        for (SystemItem root : repository.findAllByParentIdIsNull()) {
+            Boolean saved = snapshotTransaction.execute(status -> takeSnapshot(root.getId()));
+            if (Boolean.TRUE.equals(saved)) {
+                taken++;
+            }
+        }
+        log.info("Tree snapshots taken: {}", taken);
+    }
+
+    private boolean takeSnapshot(String rootId) {
+        Optional<SystemItem> root = repository.findById(rootId);
+        if (root.isEmpty() || root.get().getParentId() != null) {
+            return false;
+        }
+        // Любое изменение в дереве обновляет дату корня
+        Instant takenAt = root.get().getDate();
+        Optional<Instant> latest = snapshots.findLatestTakenAt(rootId);
+        if (latest.isPresent() && !latest.get().isBefore(takenAt)) {
+            return false;
+        }
+        List<SystemItemHistoryUnit> items = hierarchy.getSubtree(rootId).stream()
+                .map(SystemItemMapper::mapToHistoryUnit)
+                .collect(Collectors.toList());
+        snapshots.save(rootId, takenAt, write(items));
+        return true;
+    }
+
+    /**
+     * Элемент с поддеревом в состоянии на момент at. Проигрывается история только дерева элемента
+     * и деревьев, обменивавшихся с ним поддеревьями после снимков
+     * **/
+    @Transactional(readOnly = true)
+    public SystemItemDto getItemInfoAt(String id, Instant at) {
+        SystemItemArchived item = historyQueries.findVersionAt(id, at).orElseThrow(ItemNotFoundException::new);
+        String rootId = item.getRootId() == null ? findRootAt(item, at) : item.getRootId();
+
+        // Корень -> его снимок. Дерево, связанное переносом, берётся со снимком до первого переноса
+        Map<String, Optional<TreeSnapshots.Snapshot>> rootSnapshots = new HashMap<>();
+        Map<String, Instant> bounds = new HashMap<>(Map.of(rootId, at));
+        Deque<String> pending = new ArrayDeque<>(List.of(rootId));
+        while (!pending.isEmpty()) {
+            String root = pending.poll();
+            Optional<TreeSnapshots.Snapshot> snapshot = snapshots.findLatest(root, bounds.get(root));
+            rootSnapshots.put(root, snapshot);
+            treeChanges.findLinkedRoots(root, snapshot.map(TreeSnapshots.Snapshot::getTakenAt).orElse(null), at)
+                    .forEach((linked, date) -> {
+                        Instant bound = date.minus(1, ChronoUnit.MICROS);
+                        if (!bounds.containsKey(linked) || bound.isBefore(bounds.get(linked))) {
+                            bounds.put(linked, bound);
+                            pending.add(linked);
+                        }
+                    });
+        }
+
+        // Элемент мог быть в нескольких снимках, остаётся более поздняя версия
+        Map<String, SystemItemArchived> versions = new HashMap<>();
+        Map<String, Instant> after = new HashMap<>();
+        rootSnapshots.forEach((root, snapshot) -> {
+            after.put(root, snapshot.map(TreeSnapshots.Snapshot::getTakenAt).orElse(null));
+            snapshot.ifPresent(s -> read(s.getItems()).forEach(unit -> put(versions, mapFromUnit(unit))));
+        });
+
+        // История деревьев после их снимков, без снимка - вся история до at
+        List<SystemItemArchived> rows = decode(historyQueries.findArchivedOfRoots(after, at));
+        List<TreeChanges.Tombstone> tombstones = treeChanges.findTombstones(after, at);
+        int next = 0;
+        for (SystemItemArchived row : rows) {
+            // Удаления до версии применяются раньше неё: id мог быть создан заново
+            for (; next < tombstones.size() && !tombstones.get(next).getDate().isAfter(row.getDate()); next++) {
+                remove(versions, tombstones.get(next));
+            }
+            put(versions, row);
+        }
+        tombstones.subList(next, tombstones.size()).forEach(tombstone -> remove(versions, tombstone));
+
+        Map<String, List<SystemItem>> children = new HashMap<>();
+        versions.values().stream()
+                .filter(version -> version.getParentId() != null)
+                .forEach(version -> children.computeIfAbsent(version.getParentId(), k -> new ArrayList<>())
+                        .add(mapToItem(version)));
+        SystemItem result = mapToItem(versions.getOrDefault(id, item));
+        SystemItemDto dto = SystemItemMapper.mapToDto(result);
+        fillChildren(dto, children, new HashSet<>(Set.of(id)));
+        return dto;
+    }
+
+    /**
+     * Корень элемента в момент at по версиям предков, для строк истории без корня
+     * **/
+    private String findRootAt(SystemItemArchived item, Instant at) {
+        SystemItemArchived root = item;
+        Set<String> visited = new HashSet<>();
+        while (root.getParentId() != null && visited.add(root.getId())) {
+            root = historyQueries.findVersionAt(root.getParentId(), at).orElseThrow(ItemNotFoundException::new);
+        }
+        return root.getId();
+    }
+
+    /**
+     * Полные версии строк в порядке (date, bd_id). Строки читаются в порядке bd_id, база дельты -
+     * предыдущая строка элемента. Дельты, чья база осталась до снимка или в другом дереве,
+     * получают базы одним запросом
+     * **/
+    private List<SystemItemArchived> decode(List<SystemItemArchived> rows) {
+        Map<String, SystemItemArchived> latest = new HashMap<>();
+        List<SystemItemArchived> missing = new ArrayList<>();
+        for (SystemItemArchived row : rows) {
+            SystemItemArchived base = latest.get(row.getId());
+            if (row.getStoredFields() != ArchiveDelta.ALL && (base == null || base.getDate().isAfter(row.getDate()))) {
+                missing.add(row);
+            }
+            latest.put(row.getId(), row);
+        }
+        Map<Long, SystemItemArchived> bases = historyQueries.findBases(missing);
+
+        latest.clear();
+        List<SystemItemArchived> versions = new ArrayList<>(rows.size());
+        for (SystemItemArchived row : rows) {
+            SystemItemArchived version = row;
+            if (row.getStoredFields() != ArchiveDelta.ALL) {
+                SystemItemArchived base = bases.containsKey(row.getBdId()) ? bases.get(row.getBdId()) : latest.get(row.getId());
+                if (base == null) {
+                    // История базы уже удалена по сроку хранения
+                    continue;
+                }
+                version = ArchiveDelta.apply(base, row);
+            }
+            latest.put(row.getId(), version);
+            versions.add(version);
+        }
+        versions.sort(Comparator.comparing(SystemItemArchived::getDate).thenComparing(SystemItemArchived::getBdId));
+        return versions;
+    }
+
+    /**
+     * Заменить версию элемента, если новая не старше
+     * **/
+    private static void put(Map<String, SystemItemArchived> versions, SystemItemArchived version) {
+        SystemItemArchived current = versions.get(version.getId());
+        if (current == null || !current.getDate().isAfter(version.getDate())) {
+            versions.put(version.getId(), version);
+        }
+    }
+
+    /**
+     * Убрать элемент, удалённый не раньше своей версии
+     * **/
+    private static void remove(Map<String, SystemItemArchived> versions, TreeChanges.Tombstone tombstone) {
+        SystemItemArchived current = versions.get(tombstone.getId());
+        if (current != null && !current.getDate().isAfter(tombstone.getDate())) {
+            versions.remove(tombstone.getId());
+        }
+    }
+
+    /**
+     * Достроить поддерево и пересчитать размеры папок по файлам в момент at
+     * **/
+    private void fillChildren(SystemItemDto dto, Map<String, List<SystemItem>> children, Set<String> visited) {
+        if (dto.getChildren() == null) {
+            return;
+        }
+        long size = 0;
+        boolean hasSize = dto.getSize() != null;
+        for (SystemItem child : children.getOrDefault(dto.getId(), List.of())) {
+            if (!visited.add(child.getId())) {
+                continue;
+            }
+            SystemItemDto childDto = SystemItemMapper.mapToDto(child);
+            fillChildren(childDto, children, visited);
+            dto.getChildren().add(childDto);
+            if (childDto.getSize() != null) {
+                size += childDto.getSize();
+                hasSize = true;
+            }
+        }
+        dto.setSize(hasSize ? size : null);
+    }
+
+    private static SystemItem mapToItem(SystemItemArchived version) {
+        return new SystemItem(version.getId(), version.getUrl(), version.getDate(), version.getParentId(),
+                version.getType(), version.getSize(), null, null);
+    }
+
+    private static SystemItemArchived mapFromUnit(SystemItemHistoryUnit unit) {
+        return SystemItemArchived.builder()
+                .id(unit.getId())
+                .url(unit.getUrl())
+                .date(Instant.parse(unit.getDate()))
+                .parentId(unit.getParentId())
+                .type(SystemItemType.valueOf(unit.getType()))
+                .size(unit.getSize())
+                .build();
+    }
+
+    private byte[] write(List<SystemItemHistoryUnit> items) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(bytes)) {
+            objectMapper.writeValue(out, items);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private List<SystemItemHistoryUnit> read(byte[] items) {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(items))) {
+            return objectMapper.readValue(in, new TypeReference<>() { });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+-- Базовая схема. В базах, созданных раньше через ddl-auto, объекты уже есть и пропускаются
+
+CREATE SEQUENCE IF NOT EXISTS hibernate_sequence START 1 INCREMENT 1;
+
+CREATE TABLE IF NOT EXISTS t_system_items
+(
+    id        varchar(255) NOT NULL PRIMARY KEY,
+    date      timestamp    NOT NULL,
+    parent_id varchar(255),
+    path      text COLLATE "C",
+    size      bigint,
+    type      varchar(255),
+    url       varchar(255)
+);
+ALTER TABLE t_system_items ADD COLUMN IF NOT EXISTS path text COLLATE "C";
+CREATE INDEX IF NOT EXISTS idx_system_items_path ON t_system_items (path);
+
+CREATE TABLE IF NOT EXISTS t_item_closure
+(
+    ancestor_id   varchar(255) NOT NULL,
+    descendant_id varchar(255) NOT NULL,
+    depth         integer      NOT NULL,
+    PRIMARY KEY (ancestor_id, descendant_id)
+);
+CREATE INDEX IF NOT EXISTS idx_item_closure_descendant ON t_item_closure (descendant_id, depth);
+
+-- История секционирована по date, секции по месяцам создаёт ArchivePartitionManager.
+-- Обычная таблица из ddl-auto пересоздаётся секционированной
+DO
+$$
+BEGIN
+    IF to_regclass('t_archive') IS NULL THEN
+        CREATE TABLE t_archive
+        (
+            bd_id     bigint       NOT NULL,
+            date      timestamp    NOT NULL,
+            id        varchar(255) NOT NULL,
+            parent_id varchar(255),
+            size      bigint,
+            type      varchar(255),
+            url       varchar(255),
+            PRIMARY KEY (bd_id, date)
+        ) PARTITION BY RANGE (date);
+        CREATE TABLE t_archive_default PARTITION OF t_archive DEFAULT;
+    ELSIF (SELECT relkind FROM pg_class WHERE oid = 't_archive'::regclass) <> 'p' THEN
+        ALTER TABLE t_archive RENAME TO t_archive_legacy;
+        ALTER TABLE t_archive_legacy RENAME CONSTRAINT t_archive_pkey TO t_archive_legacy_pkey;
+        CREATE TABLE t_archive (LIKE t_archive_legacy INCLUDING DEFAULTS) PARTITION BY RANGE (date);
+        -- Ключ секционированной таблицы обязан содержать колонку секционирования
+        ALTER TABLE t_archive ADD CONSTRAINT t_archive_pkey PRIMARY KEY (bd_id, date);
+        CREATE TABLE t_archive_default PARTITION OF t_archive DEFAULT;
+        INSERT INTO t_archive SELECT * FROM t_archive_legacy;
+        DROP TABLE t_archive_legacy;
+    END IF;
+END
+$$;
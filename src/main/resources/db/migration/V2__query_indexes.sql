@@ -0,0 +1,10 @@
+-- Индексы под запросы StorageRepository и ArchiveRepository, проверяются QueryPlanTests
+
+-- Рекурсивные CTE по parent_id: спуск к детям и построение путей от корней
+CREATE INDEX IF NOT EXISTS idx_system_items_parent_id ON t_system_items (parent_id);
+
+-- getFileHistory: файлы, обновлённые в интервале
+CREATE INDEX IF NOT EXISTS idx_system_items_file_date ON t_system_items (date) WHERE type = 'FILE';
+
+-- getHistoryInterval и удаление истории по id, создаётся в каждой секции
+CREATE INDEX IF NOT EXISTS idx_archive_id_date ON t_archive (id, date);
@@ -0,0 +1,9 @@
+-- Ключи постраничной выдачи истории: порядок (date, id) и (date, bd_id) берётся из индекса без сортировки
+
+-- getFileHistoryPage, заменяет индекс только по date
+CREATE INDEX IF NOT EXISTS idx_system_items_file_date_id ON t_system_items (date, id) WHERE type = 'FILE';
+DROP INDEX IF EXISTS idx_system_items_file_date;
+
+-- getHistoryPage, заменяет индекс (id, date)
+CREATE INDEX IF NOT EXISTS idx_archive_id_date_bd_id ON t_archive (id, date, bd_id);
+DROP INDEX IF EXISTS idx_archive_id_date;
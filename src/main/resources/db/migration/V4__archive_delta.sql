@@ -0,0 +1,4 @@
+-- Версия элемента в t_archive хранит только url, parent_id и type, изменившиеся относительно предыдущей версии.
+-- stored_fields - маска сохранённых полей: 1 - url, 2 - parent_id, 4 - type; 7 - полная версия.
+-- Уже записанные строки остаются полными
+ALTER TABLE t_archive ADD COLUMN IF NOT EXISTS stored_fields smallint NOT NULL DEFAULT 7;
@@ -0,0 +1,12 @@
+-- Снимки деревьев для GET /nodes/{id}?at=: состояние всех элементов корня на дату его последнего изменения,
+-- сжатый JSON. История после снимка проигрывается из t_archive
+CREATE TABLE IF NOT EXISTS t_tree_snapshot
+(
+    root_id  varchar(255) NOT NULL,
+    taken_at timestamp    NOT NULL,
+    items    bytea        NOT NULL,
+    PRIMARY KEY (root_id, taken_at)
+);
+
+-- Проигрывание истории всех элементов за интервал после снимка
+CREATE INDEX IF NOT EXISTS idx_archive_date_bd_id ON t_archive (date, bd_id);
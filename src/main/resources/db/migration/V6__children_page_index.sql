@@ -0,0 +1,4 @@
+-- getSubtreeLimited: первые дети папки в порядке id берутся из индекса без сортировки.
+-- Заменяет индекс только по parent_id, спуск к детям в рекурсивных CTE использует тот же префикс
+CREATE INDEX IF NOT EXISTS idx_system_items_parent_id_id ON t_system_items (parent_id, id);
+DROP INDEX IF EXISTS idx_system_items_parent_id;
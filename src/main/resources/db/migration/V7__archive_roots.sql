@@ -0,0 +1,41 @@
+-- Корень дерева, в котором был элемент на дату версии. GET /nodes/{id}?at= проигрывает историю только своего корня
+-- и корней, обменивавшихся с ним элементами
+ALTER TABLE t_archive ADD COLUMN IF NOT EXISTS root_id varchar(255);
+
+-- Уже записанные версии получают корень текущего дерева элемента
+WITH RECURSIVE chain AS(
+    SELECT id AS item_id, id, parent_id
+    FROM t_system_items
+    UNION ALL
+    SELECT chain.item_id, e.id, e.parent_id
+    FROM t_system_items e, chain
+    WHERE chain.parent_id = e.id)
+UPDATE t_archive a
+    SET root_id = chain.id
+    FROM chain
+    WHERE chain.parent_id IS NULL
+        AND a.id = chain.item_id
+        AND a.root_id IS NULL;
+
+-- Проигрывание истории корня за интервал после снимка, заменяет индекс по (date, bd_id) без корня
+CREATE INDEX IF NOT EXISTS idx_archive_root_date_bd_id ON t_archive (root_id, date, bd_id);
+DROP INDEX IF EXISTS idx_archive_date_bd_id;
+
+-- Переносы элементов между деревьями: история перенесённого поддерева осталась под прежним корнем
+CREATE TABLE IF NOT EXISTS t_tree_move
+(
+    from_root varchar(255) NOT NULL,
+    to_root   varchar(255) NOT NULL,
+    date      timestamp    NOT NULL
+);
+CREATE INDEX IF NOT EXISTS idx_tree_move_from_root ON t_tree_move (from_root, date);
+CREATE INDEX IF NOT EXISTS idx_tree_move_to_root ON t_tree_move (to_root, date);
+
+-- Удалённые элементы: их история удалена, а снимки до удаления ещё содержат их
+CREATE TABLE IF NOT EXISTS t_tree_tombstone
+(
+    root_id varchar(255) NOT NULL,
+    id      varchar(255) NOT NULL,
+    date    timestamp    NOT NULL
+);
+CREATE INDEX IF NOT EXISTS idx_tree_tombstone_root ON t_tree_tombstone (root_id, date);
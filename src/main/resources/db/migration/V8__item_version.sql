@@ -0,0 +1,5 @@
+-- Версия элемента для ETag: растёт при каждом изменении элемента или его поддерева.
+-- Последовательность общая, поэтому элемент, удалённый и созданный заново, не повторяет прежних версий
+CREATE SEQUENCE IF NOT EXISTS t_system_items_version_seq;
+ALTER TABLE t_system_items
+    ADD COLUMN IF NOT EXISTS version bigint NOT NULL DEFAULT nextval('t_system_items_version_seq');
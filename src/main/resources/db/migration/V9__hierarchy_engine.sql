@@ -0,0 +1,7 @@
+-- Способ хранения иерархии, с которым приложение запускалось последним. Пути и таблица замыканий
+-- поддерживаются только своим способом, поэтому после работы с другим они строятся заново
+CREATE TABLE IF NOT EXISTS t_hierarchy_engine
+(
+    id     smallint    PRIMARY KEY DEFAULT 1 CHECK (id = 1),
+    engine varchar(32) NOT NULL
+);
@@ -0,0 +1,115 @@
+package com.petrunkov.diskapi;
+
+import com.petrunkov.diskapi.model.SystemItemArchived;
+import com.petrunkov.diskapi.model.SystemItemType;
+import com.petrunkov.diskapi.repository.ArchiveWriter;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.List;
+
+
+// Буфер записывается в t_archive с третьей строки
+@SpringBootTest(properties = "disk-api.archive.batch-size=3")
+
+class ArchiveWriterTests extends StorageTestSupport {
+	private static final Instant DATE = Instant.parse("2022-06-01T10:00:00Z");
+
+	@Autowired
+	private ArchiveWriter archiveWriter;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	private TransactionTemplate transaction;
+
+	@BeforeEach
+	void clear() {
+		clearStorage();
+		transaction = new TransactionTemplate(transactionManager);
+	}
+
+	@Test
+	void shouldWriteBufferOnCommit() {
+		transaction.executeWithoutResult(status -> {
+			archiveWriter.add(row("x", DATE, 1L));
+			archiveWriter.add(row("y", DATE, 2L));
+			// Буфер не заполнен: в транзакции строк ещё нет
+			Assertions.assertEquals(0, countRows());
+		});
+		Assertions.assertEquals(2, countRows());
+		Assertions.assertEquals(List.of(1L, 2L), jdbcTemplate.queryForList(
+				"SELECT size FROM t_archive ORDER BY bd_id", Long.class));
+	}
+
+	@Test
+	void shouldWriteFullBufferInsideTransaction() {
+		transaction.executeWithoutResult(status -> {
+			archiveWriter.addAll(List.of(row("x", DATE, 1L), row("y", DATE, 2L), row("z", DATE, 3L)));
+			Assertions.assertEquals(3, countRows());
+			archiveWriter.add(row("w", DATE, 4L));
+			Assertions.assertEquals(3, countRows());
+		});
+		Assertions.assertEquals(4, countRows());
+	}
+
+	@Test
+	void shouldDiscardBufferOnRollback() {
+		transaction.executeWithoutResult(status -> {
+			archiveWriter.add(row("x", DATE, 1L));
+			status.setRollbackOnly();
+		});
+		Assertions.assertEquals(0, countRows());
+
+		// Строки отменённой транзакции не попадают в следующую
+		transaction.executeWithoutResult(status -> archiveWriter.add(row("y", DATE, 2L)));
+		Assertions.assertEquals(List.of("y"), jdbcTemplate.queryForList("SELECT id FROM t_archive", String.class));
+	}
+
+	@Test
+	void shouldMergeVersionsWithSameDate() {
+		transaction.executeWithoutResult(status -> {
+			archiveWriter.add(row("x", DATE, 1L));
+			archiveWriter.add(row("x", DATE, 5L));
+			archiveWriter.add(row("x", DATE.plusSeconds(1), 6L));
+		});
+		Assertions.assertEquals(List.of(5L, 6L), jdbcTemplate.queryForList(
+				"SELECT size FROM t_archive WHERE id = 'x' ORDER BY bd_id", Long.class));
+	}
+
+	@Test
+	void shouldFlushBufferBeforeDelete() {
+		importAt(DATE.toString(), folder("r", null), folder("a", "r"));
+		archiveRepository.deleteAll();
+
+		// Строки a ещё в буфере, когда удаляется его история
+		transaction.executeWithoutResult(status -> {
+			archiveWriter.add(row("a", DATE.plusSeconds(60), 0L));
+			storageService.deleteItem("a", DATE.plusSeconds(120));
+		});
+		Assertions.assertEquals(0, jdbcTemplate.queryForObject(
+				"SELECT count(*) FROM t_archive WHERE id = 'a'", Integer.class));
+		Assertions.assertEquals(1, jdbcTemplate.queryForObject(
+				"SELECT count(*) FROM t_archive WHERE id = 'r'", Integer.class));
+	}
+
+	private int countRows() {
+		return jdbcTemplate.queryForObject("SELECT count(*) FROM t_archive", Integer.class);
+	}
+
+	private static SystemItemArchived row(String id, Instant date, long size) {
+		return SystemItemArchived.builder()
+				.id(id)
+				.date(date)
+				.type(SystemItemType.FOLDER)
+				.size(size)
+				.rootId(id)
+				.build();
+	}
+}
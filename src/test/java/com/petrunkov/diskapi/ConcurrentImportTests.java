@@ -0,0 +1,270 @@
+package com.petrunkov.diskapi;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.petrunkov.diskapi.dto.SystemItemImport;
+import com.petrunkov.diskapi.dto.SystemItemImportRequest;
+import com.petrunkov.diskapi.exception.ValidationErrorException;
+import com.petrunkov.diskapi.service.ImportGroupCommitter;
+import com.petrunkov.diskapi.service.StorageServiceImpl;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+
+@SpringBootTest(properties = {
+		"disk-api.concurrency.mode=advisory",
+		"disk-api.group-commit.enabled=true",
+		"disk-api.group-commit.window=200ms"
+})
+
+class ConcurrentImportTests extends StorageTestSupport {
+	private static final int IMPORTS_PER_THREAD = 50;
+
+	@Autowired
+	private StorageServiceImpl storageServiceImpl;
+
+	@Autowired
+	private ImportGroupCommitter importGroupCommitter;
+
+	@Autowired
+	private DataSource dataSource;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@BeforeEach
+	void clear() {
+		clearStorage();
+	}
+
+	@Test
+	void shouldNotBlockDisjointRoots() throws Exception {
+		importItem(folder("a", null));
+		importItem(folder("b", null));
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		Future<?> intoA;
+		// Длинная транзакция в дереве a: держит его блокировку из отдельного соединения
+		try (Connection connection = dataSource.getConnection()) {
+			connection.setAutoCommit(false);
+			try (PreparedStatement statement = connection.prepareStatement("SELECT pg_advisory_xact_lock(hashtext(?))")) {
+				statement.setString(1, "a");
+				statement.execute();
+			}
+			intoA = executor.submit(() -> importItem(file("a-file", "a", 3L)));
+			Future<?> intoB = executor.submit(() -> importItem(file("b-file", "b", 5L)));
+
+			intoB.get(10, TimeUnit.SECONDS);
+			Assertions.assertFalse(intoA.isDone());
+			connection.rollback();
+		}
+		intoA.get(10, TimeUnit.SECONDS);
+		executor.shutdown();
+
+		Assertions.assertEquals(3L, storageRepository.findById("a").orElseThrow().getSize());
+		Assertions.assertEquals(5L, storageRepository.findById("b").orElseThrow().getSize());
+	}
+
+	@Test
+	void shouldNotWaitForLocksOnDisjointRoots() throws Exception {
+		double waits = lockWaits();
+
+		importInParallel("parallel", 4);
+
+		// Потоки пишут в разные деревья: ни одна блокировка не ждала другой операции
+		Assertions.assertEquals(waits, lockWaits());
+	}
+
+	@Test
+	void shouldLockStreamedTreesInSortedOrderBeforeApplying() throws Exception {
+		importItem(folder("a", null));
+		importItem(folder("b", null));
+		// Элемент дерева b идёт в теле раньше элемента дерева a
+		byte[] body = objectMapper.writeValueAsBytes(new SystemItemImportRequest(
+				List.of(file("b-stream", "b", 2L), file("a-stream", "a", 3L)), Instant.now().toString()));
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		Future<?> stream;
+		try (Connection connection = dataSource.getConnection()) {
+			connection.setAutoCommit(false);
+			try (PreparedStatement statement = connection.prepareStatement("SELECT pg_advisory_xact_lock(hashtext(?))")) {
+				statement.setString(1, "a");
+				statement.execute();
+			}
+			double waits = lockWaits();
+			stream = executor.submit(() -> storageService.importItemStream(new ByteArrayInputStream(body)));
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (lockWaits() == waits) {
+				Assertions.assertTrue(System.nanoTime() < deadline, "Stream import did not wait for tree a");
+				Thread.sleep(10);
+			}
+
+			// Потоковый импорт ждёт дерево a и ещё не взял b, хотя элемент b прочитан первым
+			executor.submit(() -> importItem(file("b-file", "b", 5L))).get(10, TimeUnit.SECONDS);
+			Assertions.assertFalse(stream.isDone());
+			Assertions.assertFalse(storageRepository.existsById("b-stream"));
+			connection.rollback();
+		}
+		stream.get(10, TimeUnit.SECONDS);
+		executor.shutdown();
+
+		Assertions.assertEquals(3L, storageRepository.findById("a").orElseThrow().getSize());
+		Assertions.assertEquals(7L, storageRepository.findById("b").orElseThrow().getSize());
+	}
+
+	@Test
+	void shouldIsolateFailingRequestInGroup() throws Exception {
+		importItem(folder("g", null));
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			// Третий запрос ссылается на несуществующего родителя
+			SystemItemImport item = i == 2 ? file("g-orphan", "missing", 1L) : file("g-" + i, "g", 1L);
+			futures.add(executor.submit(() -> {
+				start.await();
+				importGroupCommitter.importItem(new SystemItemImportRequest(List.of(item), Instant.now().toString()));
+				return null;
+			}));
+		}
+		start.countDown();
+		for (int i = 0; i < futures.size(); i++) {
+			Future<?> future = futures.get(i);
+			if (i == 2) {
+				ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+						() -> future.get(10, TimeUnit.SECONDS));
+				Assertions.assertInstanceOf(ValidationErrorException.class, e.getCause());
+			} else {
+				future.get(10, TimeUnit.SECONDS);
+			}
+		}
+		executor.shutdown();
+
+		Assertions.assertEquals(3L, storageRepository.findById("g").orElseThrow().getSize());
+		Assertions.assertFalse(storageRepository.existsById("g-orphan"));
+	}
+
+	@Test
+	void shouldIsolateDatabaseErrorInGroup() throws Exception {
+		importItem(folder("d", null));
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			// Первый запрос с неизвестным типом, третий падает в базе: id длиннее varchar(255)
+			SystemItemImport item = switch (i) {
+				case 0 -> SystemItemImport.builder().id("d-link").parentId("d").type("LINK").build();
+				case 2 -> file("d-" + "x".repeat(300), "d", 1L);
+				default -> file("d-" + i, "d", 1L);
+			};
+			futures.add(executor.submit(() -> {
+				start.await();
+				importGroupCommitter.importItem(new SystemItemImportRequest(List.of(item), Instant.now().toString()));
+				return null;
+			}));
+		}
+		start.countDown();
+		for (int i = 0; i < futures.size(); i++) {
+			Future<?> future = futures.get(i);
+			if (i == 0) {
+				ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+						() -> future.get(10, TimeUnit.SECONDS));
+				Assertions.assertInstanceOf(ValidationErrorException.class, e.getCause());
+			} else if (i == 2) {
+				Assertions.assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+			} else {
+				future.get(10, TimeUnit.SECONDS);
+			}
+		}
+		executor.shutdown();
+
+		// Запросы 1 и 3 применены, несмотря на ошибки соседей по группе
+		Assertions.assertEquals(2L, storageRepository.findById("d").orElseThrow().getSize());
+		Assertions.assertFalse(storageRepository.existsById("d-link"));
+	}
+
+	@Test
+	void shouldTagTransactionCountersWithOperation() {
+		// Нагрузочный прогон читает повторы и отказы каждой операции по тегу operation
+		for (String operation : List.of("import", "import-stream", "delete")) {
+			Assertions.assertDoesNotThrow(() -> meterRegistry.get("diskapi.transactions.retries")
+					.tags("mode", "advisory", "operation", operation).counter());
+			Assertions.assertDoesNotThrow(() -> meterRegistry.get("diskapi.transactions.aborts")
+					.tags("mode", "advisory", "operation", operation).counter());
+		}
+	}
+
+	@Test
+	void shouldRejectRequestWithoutItemsOnlyInGroup() {
+		importItem(folder("e", null));
+		String date = Instant.now().toString();
+
+		List<RuntimeException> errors = storageServiceImpl.importItemGroup(List.of(
+				new SystemItemImportRequest(List.of(file("e-1", "e", 1L)), date),
+				new SystemItemImportRequest(null, date),
+				new SystemItemImportRequest(List.of(file("e-2", "e", 2L)), date)));
+
+		Assertions.assertNull(errors.get(0));
+		Assertions.assertInstanceOf(ValidationErrorException.class, errors.get(1));
+		Assertions.assertNull(errors.get(2));
+		Assertions.assertEquals(3L, storageRepository.findById("e").orElseThrow().getSize());
+	}
+
+	/**
+	 * Каждый поток импортирует файлы в свой корень
+	 * **/
+	private void importInParallel(String prefix, int threads) throws Exception {
+		for (int t = 0; t < threads; t++) {
+			importItem(folder(prefix + t, null));
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			String root = prefix + t;
+			futures.add(executor.submit(() -> {
+				for (int i = 0; i < IMPORTS_PER_THREAD; i++) {
+					importItem(file(root + "-" + i, root, 1L));
+				}
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get(2, TimeUnit.MINUTES);
+		}
+		executor.shutdown();
+
+		for (int t = 0; t < threads; t++) {
+			Assertions.assertEquals(IMPORTS_PER_THREAD,
+					storageRepository.findById(prefix + t).orElseThrow().getSize());
+		}
+	}
+
+	private double lockWaits() {
+		return meterRegistry.counter("diskapi.transactions.lock.waits", "mode", "advisory").count();
+	}
+
+	private void importItem(SystemItemImport item) {
+		storageService.importItem(new SystemItemImportRequest(List.of(item), Instant.now().toString()));
+	}
+}
@@ -1,33 +1,53 @@
 package com.petrunkov.diskapi;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.petrunkov.diskapi.cache.NodeResponseCache;
+import com.petrunkov.diskapi.config.DiskApiProperties;
+import com.petrunkov.diskapi.dto.ImportJobDto;
 import com.petrunkov.diskapi.dto.SystemItemDto;
 import com.petrunkov.diskapi.dto.SystemItemHistoryResponse;
+import com.petrunkov.diskapi.dto.SystemItemHistoryUnit;
 import com.petrunkov.diskapi.dto.SystemItemImport;
 import com.petrunkov.diskapi.dto.SystemItemImportRequest;
+import com.petrunkov.diskapi.exception.ItemNotFoundException;
+import com.petrunkov.diskapi.mapper.SystemItemMapper;
+import com.petrunkov.diskapi.mapper.TreeAssembler;
 import com.petrunkov.diskapi.model.SystemItem;
+import com.petrunkov.diskapi.repository.ArchivePartitionManager;
 import com.petrunkov.diskapi.repository.ArchiveRepository;
 import com.petrunkov.diskapi.repository.StorageRepository;
+import com.petrunkov.diskapi.service.StorageChangedEvent;
+import com.petrunkov.diskapi.service.ImportJobService;
+import com.petrunkov.diskapi.service.StorageService;
+import com.petrunkov.diskapi.service.StorageTransactions;
+import com.petrunkov.diskapi.service.TreeSnapshotService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.DynamicPropertyRegistry;
 import org.springframework.test.context.DynamicPropertySource;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
 import org.testcontainers.containers.PostgreSQLContainer;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 
 @SpringBootTest
@@ -43,6 +63,8 @@ class DiskApiApplicationTests {
 		dynamicPropertyRegistry.add("spring.datasource.url", postgreSQLContainer::getJdbcUrl);
 		dynamicPropertyRegistry.add("spring.datasource.username", postgreSQLContainer::getUsername);
 		dynamicPropertyRegistry.add("spring.datasource.password", postgreSQLContainer::getPassword);
+		// Маленькие порции, чтобы потоковый импорт пересекал границы порций
+		dynamicPropertyRegistry.add("disk-api.imports.chunk-size", () -> 2);
 	}
 
 	@Autowired
@@ -56,10 +78,31 @@ class DiskApiApplicationTests {
 	@Autowired
 	private ArchiveRepository archiveRepository;
 
+	@Autowired
+	private ArchivePartitionManager archivePartitionManager;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	private TreeSnapshotService treeSnapshotService;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Autowired
+	private StorageService storageService;
+
+	@Autowired
+	private StorageTransactions storageTransactions;
+
 	@BeforeEach
 	void clear() {
 		storageRepository.deleteAll();
 		archiveRepository.deleteAll();
+		jdbcTemplate.update("DELETE FROM t_tree_snapshot");
+		jdbcTemplate.update("DELETE FROM t_tree_move");
+		jdbcTemplate.update("DELETE FROM t_tree_tombstone");
 	}
 
 	@Test
@@ -248,6 +291,179 @@ class DiskApiApplicationTests {
 		Assertions.assertTrue(areTreesEqual(correctTree, testTree));
 	}
 
+	@Test
+	void shouldStreamSameTree() throws Exception {
+		insertTree();
+
+		String tree = mockMvc.perform(MockMvcRequestBuilders
+						.get("/nodes/1"))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn().getResponse().getContentAsString();
+		String streamedTree = mockMvc.perform(MockMvcRequestBuilders
+						.get("/nodes/1/stream"))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn().getResponse().getContentAsString();
+		Assertions.assertTrue(areTreesEqual(objectMapper.readValue(tree, SystemItemDto.class),
+				objectMapper.readValue(streamedTree, SystemItemDto.class)));
+
+		// Для файла порядок детей не влияет на ответ, он должен совпадать побайтно
+		String file = mockMvc.perform(MockMvcRequestBuilders
+						.get("/nodes/8"))
+				.andReturn().getResponse().getContentAsString();
+		String streamedFile = mockMvc.perform(MockMvcRequestBuilders
+						.get("/nodes/8/stream"))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn().getResponse().getContentAsString();
+		Assertions.assertEquals(file, streamedFile);
+
+		mockMvc.perform(MockMvcRequestBuilders
+						.get("/nodes/unknown/stream"))
+				.andExpect(MockMvcResultMatchers.status().isNotFound());
+	}
+
+	@Test
+	void shouldImportStream() throws Exception {
+		SystemItemImport root = SystemItemImport.builder()
+				.id("root")
+				.type("FOLDER")
+				.build();
+		SystemItemImport folder = SystemItemImport.builder()
+				.id("folder")
+				.parentId("root")
+				.type("FOLDER")
+				.build();
+		SystemItemImport big = SystemItemImport.builder()
+				.id("big")
+				.parentId("folder")
+				.size(10L)
+				.type("FILE")
+				.url("/big")
+				.build();
+		SystemItemImport small = SystemItemImport.builder()
+				.id("small")
+				.parentId("root")
+				.size(5L)
+				.type("FILE")
+				.url("/small")
+				.build();
+		// items идут раньше updateDate
+		var importRequest = buildImportRequestWithDate(List.of(root, folder, big, small), "2022-06-01T10:00:00Z");
+		mockMvc.perform(MockMvcRequestBuilders
+						.post("/imports/stream")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content(objectMapper.writeValueAsString(importRequest)))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+		Assertions.assertEquals(15L, storageRepository.findById("root").orElseThrow().getSize());
+		Assertions.assertEquals(10L, storageRepository.findById("folder").orElseThrow().getSize());
+
+		// updateDate идёт раньше items, файл переносится в корень
+		SystemItemImport movedBig = SystemItemImport.builder()
+				.id("big")
+				.parentId("root")
+				.size(10L)
+				.type("FILE")
+				.url("/big")
+				.build();
+		String body = "{\"updateDate\":\"2022-06-01T11:00:00Z\",\"items\":"
+				+ objectMapper.writeValueAsString(List.of(movedBig)) + "}";
+		mockMvc.perform(MockMvcRequestBuilders
+						.post("/imports/stream")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content(body))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+		Assertions.assertEquals(15L, storageRepository.findById("root").orElseThrow().getSize());
+		Assertions.assertEquals(0L, storageRepository.findById("folder").orElseThrow().getSize());
+		Assertions.assertEquals(Instant.parse("2022-06-01T11:00:00Z"),
+				storageRepository.findById("folder").orElseThrow().getDate());
+
+		// Повтор id в разных порциях
+		importRequest = buildImportRequest(List.of(small, folder, root, small));
+		mockMvc.perform(MockMvcRequestBuilders
+						.post("/imports/stream")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content(objectMapper.writeValueAsString(importRequest)))
+				.andExpect(MockMvcResultMatchers.status().isBadRequest());
+		Assertions.assertEquals(4, storageRepository.findAll().size());
+	}
+
+	@Test
+	void shouldRunImportJob() throws Exception {
+		SystemItemImport root = SystemItemImport.builder()
+				.id("root")
+				.type("FOLDER")
+				.build();
+		SystemItemImport file = SystemItemImport.builder()
+				.id("file")
+				.parentId("root")
+				.size(7L)
+				.type("FILE")
+				.url("/file")
+				.build();
+		var importRequest = buildImportRequest(List.of(root, file));
+		String resp = mockMvc.perform(MockMvcRequestBuilders
+						.post("/imports/async")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content(objectMapper.writeValueAsString(importRequest)))
+				.andExpect(MockMvcResultMatchers.status().isAccepted())
+				.andReturn().getResponse().getContentAsString();
+		ImportJobDto job = objectMapper.readValue(resp, ImportJobDto.class);
+
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (!job.getStatus().equals("DONE") && !job.getStatus().equals("FAILED")
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+			resp = mockMvc.perform(MockMvcRequestBuilders
+							.get("/imports/" + job.getId()))
+					.andExpect(MockMvcResultMatchers.status().isOk())
+					.andReturn().getResponse().getContentAsString();
+			job = objectMapper.readValue(resp, ImportJobDto.class);
+		}
+		Assertions.assertEquals("DONE", job.getStatus());
+		Assertions.assertNotNull(job.getRunMillis());
+		Assertions.assertEquals(7L, storageRepository.findById("root").orElseThrow().getSize());
+
+		mockMvc.perform(MockMvcRequestBuilders
+						.get("/imports/unknown"))
+				.andExpect(MockMvcResultMatchers.status().isNotFound());
+	}
+
+	@Test
+	void shouldFailImportJobRejectedByStoppedPool() {
+		DiskApiProperties properties = new DiskApiProperties();
+		properties.getAsync().setQueueCapacity(1);
+		ImportJobService jobs = new ImportJobService(storageService, storageTransactions, properties);
+		jobs.shutdown();
+
+		// Каждая отклонённая задача отмечается неудачей и освобождает единственное место в очереди
+		for (int i = 0; i < 3; i++) {
+			ImportJobDto job = jobs.submit(buildImportRequest(List.of(folderImport("rejected"))));
+			Assertions.assertEquals("FAILED", jobs.getJob(job.getId()).getStatus());
+		}
+		Assertions.assertFalse(storageRepository.existsById("rejected"));
+	}
+
+	@Test
+	void shouldRemoveExpiredImportJobs() throws Exception {
+		DiskApiProperties properties = new DiskApiProperties();
+		properties.getAsync().setRetention(Duration.ofMillis(1));
+		ImportJobService jobs = new ImportJobService(storageService, storageTransactions, properties);
+		try {
+			String id = jobs.submit(buildImportRequest(List.of(folderImport("expired")))).getId();
+			long deadline = System.currentTimeMillis() + 10_000;
+			while (!storageRepository.existsById("expired") && System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			Thread.sleep(50);
+
+			// Истёкшая задача не отдаётся и без очистки, очистка удаляет её без новых submit
+			Assertions.assertThrows(ItemNotFoundException.class, () -> jobs.getJob(id));
+			jobs.removeExpiredJobs();
+			Assertions.assertThrows(ItemNotFoundException.class, () -> jobs.getJob(id));
+		} finally {
+			jobs.shutdown();
+		}
+	}
+
 	@Test
 	void testUpdates() throws Exception {
 		insertTree();
@@ -272,7 +488,12 @@ class DiskApiApplicationTests {
 				.andExpect(MockMvcResultMatchers.status().isOk())
 				.andReturn().getResponse().getContentAsString();
 		SystemItemHistoryResponse historyResponse = objectMapper.readValue(resp, SystemItemHistoryResponse.class);
-		Assertions.assertEquals(8, historyResponse.getItems().size());
+		// Одна версия на каждый импорт: строка импорта папки и строка обновления её размера сливаются
+		Assertions.assertEquals(4, historyResponse.getItems().size());
+		// Версии внутри месяца хранятся дельтой, но отдаются полностью
+		Assertions.assertTrue(jdbcTemplate.queryForObject(
+				"SELECT count(*) FROM t_archive WHERE id = '1' AND stored_fields <> 7", Long.class) > 0);
+		historyResponse.getItems().forEach(unit -> Assertions.assertEquals("FOLDER", unit.getType()));
 
 		mockMvc.perform(MockMvcRequestBuilders
 						.delete("/delete/5")
@@ -286,6 +507,341 @@ class DiskApiApplicationTests {
 
 	}
 
+	@Test
+	void shouldRecordPhaseMetrics() throws Exception {
+		insertTree();
+		mockMvc.perform(MockMvcRequestBuilders.get("/nodes/1"))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+
+		Assertions.assertTrue(meterRegistry.get("diskapi.import.phase").tag("phase", "lookup").timer().count() > 0);
+		Assertions.assertTrue(meterRegistry.get("diskapi.predecessors.phase").tag("phase", "load").timer().count() > 0);
+		Assertions.assertTrue(meterRegistry.get("diskapi.archive.rows").counter().count() > 0);
+		Assertions.assertTrue(meterRegistry.get("diskapi.nodes.subtree.size").summary().max() > 1);
+		mockMvc.perform(MockMvcRequestBuilders
+						.get("/actuator/metrics/diskapi.import.phase")
+						.param("tag", "phase:validation"))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andExpect(MockMvcResultMatchers.jsonPath("$.measurements[0].value").isNumber());
+	}
+
+	@Test
+	void shouldTimePredecessorLoadOncePerChain() throws Exception {
+		insertTree();
+		long loads = meterRegistry.get("diskapi.predecessors.phase").tag("phase", "load").timer().count();
+		long chains = meterRegistry.get("diskapi.hierarchy.ancestor.depth").summary().count();
+
+		mockMvc.perform(MockMvcRequestBuilders
+						.delete("/delete/5")
+						.param("date", Instant.now().toString()))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+
+		// Поиск элемента и его предков - один замер на каждую загруженную цепочку
+		long loadedChains = meterRegistry.get("diskapi.hierarchy.ancestor.depth").summary().count() - chains;
+		Assertions.assertTrue(loadedChains > 0);
+		Assertions.assertEquals(loadedChains,
+				meterRegistry.get("diskapi.predecessors.phase").tag("phase", "load").timer().count() - loads);
+	}
+
+	@Test
+	void shouldPageAndStreamHistory() throws Exception {
+		insertTree();
+
+		List<SystemItemHistoryUnit> paged = new ArrayList<>();
+		String cursor = null;
+		do {
+			MockHttpServletRequestBuilder request = MockMvcRequestBuilders
+					.get("/node/1/history")
+					.param("dateStart", Instant.parse("2000-03-27T17:12:01Z").toString())
+					.param("dateEnd", Instant.parse("2042-03-27T17:12:01Z").toString())
+					.param("limit", "2");
+			if (cursor != null) {
+				request.param("cursor", cursor);
+			}
+			String resp = mockMvc.perform(request)
+					.andExpect(MockMvcResultMatchers.status().isOk())
+					.andReturn().getResponse().getContentAsString();
+			SystemItemHistoryResponse page = objectMapper.readValue(resp, SystemItemHistoryResponse.class);
+			Assertions.assertTrue(page.getItems().size() <= 2);
+			paged.addAll(page.getItems());
+			cursor = page.getNextCursor();
+		} while (cursor != null);
+		Assertions.assertEquals(4, paged.size());
+		for (int i = 1; i < paged.size(); i++) {
+			Assertions.assertTrue(paged.get(i - 1).getDate().compareTo(paged.get(i).getDate()) <= 0);
+		}
+
+		String stream = mockMvc.perform(MockMvcRequestBuilders
+						.get("/node/1/history/stream")
+						.param("dateStart", Instant.parse("2000-03-27T17:12:01Z").toString())
+						.param("dateEnd", Instant.parse("2042-03-27T17:12:01Z").toString()))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn().getResponse().getContentAsString();
+		List<SystemItemHistoryUnit> streamed = new ArrayList<>();
+		for (String line : stream.split("\n")) {
+			streamed.add(objectMapper.readValue(line, SystemItemHistoryUnit.class));
+		}
+		Assertions.assertEquals(paged, streamed);
+
+		String updates = mockMvc.perform(MockMvcRequestBuilders
+						.get("/updates/stream")
+						.param("date", Instant.parse("2022-05-28T18:12:01Z").toString()))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn().getResponse().getContentAsString();
+		Assertions.assertEquals(2, updates.split("\n").length);
+
+		mockMvc.perform(MockMvcRequestBuilders
+						.get("/updates")
+						.param("date", Instant.parse("2022-05-28T18:12:01Z").toString())
+						.param("cursor", "not-a-cursor")
+						.param("limit", "1"))
+				.andExpect(MockMvcResultMatchers.status().isBadRequest());
+	}
+
+	@Test
+	void shouldReturnTreeAtInstant() throws Exception {
+		insertTree();
+		treeSnapshotService.takeSnapshots();
+
+		// После снимка файл 4 меняет размер
+		SystemItemImport item4 = SystemItemImport.builder()
+				.id("4")
+				.parentId("1")
+				.size(20L)
+				.type("FILE")
+				.url("/4")
+				.build();
+		mockMvc.perform(MockMvcRequestBuilders
+						.post("/imports")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content(objectMapper.writeValueAsString(
+								buildImportRequestWithDate(List.of(item4), "2022-06-01T10:00:00Z"))))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+
+		// Снимок и история после него дают текущее дерево
+		String live = mockMvc.perform(MockMvcRequestBuilders
+						.get("/nodes/1"))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn().getResponse().getContentAsString();
+		String latest = mockMvc.perform(MockMvcRequestBuilders
+						.get("/nodes/1")
+						.param("at", "2030-01-01T00:00:00Z"))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn().getResponse().getContentAsString();
+		Assertions.assertTrue(areTreesEqual(objectMapper.readValue(live, SystemItemDto.class),
+				objectMapper.readValue(latest, SystemItemDto.class)));
+
+		// До импорта папки 2: снимка ещё нет, дерево собирается из всей истории
+		SystemItemDto past = objectMapper.readValue(mockMvc.perform(MockMvcRequestBuilders
+						.get("/nodes/1")
+						.param("at", "2022-05-27T20:00:00Z"))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn().getResponse().getContentAsString(), SystemItemDto.class);
+		Assertions.assertEquals(16L, past.getSize());
+		Assertions.assertEquals(2, past.getChildren().size());
+		Assertions.assertTrue(past.getChildren().stream().noneMatch(child -> child.getId().equals("2")));
+
+		mockMvc.perform(MockMvcRequestBuilders
+						.get("/nodes/2")
+						.param("at", "2022-05-27T20:00:00Z"))
+				.andExpect(MockMvcResultMatchers.status().isNotFound());
+	}
+
+	@Test
+	void shouldReturnTreeAtInstantAfterMoveAndDelete() throws Exception {
+		insertTree();
+		SystemItemImport root9 = SystemItemImport.builder()
+				.id("9")
+				.parentId(null)
+				.size(null)
+				.type("FOLDER")
+				.url(null)
+				.build();
+		mockMvc.perform(MockMvcRequestBuilders
+						.post("/imports")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content(objectMapper.writeValueAsString(
+								buildImportRequestWithDate(List.of(root9), "2022-06-01T09:00:00Z"))))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+		treeSnapshotService.takeSnapshots();
+
+		// После снимков папка 2 переходит в дерево 9, а файл 7 удаляется
+		SystemItemImport item2 = SystemItemImport.builder()
+				.id("2")
+				.parentId("9")
+				.size(null)
+				.type("FOLDER")
+				.url(null)
+				.build();
+		mockMvc.perform(MockMvcRequestBuilders
+						.post("/imports")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content(objectMapper.writeValueAsString(
+								buildImportRequestWithDate(List.of(item2), "2022-06-01T10:00:00Z"))))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+		mockMvc.perform(MockMvcRequestBuilders
+						.delete("/delete/7")
+						.param("date", "2022-06-01T11:00:00Z"))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+
+		// Снимок дерева 1 снят до удаления и остаётся
+		Assertions.assertEquals(1, jdbcTemplate.queryForObject(
+				"SELECT count(*) FROM t_tree_snapshot WHERE root_id = '1'", Integer.class));
+
+		// Поддерево 5 -> 8 переехало без собственных строк истории и берётся из снимка дерева 1
+		SystemItemDto moved = getNodeAt("9", "2022-06-01T10:30:00Z");
+		Assertions.assertEquals(8L, moved.getSize());
+		Assertions.assertEquals(List.of("2"), moved.getChildren().stream().map(SystemItemDto::getId).toList());
+		Assertions.assertEquals("5", moved.getChildren().get(0).getChildren().get(0).getId());
+
+		SystemItemDto afterMove = getNodeAt("1", "2022-06-01T10:30:00Z");
+		Assertions.assertEquals(16L, afterMove.getSize());
+		Assertions.assertTrue(afterMove.getChildren().stream().noneMatch(child -> child.getId().equals("2")));
+
+		// Удалённый файл есть в снимке, но не в дереве после удаления
+		SystemItemDto afterDelete = getNodeAt("1", "2022-06-01T12:00:00Z");
+		Assertions.assertEquals(14L, afterDelete.getSize());
+		SystemItemDto folder3 = afterDelete.getChildren().stream()
+				.filter(child -> child.getId().equals("3")).findFirst().orElseThrow();
+		Assertions.assertEquals(List.of("6"), folder3.getChildren().stream().map(SystemItemDto::getId).toList());
+
+		SystemItemDto beforeDelete = getNodeAt("1", "2022-05-28T19:00:00Z");
+		Assertions.assertEquals(24L, beforeDelete.getSize());
+	}
+
+	private SystemItemDto getNodeAt(String id, String at) throws Exception {
+		return objectMapper.readValue(mockMvc.perform(MockMvcRequestBuilders
+						.get("/nodes/" + id)
+						.param("at", at))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn().getResponse().getContentAsString(), SystemItemDto.class);
+	}
+
+	@Test
+	void shouldDecodeDeltaHistory() throws Exception {
+		String urlA = "/a" + "x".repeat(200);
+		String urlB = "/b" + "x".repeat(200);
+		importAt("2022-05-10T10:00:00Z", folderImport("p1"), folderImport("p2"), fileImport("f", "p1", urlA, 1L));
+		// Дельта к версии 10 мая
+		importAt("2022-05-20T10:00:00Z", fileImport("f", "p1", urlA, 2L));
+		// Дата раньше предыдущей версии: полная версия встаёт между дельтой 20 мая и её базой
+		importAt("2022-05-15T10:00:00Z", fileImport("f", "p1", urlB, 3L));
+		// Дельта к версии 15 мая, при чтении по date идёт после дельты 20 мая
+		importAt("2022-05-25T10:00:00Z", fileImport("f", "p1", urlB, 4L));
+		// Первая версия месяца - полная
+		importAt("2022-06-02T10:00:00Z", fileImport("f", "p1", urlB, 5L));
+		// Перенос хранит только parent_id
+		importAt("2022-06-03T10:00:00Z", fileImport("f", "p2", urlB, 6L));
+		importAt("2022-06-04T10:00:00Z", fileImport("f", "p2", urlB, 7L));
+
+		Assertions.assertEquals(List.of(7, 0, 7, 0, 7, 2, 0), jdbcTemplate.queryForList(
+				"SELECT stored_fields FROM t_archive WHERE id = 'f' ORDER BY bd_id", Integer.class));
+		List<String> expected = List.of(
+				"2022-05-10T10:00:00Z " + urlA + " p1 1",
+				"2022-05-15T10:00:00Z " + urlB + " p1 3",
+				"2022-05-20T10:00:00Z " + urlA + " p1 2",
+				"2022-05-25T10:00:00Z " + urlB + " p1 4",
+				"2022-06-02T10:00:00Z " + urlB + " p1 5",
+				"2022-06-03T10:00:00Z " + urlB + " p2 6",
+				"2022-06-04T10:00:00Z " + urlB + " p2 7");
+
+		String all = mockMvc.perform(MockMvcRequestBuilders
+						.get("/node/f/history")
+						.param("dateStart", "2022-05-01T00:00:00Z")
+						.param("dateEnd", "2022-07-01T00:00:00Z"))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn().getResponse().getContentAsString();
+		Assertions.assertEquals(expected, describe(objectMapper.readValue(all, SystemItemHistoryResponse.class).getItems()));
+
+		// Страницы по одной строке читают только цепочку от последней полной версии
+		List<SystemItemHistoryUnit> paged = new ArrayList<>();
+		String cursor = null;
+		do {
+			MockHttpServletRequestBuilder request = MockMvcRequestBuilders
+					.get("/node/f/history")
+					.param("dateStart", "2022-05-01T00:00:00Z")
+					.param("dateEnd", "2022-07-01T00:00:00Z")
+					.param("limit", "1");
+			if (cursor != null) {
+				request.param("cursor", cursor);
+			}
+			SystemItemHistoryResponse page = objectMapper.readValue(mockMvc.perform(request)
+					.andExpect(MockMvcResultMatchers.status().isOk())
+					.andReturn().getResponse().getContentAsString(), SystemItemHistoryResponse.class);
+			paged.addAll(page.getItems());
+			cursor = page.getNextCursor();
+		} while (cursor != null);
+		Assertions.assertEquals(expected, describe(paged));
+
+		String stream = mockMvc.perform(MockMvcRequestBuilders
+						.get("/node/f/history/stream")
+						.param("dateStart", "2022-05-18T00:00:00Z")
+						.param("dateEnd", "2022-07-01T00:00:00Z"))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn().getResponse().getContentAsString();
+		List<SystemItemHistoryUnit> streamed = new ArrayList<>();
+		for (String line : stream.split("\n")) {
+			streamed.add(objectMapper.readValue(line, SystemItemHistoryUnit.class));
+		}
+		Assertions.assertEquals(expected.subList(2, expected.size()), describe(streamed));
+
+		// Дельта не хранит url, parent_id и type
+		Integer full = jdbcTemplate.queryForObject(
+				"SELECT max(pg_column_size(a.*)) FROM t_archive a WHERE id = 'f' AND stored_fields = 7", Integer.class);
+		Integer delta = jdbcTemplate.queryForObject(
+				"SELECT max(pg_column_size(a.*)) FROM t_archive a WHERE id = 'f' AND stored_fields = 0", Integer.class);
+		Assertions.assertTrue(delta < full - urlA.length(), "full " + full + ", delta " + delta);
+	}
+
+	private String getETag(MockHttpServletRequestBuilder request) throws Exception {
+		return mockMvc.perform(request)
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+	}
+
+	private void importAt(String date, SystemItemImport... items) throws Exception {
+		mockMvc.perform(MockMvcRequestBuilders
+						.post("/imports")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content(objectMapper.writeValueAsString(buildImportRequestWithDate(List.of(items), date))))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+	}
+
+	private static SystemItemImport folderImport(String id) {
+		return SystemItemImport.builder().id(id).type("FOLDER").build();
+	}
+
+	private static SystemItemImport fileImport(String id, String parentId, String url, Long size) {
+		return SystemItemImport.builder().id(id).parentId(parentId).url(url).size(size).type("FILE").build();
+	}
+
+	private static List<String> describe(List<SystemItemHistoryUnit> units) {
+		return units.stream()
+				.map(unit -> Instant.parse(unit.getDate()) + " " + unit.getUrl() + " " + unit.getParentId() + " " + unit.getSize())
+				.toList();
+	}
+
+	@Test
+	void shouldPruneArchivePartitions() throws Exception {
+		insertTree();
+		// Строки прошлых месяцев лежат в секции по умолчанию, пока обслуживание не создаст их секции
+		archivePartitionManager.maintain();
+
+		String plan = String.join("\n", jdbcTemplate.queryForList(
+				"EXPLAIN SELECT * FROM t_archive WHERE id = '1' " +
+						"AND date >= '2022-05-01 00:00:00' AND date < '2022-06-01 00:00:00'", String.class));
+		Assertions.assertTrue(plan.contains("t_archive_p202205"), plan);
+		Assertions.assertFalse(plan.contains("t_archive_p202204"), plan);
+		Assertions.assertFalse(plan.contains("t_archive_default"), plan);
+
+		String resp = mockMvc.perform(MockMvcRequestBuilders
+						.get("/node/1/history")
+						.param("dateStart", Instant.parse("2000-03-27T17:12:01Z").toString())
+						.param("dateEnd", Instant.parse("2042-03-27T17:12:01Z").toString()))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn().getResponse().getContentAsString();
+		Assertions.assertEquals(4, objectMapper.readValue(resp, SystemItemHistoryResponse.class).getItems().size());
+	}
+
 	@Test
 	void treeDestructionTest() throws Exception {
 		insertTree();
@@ -315,6 +871,269 @@ class DiskApiApplicationTests {
 		Assertions.assertEquals(0, archiveRepository.findAll().size());
 	}
 
+	@Test
+	void shouldAssembleSameTreeInParallel() throws Exception {
+		insertTree();
+		Set<SystemItem> subtree = storageRepository.getSubtreeByPath("1");
+		Assertions.assertTrue(areTreesEqual(TreeAssembler.assemble(subtree, "1", false),
+				TreeAssembler.assemble(subtree, "1", true)));
+		Assertions.assertTrue(areTreesEqual(buildTree(), TreeAssembler.assemble(subtree, "1", true)));
+		Assertions.assertNull(TreeAssembler.assemble(subtree, "missing", true));
+	}
+
+	@Test
+	void shouldSkipItemsUnreachableFromRoot() throws Exception {
+		insertTree();
+		List<SystemItem> items = new ArrayList<>(storageRepository.getSubtreeByPath("1"));
+		Instant date = Instant.parse("2022-05-28T21:12:01.000Z");
+		// Потерянный родитель и цикл вне дерева
+		items.add(SystemItemMapper.mapFromSystemItemImport(
+				SystemItemImport.builder().id("orphan").parentId("ghost").type("FILE").url("/o").size(1L).build(), date));
+		items.add(SystemItemMapper.mapFromSystemItemImport(
+				SystemItemImport.builder().id("x").parentId("y").type("FOLDER").build(), date));
+		items.add(SystemItemMapper.mapFromSystemItemImport(
+				SystemItemImport.builder().id("y").parentId("x").type("FOLDER").build(), date));
+		for (boolean parallel : List.of(false, true)) {
+			Assertions.assertTrue(areTreesEqual(buildTree(), TreeAssembler.assemble(items, "1", parallel)));
+		}
+	}
+
+	@Test
+	void shouldLimitDepthAndPageChildren() throws Exception {
+		insertTree();
+
+		String resp = mockMvc.perform(MockMvcRequestBuilders
+						.get("/nodes/1")
+						.param("depth", "1")
+						.param("childrenLimit", "2"))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn().getResponse().getContentAsString();
+		SystemItemDto page = objectMapper.readValue(resp, SystemItemDto.class);
+		// Размер папки полный, хотя выдана часть поддерева
+		Assertions.assertEquals(24L, page.getSize());
+		Assertions.assertEquals(List.of("2", "3"), page.getChildren().stream().map(SystemItemDto::getId).toList());
+		page.getChildren().forEach(child -> Assertions.assertNull(child.getChildren()));
+		Assertions.assertNotNull(page.getChildrenCursor());
+
+		resp = mockMvc.perform(MockMvcRequestBuilders
+						.get("/nodes/1")
+						.param("depth", "1")
+						.param("childrenLimit", "2")
+						.param("cursor", page.getChildrenCursor()))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn().getResponse().getContentAsString();
+		SystemItemDto next = objectMapper.readValue(resp, SystemItemDto.class);
+		Assertions.assertEquals(List.of("4"), next.getChildren().stream().map(SystemItemDto::getId).toList());
+		Assertions.assertNull(next.getChildrenCursor());
+
+		// Без ограничений по числу детей, но до глубины 2
+		resp = mockMvc.perform(MockMvcRequestBuilders
+						.get("/nodes/1")
+						.param("depth", "2"))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn().getResponse().getContentAsString();
+		SystemItemDto folder2 = objectMapper.readValue(resp, SystemItemDto.class).getChildren().stream()
+				.filter(child -> child.getId().equals("2")).findFirst().orElseThrow();
+		Assertions.assertEquals(8L, folder2.getSize());
+		Assertions.assertNull(folder2.getChildren().get(0).getChildren());
+
+		mockMvc.perform(MockMvcRequestBuilders
+						.get("/nodes/1")
+						.param("cursor", page.getChildrenCursor()))
+				.andExpect(MockMvcResultMatchers.status().isBadRequest());
+		mockMvc.perform(MockMvcRequestBuilders
+						.get("/nodes/1")
+						.param("depth", "-1"))
+				.andExpect(MockMvcResultMatchers.status().isBadRequest());
+	}
+
+	@Test
+	void shouldAnswerNotModifiedForSameETag() throws Exception {
+		insertTree();
+
+		String etag = mockMvc.perform(MockMvcRequestBuilders.get("/nodes/1"))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andExpect(MockMvcResultMatchers.header().exists(HttpHeaders.ETAG))
+				.andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+		String etag2 = mockMvc.perform(MockMvcRequestBuilders.get("/nodes/2"))
+				.andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+		mockMvc.perform(MockMvcRequestBuilders
+						.get("/nodes/1")
+						.header(HttpHeaders.IF_NONE_MATCH, etag))
+				.andExpect(MockMvcResultMatchers.status().isNotModified())
+				.andExpect(MockMvcResultMatchers.header().string(HttpHeaders.ETAG, etag))
+				.andExpect(MockMvcResultMatchers.content().string(""));
+
+		// Новый файл в папке 3 меняет версию 1, но не соседней папки 2
+		SystemItemImport file = SystemItemImport.builder()
+				.id("9")
+				.parentId("3")
+				.size(1L)
+				.type("FILE")
+				.url("/9")
+				.build();
+		mockMvc.perform(MockMvcRequestBuilders
+						.post("/imports")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content(objectMapper.writeValueAsString(
+								buildImportRequestWithDate(List.of(file), "2022-06-01T10:00:00Z"))))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+
+		String changed = mockMvc.perform(MockMvcRequestBuilders
+						.get("/nodes/1")
+						.header(HttpHeaders.IF_NONE_MATCH, etag))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+		Assertions.assertNotEquals(etag, changed);
+		mockMvc.perform(MockMvcRequestBuilders
+						.get("/nodes/2")
+						.header(HttpHeaders.IF_NONE_MATCH, etag2))
+				.andExpect(MockMvcResultMatchers.status().isNotModified());
+	}
+
+	@Test
+	void shouldVersionETagByChangeAndRepresentation() throws Exception {
+		insertTree();
+
+		String full = getETag(MockMvcRequestBuilders.get("/nodes/1"));
+		String shallow = getETag(MockMvcRequestBuilders.get("/nodes/1").param("depth", "1"));
+		String limited = getETag(MockMvcRequestBuilders.get("/nodes/1").param("childrenLimit", "1"));
+		// Разные представления одной версии не делят тег
+		Assertions.assertEquals(3, Set.of(full, shallow, limited).size());
+		mockMvc.perform(MockMvcRequestBuilders
+						.get("/nodes/1")
+						.param("depth", "1")
+						.header(HttpHeaders.IF_NONE_MATCH, shallow))
+				.andExpect(MockMvcResultMatchers.status().isNotModified());
+		mockMvc.perform(MockMvcRequestBuilders
+						.get("/nodes/1")
+						.param("depth", "1")
+						.header(HttpHeaders.IF_NONE_MATCH, full))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+
+		// Смена url файла 8 с той же датой и размером не меняет date и size предков, но меняет версию
+		importAt("2022-05-28T18:12:01Z", fileImport("8", "5", "/8-renamed", 8L));
+		mockMvc.perform(MockMvcRequestBuilders
+						.get("/nodes/1")
+						.header(HttpHeaders.IF_NONE_MATCH, full))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+		Assertions.assertNotEquals(full, getETag(MockMvcRequestBuilders.get("/nodes/1")));
+		Assertions.assertNotEquals(shallow, getETag(MockMvcRequestBuilders.get("/nodes/1").param("depth", "1")));
+	}
+
+	@Test
+	void shouldInvalidateCachedResponsesOfChangedChains() throws Exception {
+		insertTree();
+		DiskApiProperties properties = new DiskApiProperties();
+		properties.getCache().setEnabled(true);
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		NodeResponseCache cache = new NodeResponseCache(objectMapper, properties, registry);
+		for (String id : List.of("1", "2", "3", "5")) {
+			cache.load(id, () -> storageService.getItemInfo(id));
+		}
+		byte[] body = cache.find("1").orElseThrow().body();
+		Assertions.assertTrue(areTreesEqual(buildTree(), objectMapper.readValue(body, SystemItemDto.class)));
+		Assertions.assertEquals(1.0, registry.get("cache.gets").tag("cache", "nodes").tag("result", "hit")
+				.functionCounter().count());
+
+		// Изменение файла 7 затрагивает цепочку 7 - 3 - 1, но не папку 2
+		cache.onStorageChanged(new StorageChangedEvent(
+				storageRepository.findAllById(List.of("7", "3", "1")), List.of()));
+		Assertions.assertTrue(cache.find("1").isEmpty());
+		Assertions.assertTrue(cache.find("3").isEmpty());
+		Assertions.assertTrue(cache.find("2").isPresent());
+		Assertions.assertTrue(cache.find("5").isPresent());
+
+		// Событие удаления папки 2 перечисляет всё удалённое поддерево, включая потомка 5
+		mockMvc.perform(MockMvcRequestBuilders
+						.delete("/delete/2")
+						.param("date", "2022-06-01T10:00:00Z"))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+		cache.onStorageChanged(new StorageChangedEvent(storageRepository.findAllById(List.of("1")), List.of("2", "5")));
+		Assertions.assertTrue(cache.find("2").isEmpty());
+		Assertions.assertTrue(cache.find("5").isEmpty());
+	}
+
+	@Test
+	void shouldImportChildrenBeforeParents() throws Exception {
+		SystemItemImport file = SystemItemImport.builder()
+				.id("file")
+				.parentId("folder")
+				.size(5L)
+				.type("FILE")
+				.url("/file")
+				.build();
+		SystemItemImport folder = SystemItemImport.builder()
+				.id("folder")
+				.parentId("root")
+				.type("FOLDER")
+				.build();
+		SystemItemImport root = SystemItemImport.builder()
+				.id("root")
+				.type("FOLDER")
+				.build();
+		mockMvc.perform(MockMvcRequestBuilders
+						.post("/imports")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content(objectMapper.writeValueAsString(
+								buildImportRequestWithDate(List.of(file, folder, root), "2022-06-01T10:00:00Z"))))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+		Assertions.assertEquals(5L, storageRepository.findById("root").orElseThrow().getSize());
+		Assertions.assertEquals(5L, storageRepository.findById("folder").orElseThrow().getSize());
+
+		// Цикл parentId внутри запроса
+		SystemItemImport a = SystemItemImport.builder().id("a").parentId("b").type("FOLDER").build();
+		SystemItemImport b = SystemItemImport.builder().id("b").parentId("a").type("FOLDER").build();
+		mockMvc.perform(MockMvcRequestBuilders
+						.post("/imports")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content(objectMapper.writeValueAsString(
+								buildImportRequestWithDate(List.of(a, b), "2022-06-01T11:00:00Z"))))
+				.andExpect(MockMvcResultMatchers.status().isBadRequest());
+	}
+
+	@Test
+	void shouldMoveItemBetweenFolders() throws Exception {
+		insertTree();
+
+		SystemItemImport item8 = SystemItemImport.builder()
+				.id("8")
+				.parentId("3")
+				.size(8L)
+				.type("FILE")
+				.url("/8")
+				.build();
+		String date = Instant.parse("2022-06-01T10:00:00Z").toString();
+		var importRequest = buildImportRequestWithDate(List.of(item8), date);
+		mockMvc.perform(MockMvcRequestBuilders
+						.post("/imports")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content(objectMapper.writeValueAsString(importRequest)))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+
+		Assertions.assertEquals(0L, storageRepository.findById("5").orElseThrow().getSize());
+		Assertions.assertEquals(0L, storageRepository.findById("2").orElseThrow().getSize());
+		Assertions.assertEquals(14L, storageRepository.findById("3").orElseThrow().getSize());
+		Assertions.assertEquals(24L, storageRepository.findById("1").orElseThrow().getSize());
+		Assertions.assertEquals(Instant.parse(date), storageRepository.findById("2").orElseThrow().getDate());
+
+		// Перемещение папки внутрь собственного поддерева
+		SystemItemImport item2 = SystemItemImport.builder()
+				.id("2")
+				.parentId("5")
+				.size(null)
+				.type("FOLDER")
+				.url(null)
+				.build();
+		importRequest = buildImportRequestWithDate(List.of(item2), date);
+		mockMvc.perform(MockMvcRequestBuilders
+						.post("/imports")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content(objectMapper.writeValueAsString(importRequest)))
+				.andExpect(MockMvcResultMatchers.status().isBadRequest());
+	}
+
 	@Test
 	void repeatedItemsTest() throws Exception {
 		SystemItemImport first = SystemItemImport.builder()
@@ -0,0 +1,161 @@
+package com.petrunkov.diskapi;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.petrunkov.diskapi.dto.SystemItemDto;
+import com.petrunkov.diskapi.model.SystemItem;
+import com.petrunkov.diskapi.repository.hierarchy.HierarchyEngine;
+import com.petrunkov.diskapi.repository.hierarchy.HierarchyState;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Общие проверки способов хранения иерархии, запускаются для каждого способа наследником
+ * с disk-api.hierarchy.engine. База одна на все способы: контекст каждого способа при запуске
+ * застаёт данные, сохранённые предыдущим, и должен построить свои вспомогательные данные заново
+ * **/
+abstract class HierarchyEngineTests extends StorageTestSupport {
+	@Autowired
+	private MockMvc mockMvc;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Autowired
+	private HierarchyEngine hierarchy;
+
+	@Autowired
+	private HierarchyState hierarchyState;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	/**
+	 * r - a - a1 (3), r - b - b1 (5)
+	 * **/
+	@BeforeEach
+	void insertTree() {
+		clearStorage();
+		importAt("2022-06-01T10:00:00Z", folder("r", null), folder("a", "r"), folder("b", "r"),
+				file("a1", "a", 3L), file("b1", "b", 5L));
+	}
+
+	@Test
+	void shouldBuildTree() throws Exception {
+		SystemItemDto root = getNode("r");
+		Assertions.assertEquals(8L, root.getSize());
+		Assertions.assertEquals(Set.of("a", "b"), childIds(root));
+		Assertions.assertEquals(Set.of("a1"), childIds(child(root, "a")));
+		Assertions.assertEquals(Set.of("r", "a", "b", "a1", "b1"), subtreeIds("r"));
+		Assertions.assertEquals(Set.of("a", "r"), predecessorIds("a1"));
+		Assertions.assertEquals(Map.of("a1", "r", "r", "r"), hierarchy.getRootIds(List.of("a1", "r", "missing")));
+	}
+
+	@Test
+	void shouldMoveSubtreeBetweenFolders() throws Exception {
+		importAt("2022-06-01T11:00:00Z", folder("b", "a"));
+
+		SystemItemDto root = getNode("r");
+		Assertions.assertEquals(8L, root.getSize());
+		Assertions.assertEquals(Set.of("a"), childIds(root));
+		SystemItemDto a = child(root, "a");
+		Assertions.assertEquals(8L, a.getSize());
+		Assertions.assertEquals(Set.of("a1", "b"), childIds(a));
+		Assertions.assertEquals(Set.of("b1"), childIds(child(a, "b")));
+		Assertions.assertEquals(Set.of("a", "a1", "b", "b1"), subtreeIds("a"));
+		Assertions.assertEquals(Set.of("b", "a", "r"), predecessorIds("b1"));
+	}
+
+	@Test
+	void shouldMoveSubtreeToAnotherRoot() throws Exception {
+		importAt("2022-06-01T11:00:00Z", folder("r2", null));
+		importAt("2022-06-01T12:00:00Z", folder("b", "r2"));
+
+		Assertions.assertEquals(3L, getNode("r").getSize());
+		Assertions.assertEquals(5L, getNode("r2").getSize());
+		Assertions.assertEquals(Set.of("r2", "b", "b1"), subtreeIds("r2"));
+		Assertions.assertEquals(Map.of("b1", "r2", "a1", "r"), hierarchy.getRootIds(List.of("b1", "a1")));
+	}
+
+	@Test
+	void shouldDeleteSubtree() throws Exception {
+		mockMvc.perform(MockMvcRequestBuilders
+						.delete("/delete/a")
+						.param("date", "2022-06-01T11:00:00Z"))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+
+		SystemItemDto root = getNode("r");
+		Assertions.assertEquals(5L, root.getSize());
+		Assertions.assertEquals(Set.of("b"), childIds(root));
+		Assertions.assertFalse(storageRepository.existsById("a1"));
+		Assertions.assertEquals(Set.of("r", "b", "b1"), subtreeIds("r"));
+		Assertions.assertEquals(0, jdbcTemplate.queryForObject(
+				"SELECT count(*) FROM t_archive WHERE id IN ('a', 'a1')", Integer.class));
+		mockMvc.perform(MockMvcRequestBuilders.get("/nodes/a1"))
+				.andExpect(MockMvcResultMatchers.status().isNotFound());
+	}
+
+	@Test
+	void shouldNotKeepDeletedItemsInPersistenceContext() {
+		new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+			// a1 загружен в контекст сохранения до удаления поддерева a
+			Assertions.assertTrue(storageRepository.findById("a1").isPresent());
+			storageService.deleteItem("a", Instant.parse("2022-06-01T11:00:00Z"));
+
+			Assertions.assertTrue(storageRepository.findById("a1").isEmpty());
+			Assertions.assertEquals(5L, storageRepository.findById("r").orElseThrow().getSize());
+		});
+	}
+
+	@Test
+	void shouldRebuildAuxiliaryDataAfterAnotherEngine() {
+		// Другой способ перенёс b под a и вставил c, меняя только parent_id
+		jdbcTemplate.update("UPDATE t_system_items SET parent_id = 'a' WHERE id = 'b'");
+		jdbcTemplate.update("INSERT INTO t_system_items (id, date, parent_id, type, size) " +
+				"VALUES ('c', '2022-06-01 11:00:00', 'a', 'FOLDER', 0)");
+		hierarchyState.setEngine("another");
+
+		hierarchy.initialize();
+
+		Assertions.assertEquals(Set.of("a", "a1", "b", "b1", "c"), subtreeIds("a"));
+		Assertions.assertEquals(Set.of("b", "a", "r"), predecessorIds("b1"));
+		Assertions.assertEquals(Set.of("a", "r"), predecessorIds("c"));
+		Assertions.assertEquals(Map.of("c", "r"), hierarchy.getRootIds(List.of("c")));
+	}
+
+	private SystemItemDto getNode(String id) throws Exception {
+		byte[] body = mockMvc.perform(MockMvcRequestBuilders.get("/nodes/" + id))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn().getResponse().getContentAsByteArray();
+		return objectMapper.readValue(body, SystemItemDto.class);
+	}
+
+	private Set<String> subtreeIds(String id) {
+		return hierarchy.getSubtree(id).stream().map(SystemItem::getId).collect(Collectors.toSet());
+	}
+
+	private Set<String> predecessorIds(String id) {
+		SystemItem item = storageRepository.findById(id).orElseThrow();
+		return hierarchy.getPredecessors(item).stream().map(SystemItem::getId).collect(Collectors.toSet());
+	}
+
+	private static SystemItemDto child(SystemItemDto dto, String id) {
+		return dto.getChildren().stream().filter(c -> c.getId().equals(id)).findFirst().orElseThrow();
+	}
+
+	private static Set<String> childIds(SystemItemDto dto) {
+		return dto.getChildren().stream().map(SystemItemDto::getId).collect(Collectors.toSet());
+	}
+}
@@ -0,0 +1,171 @@
+package com.petrunkov.diskapi;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.petrunkov.diskapi.cache.NodeResponseCache;
+import com.petrunkov.diskapi.dto.SystemItemDto;
+import com.petrunkov.diskapi.service.StorageChangedEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+
+
+@SpringBootTest(properties = "disk-api.cache.enabled=true")
+@AutoConfigureMockMvc
+
+class NodeResponseCacheTests extends StorageTestSupport {
+	private static final String DATE = "2022-06-01T10:00:00Z";
+
+	@Autowired
+	private MockMvc mockMvc;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Autowired
+	private NodeResponseCache nodeResponseCache;
+
+	@Autowired
+	private ApplicationEventPublisher eventPublisher;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	/**
+	 * r - a - a1 (3), r - b - b1 (5). Импорт заодно сбрасывает записи прошлых тестов с теми же id
+	 * **/
+	@BeforeEach
+	void insertTree() {
+		clearStorage();
+		importAt(DATE, folder("r", null), folder("a", "r"), folder("b", "r"),
+				file("a1", "a", 3L), file("b1", "b", 5L));
+	}
+
+	@Test
+	void shouldServeCachedBytesAndETag() throws Exception {
+		MvcResult first = getNode("r", null)
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn();
+		String etag = first.getResponse().getHeader(HttpHeaders.ETAG);
+		Assertions.assertNotNull(etag);
+		Assertions.assertTrue(nodeResponseCache.find("r").isPresent());
+
+		// Строка изменена мимо сервиса: ответ и тег отдаются из кэша, а не из базы
+		jdbcTemplate.update("UPDATE t_system_items SET size = 100 WHERE id = 'r'");
+		double hits = hits();
+		MvcResult second = getNode("r", null)
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andExpect(MockMvcResultMatchers.header().string(HttpHeaders.ETAG, etag))
+				.andReturn();
+		Assertions.assertArrayEquals(first.getResponse().getContentAsByteArray(),
+				second.getResponse().getContentAsByteArray());
+		Assertions.assertEquals(8L, read(second).getSize());
+
+		getNode("r", etag)
+				.andExpect(MockMvcResultMatchers.status().isNotModified())
+				.andExpect(MockMvcResultMatchers.header().string(HttpHeaders.ETAG, etag))
+				.andExpect(MockMvcResultMatchers.content().string(""));
+		Assertions.assertEquals(hits + 2, hits());
+	}
+
+	@Test
+	void shouldInvalidateChainOfImportedItem() throws Exception {
+		for (String id : List.of("r", "a", "b", "b1")) {
+			getNode(id, null).andExpect(MockMvcResultMatchers.status().isOk());
+		}
+		String etag = getNode("r", null).andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+		importAt("2022-06-01T11:00:00Z", file("a2", "a", 4L));
+
+		// Цепочка a2 - a - r сброшена, соседняя ветка b осталась в кэше
+		Assertions.assertTrue(nodeResponseCache.find("r").isEmpty());
+		Assertions.assertTrue(nodeResponseCache.find("a").isEmpty());
+		Assertions.assertTrue(nodeResponseCache.find("b").isPresent());
+		Assertions.assertTrue(nodeResponseCache.find("b1").isPresent());
+
+		MvcResult changed = getNode("r", etag)
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn();
+		Assertions.assertNotEquals(etag, changed.getResponse().getHeader(HttpHeaders.ETAG));
+		Assertions.assertEquals(12L, read(changed).getSize());
+	}
+
+	@Test
+	void shouldInvalidateDeletedSubtree() throws Exception {
+		for (String id : List.of("r", "a", "a1", "b", "b1")) {
+			getNode(id, null).andExpect(MockMvcResultMatchers.status().isOk());
+		}
+
+		mockMvc.perform(MockMvcRequestBuilders
+						.delete("/delete/b")
+						.param("date", "2022-06-01T11:00:00Z"))
+				.andExpect(MockMvcResultMatchers.status().isOk());
+
+		// Удалённые b и b1 и предок r сброшены, ветка a не тронута
+		Assertions.assertTrue(nodeResponseCache.find("b").isEmpty());
+		Assertions.assertTrue(nodeResponseCache.find("b1").isEmpty());
+		Assertions.assertTrue(nodeResponseCache.find("r").isEmpty());
+		Assertions.assertTrue(nodeResponseCache.find("a").isPresent());
+		Assertions.assertTrue(nodeResponseCache.find("a1").isPresent());
+
+		getNode("b1", null).andExpect(MockMvcResultMatchers.status().isNotFound());
+		Assertions.assertEquals(3L, read(getNode("r", null).andReturn()).getSize());
+	}
+
+	@Test
+	void shouldInvalidateOnlyAfterCommit() throws Exception {
+		getNode("a", null).andExpect(MockMvcResultMatchers.status().isOk());
+		getNode("b", null).andExpect(MockMvcResultMatchers.status().isOk());
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+
+		// Откат: накопленные id отбрасываются, запись остаётся
+		transaction.executeWithoutResult(status -> {
+			eventPublisher.publishEvent(new StorageChangedEvent(storageRepository.findAllById(List.of("a")), List.of()));
+			Assertions.assertTrue(nodeResponseCache.find("a").isPresent());
+			status.setRollbackOnly();
+		});
+		Assertions.assertTrue(nodeResponseCache.find("a").isPresent());
+
+		// Коммит: записи сбрасываются только после него
+		transaction.executeWithoutResult(status -> {
+			eventPublisher.publishEvent(new StorageChangedEvent(storageRepository.findAllById(List.of("a")), List.of("b")));
+			Assertions.assertTrue(nodeResponseCache.find("a").isPresent());
+			Assertions.assertTrue(nodeResponseCache.find("b").isPresent());
+		});
+		Assertions.assertTrue(nodeResponseCache.find("a").isEmpty());
+		Assertions.assertTrue(nodeResponseCache.find("b").isEmpty());
+	}
+
+	private ResultActions getNode(String id, String ifNoneMatch) throws Exception {
+		var request = MockMvcRequestBuilders.get("/nodes/" + id);
+		if (ifNoneMatch != null) {
+			request.header(HttpHeaders.IF_NONE_MATCH, ifNoneMatch);
+		}
+		return mockMvc.perform(request);
+	}
+
+	private SystemItemDto read(MvcResult result) throws Exception {
+		return objectMapper.readValue(result.getResponse().getContentAsByteArray(), SystemItemDto.class);
+	}
+
+	private double hits() {
+		return meterRegistry.get("cache.gets").tag("cache", "nodes").tag("result", "hit").functionCounter().count();
+	}
+}
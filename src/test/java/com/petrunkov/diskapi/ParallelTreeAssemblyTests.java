@@ -0,0 +1,91 @@
+package com.petrunkov.diskapi;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.petrunkov.diskapi.dto.SystemItemDto;
+import com.petrunkov.diskapi.dto.SystemItemImport;
+import com.petrunkov.diskapi.mapper.TreeAssembler;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+
+// GET /nodes/{id} собирает параллельно любое дерево из двух и более элементов
+@SpringBootTest(properties = "disk-api.nodes.parallel-threshold=2")
+@AutoConfigureMockMvc
+
+class ParallelTreeAssemblyTests extends StorageTestSupport {
+	private static final int FOLDERS = 20;
+	private static final int FILES_PER_FOLDER = 20;
+
+	@Autowired
+	private MockMvc mockMvc;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	/**
+	 * r - f0..f19, в каждой папке по 20 файлов размера 1
+	 * **/
+	@BeforeEach
+	void insertTree() {
+		clearStorage();
+		List<SystemItemImport> items = new ArrayList<>();
+		items.add(folder("r", null));
+		for (int f = 0; f < FOLDERS; f++) {
+			items.add(folder("f" + f, "r"));
+			items.addAll(files("f" + f + "-", FILES_PER_FOLDER, "f" + f));
+		}
+		importAt("2022-06-01T10:00:00Z", items.toArray(new SystemItemImport[0]));
+	}
+
+	@Test
+	void shouldServeSameTreeAsSequentialAssembly() throws Exception {
+		SystemItemDto served = getNode("r");
+		SystemItemDto sequential = TreeAssembler.assemble(storageRepository.getSubtreeByPath("r"), "r", false);
+
+		Assertions.assertEquals((long) FOLDERS * FILES_PER_FOLDER, served.getSize());
+		Assertions.assertEquals(FOLDERS, served.getChildren().size());
+		Assertions.assertEquals(normalize(sequential), normalize(served));
+	}
+
+	@Test
+	void shouldServeSmallSubtree() throws Exception {
+		SystemItemDto folder = getNode("f3");
+		Assertions.assertEquals(FILES_PER_FOLDER, folder.getChildren().size());
+		Assertions.assertEquals("r", folder.getParentId());
+		Assertions.assertNull(getNode("f3-0").getChildren());
+	}
+
+	private SystemItemDto getNode(String id) throws Exception {
+		byte[] body = mockMvc.perform(MockMvcRequestBuilders.get("/nodes/" + id))
+				.andExpect(MockMvcResultMatchers.status().isOk())
+				.andReturn().getResponse().getContentAsByteArray();
+		return objectMapper.readValue(body, SystemItemDto.class);
+	}
+
+	/**
+	 * JSON дерева с детьми, упорядоченными по id: порядок детей в ответе не определён
+	 * **/
+	private String normalize(SystemItemDto dto) throws Exception {
+		sortChildren(dto);
+		return objectMapper.writeValueAsString(dto);
+	}
+
+	private static void sortChildren(SystemItemDto dto) {
+		if (dto.getChildren() == null) {
+			return;
+		}
+		dto.getChildren().sort(Comparator.comparing(SystemItemDto::getId));
+		dto.getChildren().forEach(ParallelTreeAssemblyTests::sortChildren);
+	}
+}
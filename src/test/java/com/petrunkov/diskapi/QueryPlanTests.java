@@ -0,0 +1,136 @@
+package com.petrunkov.diskapi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.petrunkov.diskapi.dto.SystemItemImport;
+import com.petrunkov.diskapi.repository.ArchiveRepository;
+import com.petrunkov.diskapi.repository.ClosureRepository;
+import com.petrunkov.diskapi.repository.StorageRepository;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.jdbc.core.ConnectionCallback;
+
+import java.lang.reflect.Method;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * Каждый нативный запрос репозиториев должен читать таблицы по индексу.
+ * Запрос объясняется с enable_seqscan = off: если подходящего индекса нет, в плане остаётся Seq Scan
+ * или полный проход индекса без Index Cond
+ * **/
+@SpringBootTest
+
+class QueryPlanTests extends StorageTestSupport {
+	private static final int ROOTS = 20;
+	private static final int FOLDERS_PER_ROOT = 10;
+	private static final int FILES_PER_FOLDER = 10;
+
+	// Запросы, которые по смыслу проходят всю таблицу
+	private static final Set<String> FULL_SCAN_QUERIES = Set.of("rebuildPaths", "rebuild");
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@BeforeEach
+	void seed() {
+		clearStorage();
+		for (int r = 0; r < ROOTS; r++) {
+			List<SystemItemImport> items = new ArrayList<>();
+			String root = "root-" + r;
+			items.add(folder(root, null));
+			for (int f = 0; f < FOLDERS_PER_ROOT; f++) {
+				String folder = root + "-" + f;
+				items.add(folder(folder, root));
+				items.addAll(files(folder + "-", FILES_PER_FOLDER, folder));
+			}
+			importAt(Instant.parse("2022-05-01T00:00:00Z").plusSeconds(r).toString(),
+					items.toArray(new SystemItemImport[0]));
+		}
+		jdbcTemplate.execute("ANALYZE");
+	}
+
+	@Test
+	void shouldUseIndexesForRepositoryQueries() throws Exception {
+		List<String> failures = new ArrayList<>();
+		for (Class<?> repository : List.of(StorageRepository.class, ArchiveRepository.class, ClosureRepository.class)) {
+			for (Method method : repository.getDeclaredMethods()) {
+				Query query = method.getAnnotation(Query.class);
+				if (query == null || !query.nativeQuery() || FULL_SCAN_QUERIES.contains(method.getName())) {
+					continue;
+				}
+				List<String> scans = findFullScans(bind(query.value(), method.getParameterTypes()));
+				if (!scans.isEmpty()) {
+					failures.add(repository.getSimpleName() + "." + method.getName() + ": " + scans);
+				}
+			}
+		}
+		Assertions.assertTrue(failures.isEmpty(), String.join("\n", failures));
+	}
+
+	/**
+	 * Подставить вместо параметров ?N литералы по типу параметра
+	 * **/
+	private String bind(String query, Class<?>[] parameterTypes) {
+		String bound = query;
+		// С конца, чтобы ?1 не заменился внутри ?10
+		for (int i = parameterTypes.length; i >= 1; i--) {
+			Class<?> type = parameterTypes[i - 1];
+			String literal;
+			if (Collection.class.isAssignableFrom(type)) {
+				literal = "'root-1-1', 'root-2-2'";
+			} else if (type == Instant.class) {
+				literal = "'2022-05-01 00:00:00'";
+			} else if (type == String.class) {
+				literal = "'root-1-1'";
+			} else {
+				literal = "1";
+			}
+			bound = bound.replace("?" + i, literal);
+		}
+		return bound;
+	}
+
+	/**
+	 * Узлы плана, читающие таблицу целиком
+	 * **/
+	private List<String> findFullScans(String query) {
+		String plan = jdbcTemplate.execute((ConnectionCallback<String>) connection -> {
+			try (Statement statement = connection.createStatement()) {
+				statement.execute("SET enable_seqscan = off");
+				try (ResultSet rs = statement.executeQuery("EXPLAIN (FORMAT JSON) " + query)) {
+					rs.next();
+					return rs.getString(1);
+				} finally {
+					statement.execute("RESET enable_seqscan");
+				}
+			}
+		});
+		List<String> scans = new ArrayList<>();
+		try {
+			collectFullScans(objectMapper.readTree(plan).get(0).get("Plan"), scans);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+		return scans;
+	}
+
+	private void collectFullScans(JsonNode node, List<String> scans) {
+		String type = node.path("Node Type").asText();
+		boolean indexScan = type.equals("Index Scan") || type.equals("Index Only Scan") || type.equals("Bitmap Index Scan");
+		if (type.equals("Seq Scan") || (indexScan && !node.has("Index Cond"))) {
+			scans.add(type + " on " + node.path("Relation Name").asText(node.path("Index Name").asText()));
+		}
+		node.path("Plans").forEach(child -> collectFullScans(child, scans));
+	}
+}
@@ -0,0 +1,11 @@
+package com.petrunkov.diskapi;
+
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+
+
+@SpringBootTest(properties = "disk-api.hierarchy.engine=recursive")
+@AutoConfigureMockMvc
+
+class RecursiveHierarchyEngineTests extends HierarchyEngineTests {
+}
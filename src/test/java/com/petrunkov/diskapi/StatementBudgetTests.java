@@ -0,0 +1,214 @@
+package com.petrunkov.diskapi;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.petrunkov.diskapi.dto.SystemItemImport;
+import com.petrunkov.diskapi.dto.SystemItemImportRequest;
+import net.ttddyy.dsproxy.ExecutionInfo;
+import net.ttddyy.dsproxy.QueryInfo;
+import net.ttddyy.dsproxy.listener.QueryExecutionListener;
+import net.ttddyy.dsproxy.support.ProxyDataSourceBuilder;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
+
+import javax.sql.DataSource;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Бюджеты SQL-запросов на запрос к API. Источник данных обёрнут datasource-proxy, который считает
+ * обращения к базе; пакетная вставка считается одним обращением.
+ * Бюджет - формула от числа элементов запроса и глубины дерева: запрос на элемент для каждого уровня
+ * (N × depth) или на элемент поддерева при чтении выводит за бюджет
+ * **/
+@SpringBootTest
+@AutoConfigureMockMvc
+@Import(StatementBudgetTests.StatementCounterConfiguration.class)
+
+class StatementBudgetTests extends StorageTestSupport {
+	// Импорт: только доля пакетной вставки, сохранённые версии читаются одним запросом на порцию
+	private static final int IMPORT_PER_ITEM = 1;
+	// Импорт: на уровень глубины родителя, сколько бы элементов ни было в запросе
+	private static final int IMPORT_PER_LEVEL = 1;
+	private static final int IMPORT_FIXED = 10;
+	// Чтения не зависят от размера поддерева и истории
+	private static final int READ_FIXED = 3;
+	// Удаление не зависит от размера поддерева, отметки удаления пишутся одной вставкой
+	private static final int DELETE_FIXED = 16;
+
+	private static final int DEPTH = 8;
+	private static final String DATE = "2022-06-01T10:00:00Z";
+
+	private static final StatementCounter COUNTER = new StatementCounter();
+
+	@TestConfiguration
+	static class StatementCounterConfiguration {
+		@Bean
+		static BeanPostProcessor countingDataSourcePostProcessor() {
+			return new BeanPostProcessor() {
+				@Override
+				public Object postProcessAfterInitialization(Object bean, String beanName) {
+					if (bean instanceof DataSource dataSource) {
+						return ProxyDataSourceBuilder.create(dataSource)
+								.name(beanName)
+								.listener(COUNTER)
+								.build();
+					}
+					return bean;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Число обращений к базе и их текст для сообщения о превышении бюджета
+	 * **/
+	static class StatementCounter implements QueryExecutionListener {
+		private final AtomicInteger count = new AtomicInteger();
+		private final List<String> queries = Collections.synchronizedList(new ArrayList<>());
+
+		@Override
+		public void beforeQuery(ExecutionInfo execInfo, List<QueryInfo> queryInfoList) {
+		}
+
+		@Override
+		public void afterQuery(ExecutionInfo execInfo, List<QueryInfo> queryInfoList) {
+			count.incrementAndGet();
+			String query = queryInfoList.isEmpty() ? "" : queryInfoList.get(0).getQuery();
+			queries.add(execInfo.isBatch() ? "[batch " + execInfo.getBatchSize() + "] " + query : query);
+		}
+
+		void reset() {
+			count.set(0);
+			queries.clear();
+		}
+	}
+
+	@Autowired
+	private MockMvc mockMvc;
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@BeforeEach
+	void clear() {
+		clearStorage();
+	}
+
+	@Test
+	void importShouldCostPerItemNotPerItemTimesDepth() throws Exception {
+		// Цепочка папок c1 <- c2 <- ... <- c8
+		List<SystemItemImport> chain = new ArrayList<>();
+		for (int level = 1; level <= DEPTH; level++) {
+			chain.add(folder("c" + level, level == 1 ? null : "c" + (level - 1)));
+		}
+		perform(importRequest(chain));
+
+		int shallow = countStatements("import 10 at depth 2", importRequest(files("s", 10, "c2")),
+				IMPORT_PER_ITEM * 10 + IMPORT_PER_LEVEL * 2 + IMPORT_FIXED);
+		int deep = countStatements("import 10 at depth " + DEPTH, importRequest(files("d", 10, "c" + DEPTH)),
+				IMPORT_PER_ITEM * 10 + IMPORT_PER_LEVEL * DEPTH + IMPORT_FIXED);
+		int deepLarge = countStatements("import 40 at depth " + DEPTH, importRequest(files("l", 40, "c" + DEPTH)),
+				IMPORT_PER_ITEM * 40 + IMPORT_PER_LEVEL * DEPTH + IMPORT_FIXED);
+
+		// Глубина добавляет не больше бюджета уровня, сколько бы элементов ни было в запросе
+		Assertions.assertTrue(deep - shallow <= IMPORT_PER_LEVEL * (DEPTH - 2),
+				"depth " + DEPTH + ": " + deep + ", depth 2: " + shallow);
+		Assertions.assertTrue(deepLarge - deep <= IMPORT_PER_ITEM * 30,
+				"40 items: " + deepLarge + ", 10 items: " + deep);
+	}
+
+	@Test
+	void readsShouldNotDependOnSubtreeSize() throws Exception {
+		List<SystemItemImport> items = new ArrayList<>();
+		items.add(folder("root", null));
+		items.add(folder("small", "root"));
+		items.add(folder("big", "root"));
+		items.addAll(files("small-", 5, "small"));
+		items.addAll(files("big-", 50, "big"));
+		perform(importRequest(items));
+		// Несколько версий одного файла
+		for (int i = 1; i <= 5; i++) {
+			perform(importRequest(List.of(file("big-0", "big", i + 1)), Instant.parse(DATE).plusSeconds(i).toString()));
+		}
+
+		int small = countStatements("GET /nodes/small", MockMvcRequestBuilders.get("/nodes/small"), READ_FIXED);
+		int big = countStatements("GET /nodes/big", MockMvcRequestBuilders.get("/nodes/big"), READ_FIXED);
+		Assertions.assertEquals(small, big);
+
+		// Неизменённое поддерево: одна строка по первичному ключу
+		String etag = mockMvc.perform(MockMvcRequestBuilders.get("/nodes/big"))
+				.andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+		COUNTER.reset();
+		mockMvc.perform(MockMvcRequestBuilders.get("/nodes/big").header(HttpHeaders.IF_NONE_MATCH, etag))
+				.andExpect(MockMvcResultMatchers.status().isNotModified());
+		Assertions.assertEquals(1, COUNTER.count.get(), String.join("\n", COUNTER.queries));
+
+		countStatements("GET /updates", MockMvcRequestBuilders.get("/updates")
+				.param("date", Instant.parse(DATE).plusSeconds(10).toString()), READ_FIXED);
+		countStatements("GET /node/{id}/history", MockMvcRequestBuilders.get("/node/big-0/history")
+				.param("dateStart", "2000-01-01T00:00:00Z")
+				.param("dateEnd", "2042-01-01T00:00:00Z"), READ_FIXED);
+	}
+
+	@Test
+	void deleteShouldNotDependOnSubtreeSize() throws Exception {
+		List<SystemItemImport> items = new ArrayList<>();
+		items.add(folder("root", null));
+		items.add(folder("small", "root"));
+		items.add(folder("big", "root"));
+		items.addAll(files("small-", 5, "small"));
+		items.addAll(files("big-", 50, "big"));
+		perform(importRequest(items));
+
+		String date = Instant.parse(DATE).plusSeconds(1).toString();
+		int small = countStatements("DELETE /delete/small",
+				MockMvcRequestBuilders.delete("/delete/small").param("date", date), DELETE_FIXED);
+		int big = countStatements("DELETE /delete/big",
+				MockMvcRequestBuilders.delete("/delete/big").param("date", date), DELETE_FIXED);
+		Assertions.assertEquals(small, big);
+	}
+
+	/**
+	 * Выполнить запрос и проверить, что он уложился в бюджет. Возвращает число обращений к базе
+	 * **/
+	private int countStatements(String name, RequestBuilder request, int budget) throws Exception {
+		COUNTER.reset();
+		perform(request);
+		int count = COUNTER.count.get();
+		Assertions.assertTrue(count <= budget,
+				name + ": " + count + " statements, budget " + budget + "\n" + String.join("\n", COUNTER.queries));
+		return count;
+	}
+
+	private void perform(RequestBuilder request) throws Exception {
+		mockMvc.perform(request).andExpect(MockMvcResultMatchers.status().isOk());
+	}
+
+	private RequestBuilder importRequest(List<SystemItemImport> items) throws Exception {
+		return importRequest(items, DATE);
+	}
+
+	private RequestBuilder importRequest(List<SystemItemImport> items, String date) throws Exception {
+		return MockMvcRequestBuilders
+				.post("/imports")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content(objectMapper.writeValueAsString(new SystemItemImportRequest(items, date)));
+	}
+}
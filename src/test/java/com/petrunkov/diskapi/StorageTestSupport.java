@@ -0,0 +1,92 @@
+package com.petrunkov.diskapi;
+
+import com.petrunkov.diskapi.dto.SystemItemImport;
+import com.petrunkov.diskapi.dto.SystemItemImportRequest;
+import com.petrunkov.diskapi.repository.ArchiveRepository;
+import com.petrunkov.diskapi.repository.StorageRepository;
+import com.petrunkov.diskapi.service.StorageService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.testcontainers.containers.PostgreSQLContainer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Основа интеграционных тестов: один контейнер PostgreSQL на весь прогон, очистка хранилища
+ * и фабрики элементов импорта. Контексты с разными свойствами работают с одной базой,
+ * поэтому каждый тест начинает с clearStorage
+ * **/
+abstract class StorageTestSupport {
+	private static final PostgreSQLContainer<?> postgreSQLContainer = new PostgreSQLContainer<>("postgres");
+
+	static {
+		postgreSQLContainer.start();
+	}
+
+	@DynamicPropertySource
+	static void setProperties(DynamicPropertyRegistry dynamicPropertyRegistry) {
+		dynamicPropertyRegistry.add("spring.datasource.url", postgreSQLContainer::getJdbcUrl);
+		dynamicPropertyRegistry.add("spring.datasource.username", postgreSQLContainer::getUsername);
+		dynamicPropertyRegistry.add("spring.datasource.password", postgreSQLContainer::getPassword);
+	}
+
+	@Autowired
+	protected StorageService storageService;
+
+	@Autowired
+	protected StorageRepository storageRepository;
+
+	@Autowired
+	protected ArchiveRepository archiveRepository;
+
+	@Autowired
+	protected JdbcTemplate jdbcTemplate;
+
+	/**
+	 * Удалить элементы, историю, снимки деревьев и таблицу замыканий
+	 * **/
+	protected void clearStorage() {
+		storageRepository.deleteAll();
+		archiveRepository.deleteAll();
+		jdbcTemplate.update("DELETE FROM t_item_closure");
+		jdbcTemplate.update("DELETE FROM t_tree_snapshot");
+		jdbcTemplate.update("DELETE FROM t_tree_move");
+		jdbcTemplate.update("DELETE FROM t_tree_tombstone");
+	}
+
+	protected void importAt(String date, SystemItemImport... items) {
+		storageService.importItem(new SystemItemImportRequest(List.of(items), date));
+	}
+
+	protected static SystemItemImport folder(String id, String parentId) {
+		return SystemItemImport.builder()
+				.id(id)
+				.parentId(parentId)
+				.type("FOLDER")
+				.build();
+	}
+
+	protected static SystemItemImport file(String id, String parentId, long size) {
+		return SystemItemImport.builder()
+				.id(id)
+				.parentId(parentId)
+				.size(size)
+				.type("FILE")
+				.url("/" + id)
+				.build();
+	}
+
+	/**
+	 * count файлов prefix0, prefix1, ... размера 1 в папке parentId
+	 * **/
+	protected static List<SystemItemImport> files(String prefix, int count, String parentId) {
+		List<SystemItemImport> files = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			files.add(file(prefix + i, parentId, 1L));
+		}
+		return files;
+	}
+}
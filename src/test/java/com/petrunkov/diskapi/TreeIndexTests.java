@@ -0,0 +1,127 @@
+package com.petrunkov.diskapi;
+
+import com.petrunkov.diskapi.dto.SystemItemDto;
+import com.petrunkov.diskapi.dto.SystemItemImport;
+import com.petrunkov.diskapi.exception.ItemNotFoundException;
+import com.petrunkov.diskapi.index.TreeIndex;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+
+@SpringBootTest(properties = {
+		"disk-api.index.enabled=true",
+		// Импорт больше 10 элементов перезагружает индекс целиком
+		"disk-api.index.max-pending-ids=10"
+})
+
+class TreeIndexTests extends StorageTestSupport {
+	@Autowired
+	private TreeIndex treeIndex;
+
+	/**
+	 * r - a - a1 (3), r - b - b1 (5)
+	 * **/
+	@BeforeEach
+	void insertTree() throws Exception {
+		clearStorage();
+		treeIndex.load();
+		importAt("2022-06-01T10:00:00Z", folder("r", null), folder("a", "r"), folder("b", "r"),
+				file("a1", "a", 3L), file("b1", "b", 5L));
+		awaitReady();
+	}
+
+	@Test
+	void shouldFindSubtree() {
+		SystemItemDto root = treeIndex.findItemInfo("r").orElseThrow();
+		Assertions.assertEquals(8L, root.getSize());
+		Assertions.assertNull(root.getParentId());
+		Assertions.assertEquals(List.of("a", "b"), childIds(root));
+		Assertions.assertEquals(storageRepository.findVersionById("r").orElseThrow(), root.getVersion());
+
+		SystemItemDto a = treeIndex.findItemInfo("a").orElseThrow();
+		Assertions.assertEquals("r", a.getParentId());
+		Assertions.assertEquals(List.of("a1"), childIds(a));
+		SystemItemDto a1 = a.getChildren().get(0);
+		Assertions.assertEquals("/a1", a1.getUrl());
+		Assertions.assertEquals("2022-06-01T10:00:00Z", a1.getDate());
+		Assertions.assertNull(a1.getChildren());
+
+		Assertions.assertThrows(ItemNotFoundException.class, () -> treeIndex.findItemInfo("missing"));
+	}
+
+	@Test
+	void shouldMoveItemBetweenFolders() throws Exception {
+		importAt("2022-06-01T11:00:00Z", file("b1", "a", 5L));
+
+		SystemItemDto root = treeIndex.findItemInfo("r").orElseThrow();
+		Assertions.assertEquals(8L, root.getSize());
+		SystemItemDto a = treeIndex.findItemInfo("a").orElseThrow();
+		Assertions.assertEquals(List.of("a1", "b1"), childIds(a));
+		Assertions.assertEquals(8L, a.getSize());
+		SystemItemDto b = treeIndex.findItemInfo("b").orElseThrow();
+		Assertions.assertTrue(b.getChildren().isEmpty());
+		Assertions.assertEquals(0L, b.getSize());
+		Assertions.assertEquals("a", treeIndex.findItemInfo("b1").orElseThrow().getParentId());
+	}
+
+	@Test
+	void shouldDeleteSubtree() {
+		storageService.deleteItem("b", Instant.parse("2022-06-01T11:00:00Z"));
+
+		Assertions.assertThrows(ItemNotFoundException.class, () -> treeIndex.findItemInfo("b"));
+		Assertions.assertThrows(ItemNotFoundException.class, () -> treeIndex.findItemInfo("b1"));
+		SystemItemDto root = treeIndex.findItemInfo("r").orElseThrow();
+		Assertions.assertEquals(List.of("a"), childIds(root));
+		Assertions.assertEquals(3L, root.getSize());
+		Assertions.assertEquals(3, treeIndex.size());
+	}
+
+	@Test
+	void shouldRebuildFromDatabase() {
+		// Изменение мимо сервиса индекс не видит до загрузки
+		jdbcTemplate.update("UPDATE t_system_items SET url = '/changed' WHERE id = 'a1'");
+		Assertions.assertEquals("/a1", treeIndex.findItemInfo("a1").orElseThrow().getUrl());
+
+		treeIndex.load();
+		Assertions.assertTrue(treeIndex.isReady());
+		Assertions.assertEquals("/changed", treeIndex.findItemInfo("a1").orElseThrow().getUrl());
+		Assertions.assertEquals(5, treeIndex.size());
+	}
+
+	@Test
+	void shouldReloadAfterOverflowAndKeepChangesCommittedMeanwhile() throws Exception {
+		List<SystemItemImport> files = new ArrayList<>();
+		for (int i = 0; i < 12; i++) {
+			files.add(file("a-" + i, "a", 1L));
+		}
+		importAt("2022-06-01T11:00:00Z", files.toArray(new SystemItemImport[0]));
+		// Индекс ещё загружается или уже загружен: изменение не должно потеряться ни в одном из случаев
+		importAt("2022-06-01T12:00:00Z", file("b2", "b", 2L));
+		awaitReady();
+
+		Assertions.assertEquals(18, treeIndex.size());
+		Assertions.assertEquals(13, treeIndex.findItemInfo("a").orElseThrow().getChildren().size());
+		Assertions.assertEquals(List.of("b1", "b2"), childIds(treeIndex.findItemInfo("b").orElseThrow()));
+		Assertions.assertEquals(22L, treeIndex.findItemInfo("r").orElseThrow().getSize());
+	}
+
+	private void awaitReady() throws InterruptedException {
+		long deadline = System.nanoTime() + 10_000_000_000L;
+		while (!treeIndex.isReady()) {
+			Assertions.assertTrue(System.nanoTime() < deadline, "Tree index is not ready");
+			Thread.sleep(10);
+		}
+	}
+
+	private static List<String> childIds(SystemItemDto dto) {
+		return dto.getChildren().stream().map(SystemItemDto::getId).sorted().collect(Collectors.toList());
+	}
+}